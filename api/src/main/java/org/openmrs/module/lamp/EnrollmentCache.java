@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Caches the active enrollments looked up within the current transaction, so that the encounters of a patient saved
+ * together, or replayed in the same chunk, do not query the enrollment again. The cache is bound to the transaction and
+ * dropped once it completes, and the saves of enrollments evict the entries they may invalidate. Outside of a
+ * transaction nothing is cached.
+ */
+public class EnrollmentCache extends TransactionSynchronizationAdapter {
+	
+	private final Map<String, PatientProgram> activeEnrollments = new HashMap<String, PatientProgram>();
+	
+	/**
+	 * Returns the active enrollment of the patient in the program, loading it on the first lookup of the transaction.
+	 * 
+	 * @param loader queries the active enrollment, which may be null
+	 */
+	public static PatientProgram getActiveEnrollment(Patient patient, Program program, Supplier<PatientProgram> loader) {
+		EnrollmentCache cache = getCache(true);
+		if (cache == null) {
+			return loader.get();
+		}
+		String key = getKey(patient, program);
+		if (cache.activeEnrollments.containsKey(key)) {
+			return cache.activeEnrollments.get(key);
+		}
+		PatientProgram patientProgram = loader.get();
+		cache.activeEnrollments.put(key, patientProgram);
+		return patientProgram;
+	}
+	
+	/**
+	 * Records a newly saved enrollment as the active enrollment of its patient in its program.
+	 */
+	public static void put(PatientProgram patientProgram) {
+		EnrollmentCache cache = getCache(false);
+		if (cache != null && isActive(patientProgram)) {
+			cache.activeEnrollments.put(getKey(patientProgram.getPatient(), patientProgram.getProgram()), patientProgram);
+		}
+	}
+	
+	/**
+	 * Evicts the active enrollment of the patient in the program of the enrollment being saved, unless it is that same
+	 * enrollment and it stays active.
+	 */
+	public static void evict(PatientProgram patientProgram) {
+		EnrollmentCache cache = getCache(false);
+		if (cache == null || patientProgram.getPatient() == null || patientProgram.getProgram() == null) {
+			return;
+		}
+		String key = getKey(patientProgram.getPatient(), patientProgram.getProgram());
+		if (cache.activeEnrollments.get(key) != patientProgram || !isActive(patientProgram)) {
+			cache.activeEnrollments.remove(key);
+		}
+	}
+	
+	private static EnrollmentCache getCache(boolean create) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		EnrollmentCache cache = (EnrollmentCache) TransactionSynchronizationManager.getResource(EnrollmentCache.class);
+		if (cache == null) {
+			if (!create) {
+				return null;
+			}
+			cache = new EnrollmentCache();
+			TransactionSynchronizationManager.bindResource(EnrollmentCache.class, cache);
+			TransactionSynchronizationManager.registerSynchronization(cache);
+			return cache;
+		}
+		// The cache of an enclosing transaction suspended by this one holds the entities of another session
+		return TransactionSynchronizationManager.getSynchronizations().contains(cache) ? cache : null;
+	}
+	
+	private static String getKey(Patient patient, Program program) {
+		return patient.getPatientId() + ":" + program.getProgramId();
+	}
+	
+	private static boolean isActive(PatientProgram patientProgram) {
+		return patientProgram.getDateCompleted() == null && !patientProgram.getVoided();
+	}
+	
+	@Override
+	public void afterCompletion(int status) {
+		TransactionSynchronizationManager.unbindResourceIfPossible(EnrollmentCache.class);
+	}
+}
@@ -11,22 +11,88 @@ package org.openmrs.module.lamp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.lamp.async.EncounterEventBroker;
+import org.openmrs.module.lamp.async.EncounterEventCoalescer;
+import org.openmrs.module.lamp.async.OpenmrsEventBroker;
+import org.openmrs.module.lamp.async.ProgramStateQueue;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.openmrs.module.lamp.scheduler.CompletionPartitionRunner;
+import org.springframework.transaction.PlatformTransactionManager;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
-public class LampActivator extends BaseModuleActivator {
+public class LampActivator extends BaseModuleActivator implements DaemonTokenAware {
+	
+	private static final String EVENT_MODULE_ID = "event";
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	private DaemonToken daemonToken;
+	
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		this.daemonToken = token;
+	}
+	
 	/**
 	 * @see #started()
 	 */
 	public void started() {
+		ProgramRules programRules = getProgramRules();
+		programRules.reload();
+		Context.getAdministrationService().addGlobalPropertyListener(programRules);
+		getMetrics().register();
+		Context.getRegisteredComponent("lamp.LampMetadataCache", LampMetadataCache.class).validate();
+		Context.getRegisteredComponent("lamp.CompletionPartitionRunner", CompletionPartitionRunner.class).setDaemonToken(
+		    daemonToken);
+		getProgramStateQueue().setDaemonToken(daemonToken);
+		
+		AdministrationService administrationService = Context.getAdministrationService();
+		boolean eventProcessing = administrationService.getGlobalPropertyValue(LampConfig.GP_EVENT_PROCESSING_ENABLED,
+		    Boolean.FALSE);
+		if (eventProcessing && !ModuleFactory.isModuleStarted(EVENT_MODULE_ID)) {
+			log.error(LampConfig.GP_EVENT_PROCESSING_ENABLED + " is set but the event module is not started,"
+			        + " updating the program states as part of the encounter saves instead");
+			eventProcessing = false;
+		}
+		if (eventProcessing
+		        || administrationService.getGlobalPropertyValue(LampConfig.GP_ASYNC_PROCESSING_ENABLED, Boolean.FALSE)) {
+			getProgramStateQueue().start(daemonToken,
+			    administrationService.getGlobalPropertyValue(LampConfig.GP_ASYNC_PROCESSING_WORKERS,
+			        ProgramStateQueue.DEFAULT_WORKERS), administrationService.getGlobalPropertyValue(
+			        LampConfig.GP_ASYNC_PROCESSING_QUEUE_CAPACITY, ProgramStateQueue.DEFAULT_CAPACITY),
+			    administrationService.getGlobalPropertyValue(LampConfig.GP_ASYNC_PROCESSING_MAX_ATTEMPTS,
+			        ProgramStateQueue.DEFAULT_MAX_ATTEMPTS));
+		}
+		if (eventProcessing) {
+			// Only loaded once the event module is known to be started, its classes are not there otherwise
+			EncounterEventBroker broker = new OpenmrsEventBroker(Context.getRegisteredComponent("lamp.LampDao",
+			    LampDao.class), Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class));
+			getEventCoalescer().start(daemonToken, broker,
+			    administrationService.getGlobalPropertyValue(LampConfig.GP_EVENT_PROCESSING_COALESCE_MILLIS, 2000),
+			    administrationService.getGlobalPropertyValue(LampConfig.GP_EVENT_PROCESSING_MAX_DELAY_MILLIS, 10000));
+		}
 		log.info("Started Lamp module");
 	}
 	
+	/**
+	 * @see #willStop()
+	 */
+	public void willStop() {
+		Context.getAdministrationService().removeGlobalPropertyListener(getProgramRules());
+		getEventCoalescer().stop();
+		getProgramStateQueue().stop();
+		getMetrics().unregister();
+	}
+	
 	/**
 	 * @see #shutdown()
 	 */
@@ -34,4 +100,19 @@ public class LampActivator extends BaseModuleActivator {
 		log.info("Shutdown Lamp module");
 	}
 	
+	private ProgramStateQueue getProgramStateQueue() {
+		return Context.getRegisteredComponent("lamp.ProgramStateQueue", ProgramStateQueue.class);
+	}
+	
+	private EncounterEventCoalescer getEventCoalescer() {
+		return Context.getRegisteredComponent("lamp.EncounterEventCoalescer", EncounterEventCoalescer.class);
+	}
+	
+	private ProgramRules getProgramRules() {
+		return Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class);
+	}
+	
+	private LampMetrics getMetrics() {
+		return Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class);
+	}
 }
@@ -7,29 +7,51 @@ package org.openmrs.module.lamp;
 
 import java.util.Date;
 
-import org.openmrs.Concept;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Encounter;
-import org.openmrs.Obs;
-import org.openmrs.Patient;
-import org.openmrs.PatientProgram;
-import org.openmrs.Program;
-import org.openmrs.ProgramWorkflow;
-import org.openmrs.ProgramWorkflowState;
 import org.openmrs.User;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.ProgramWorkflowService;
-import org.openmrs.api.context.Context;
 import org.openmrs.api.handler.SaveHandler;
+import org.openmrs.module.lamp.async.EncounterEventCoalescer;
+import org.openmrs.module.lamp.async.ProgramStateQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 
 @Handler(supports = Encounter.class)
 public class LampEncounterSaveHandler implements SaveHandler<Encounter> {
 	
+	private static final Log log = LogFactory.getLog(LampEncounterSaveHandler.class);
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStrategyDispatcher")
+	private ProgramStrategyDispatcher dispatcher;
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStateQueue")
+	private ProgramStateQueue programStateQueue;
+	
+	@Autowired
+	@Qualifier("lamp.EncounterEventCoalescer")
+	private EncounterEventCoalescer eventCoalescer;
+	
 	@Override
 	public void handle(Encounter encounter, User currentUser, Date currentDate, String reason) {
-		ProgramStrategy childNutritionProgramStrategy = new ChildNutritionProgramStrategy();
-		ProgramStrategy prenatalProgramStrategy = new PrenatalProgramStrategy();
-		
-		childNutritionProgramStrategy.execute(encounter, currentUser, currentDate, reason);
-		prenatalProgramStrategy.execute(encounter, currentUser, currentDate, reason);
+		if (eventCoalescer.isRunning()) {
+			// The program states are updated from the events the event module publishes once the save commits
+			return;
+		}
+		if (programStateQueue.isRunning()) {
+			programStateQueue.enqueueAfterCommit(encounter);
+		} else {
+			try {
+				dispatcher.dispatch(encounter, currentUser, currentDate, reason);
+			}
+			catch (PatientLockTimeoutException e) {
+				// Nothing was changed yet, so the encounter is saved and its programs are updated once it commits
+				log.warn("Deferring the program update of encounter " + encounter.getUuid() + ": " + e.getMessage());
+				programStateQueue.retryAfterCommit(encounter);
+			}
+		}
 	}
 }
@@ -0,0 +1,171 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.ProgramWorkflowService;
+
+/**
+ * Immutable snapshot of the programs, workflows, states and concepts used by the LAMP strategies, indexed for constant
+ * time lookups. The objects it holds are fully initialized when the snapshot is built so that they can safely be used
+ * outside of the session that loaded them.
+ */
+public class LampMetadata {
+	
+	private final Map<String, Program> programsByUuid;
+	
+	private final Map<String, Map<String, ProgramWorkflow>> workflowsByProgramUuid;
+	
+	private final Map<String, Map<String, ProgramWorkflowState>> statesByWorkflowUuid;
+	
+	private final Map<String, Concept> conceptsByUuid;
+	
+	private final Set<String> trackedConceptUuids;
+	
+	private LampMetadata(Map<String, Program> programsByUuid,
+	    Map<String, Map<String, ProgramWorkflow>> workflowsByProgramUuid,
+	    Map<String, Map<String, ProgramWorkflowState>> statesByWorkflowUuid, Map<String, Concept> conceptsByUuid,
+	    Set<String> trackedConceptUuids) {
+		this.programsByUuid = programsByUuid;
+		this.workflowsByProgramUuid = workflowsByProgramUuid;
+		this.statesByWorkflowUuid = statesByWorkflowUuid;
+		this.conceptsByUuid = conceptsByUuid;
+		this.trackedConceptUuids = trackedConceptUuids;
+	}
+	
+	/**
+	 * Resolves the given programs, including all their workflows and states, and the given concepts.
+	 */
+	public static LampMetadata build(ProgramWorkflowService programWorkflowService, ConceptService conceptService,
+	        Collection<String> programUuids, Collection<String> conceptUuids) {
+		Map<String, Program> programs = new HashMap<String, Program>();
+		Map<String, Map<String, ProgramWorkflow>> workflows = new HashMap<String, Map<String, ProgramWorkflow>>();
+		Map<String, Map<String, ProgramWorkflowState>> states = new HashMap<String, Map<String, ProgramWorkflowState>>();
+		Map<String, Concept> concepts = new HashMap<String, Concept>();
+		Set<String> trackedConceptUuids = new HashSet<String>(conceptUuids);
+		
+		for (String programUuid : programUuids) {
+			Program program = programWorkflowService.getProgramByUuid(programUuid);
+			if (program == null) {
+				continue;
+			}
+			programs.put(programUuid, program);
+			
+			Map<String, ProgramWorkflow> programWorkflows = new HashMap<String, ProgramWorkflow>();
+			for (ProgramWorkflow programWorkflow : program.getWorkflows()) {
+				if (programWorkflow == null) {
+					continue;
+				}
+				programWorkflows.put(programWorkflow.getUuid(), programWorkflow);
+				
+				Map<String, ProgramWorkflowState> workflowStates = new HashMap<String, ProgramWorkflowState>();
+				for (ProgramWorkflowState programWorkflowState : programWorkflow.getStates()) {
+					String conceptUuid = programWorkflowState.getConcept().getUuid();
+					// Keep the first match, as a linear scan of the workflow would
+					if (!workflowStates.containsKey(conceptUuid)) {
+						workflowStates.put(conceptUuid, programWorkflowState);
+					}
+					programWorkflowState.getProgramWorkflow().getUuid();
+					trackedConceptUuids.add(conceptUuid);
+				}
+				states.put(programWorkflow.getUuid(), Collections.unmodifiableMap(workflowStates));
+			}
+			workflows.put(programUuid, Collections.unmodifiableMap(programWorkflows));
+		}
+		
+		for (String conceptUuid : conceptUuids) {
+			Concept concept = conceptService.getConceptByUuid(conceptUuid);
+			if (concept != null) {
+				concepts.put(conceptUuid, concept);
+			}
+		}
+		
+		return new LampMetadata(Collections.unmodifiableMap(programs), Collections.unmodifiableMap(workflows),
+		        Collections.unmodifiableMap(states), Collections.unmodifiableMap(concepts),
+		        Collections.unmodifiableSet(trackedConceptUuids));
+	}
+	
+	public Program getProgram(String programUuid) {
+		return programsByUuid.get(programUuid);
+	}
+	
+	public ProgramWorkflow getWorkflow(String programUuid, String workflowUuid) {
+		Map<String, ProgramWorkflow> programWorkflows = workflowsByProgramUuid.get(programUuid);
+		return programWorkflows == null ? null : programWorkflows.get(workflowUuid);
+	}
+	
+	public ProgramWorkflowState getStateByConcept(ProgramWorkflow programWorkflow, Concept concept) {
+		Map<String, ProgramWorkflowState> workflowStates = statesByWorkflowUuid.get(programWorkflow.getUuid());
+		return workflowStates == null ? null : workflowStates.get(concept.getUuid());
+	}
+	
+	public Concept getConcept(String conceptUuid) {
+		return conceptsByUuid.get(conceptUuid);
+	}
+	
+	/**
+	 * Checks that the program, workflow and concepts the given rule refers to are part of the snapshot, and that its
+	 * completion state is a state of its workflow.
+	 * 
+	 * @return the problems found, empty if the rule can be applied
+	 */
+	public List<String> getProblems(ProgramRule rule) {
+		List<String> problems = new ArrayList<String>();
+		for (String questionConceptUuid : rule.getQuestionConceptUuids()) {
+			if (getConcept(questionConceptUuid) == null) {
+				problems.add(rule + ": the question concept " + questionConceptUuid + " does not exist");
+			}
+		}
+		if (getProgram(rule.getProgramUuid()) == null) {
+			problems.add(rule + ": the program " + rule.getProgramUuid() + " does not exist");
+			return problems;
+		}
+		ProgramWorkflow workflow = getWorkflow(rule.getProgramUuid(), rule.getWorkflowUuid());
+		if (workflow == null) {
+			problems.add(rule + ": the workflow " + rule.getWorkflowUuid() + " is not a workflow of the program "
+			        + rule.getProgramUuid());
+			return problems;
+		}
+		if (statesByWorkflowUuid.get(workflow.getUuid()).isEmpty()) {
+			problems.add(rule + ": the workflow " + rule.getWorkflowUuid() + " has no state");
+		}
+		if (rule.getCompletionStateConceptUuid() != null) {
+			Concept completionStateConcept = getConcept(rule.getCompletionStateConceptUuid());
+			if (completionStateConcept == null) {
+				problems.add(rule + ": the completion state concept " + rule.getCompletionStateConceptUuid()
+				        + " does not exist");
+			} else if (getStateByConcept(workflow, completionStateConcept) == null) {
+				problems.add(rule + ": the completion state concept " + rule.getCompletionStateConceptUuid()
+				        + " is not a state of the workflow " + rule.getWorkflowUuid());
+			}
+		}
+		return problems;
+	}
+	
+	/**
+	 * @return true if the concept is one of the looked up concepts or the concept of one of the indexed states
+	 */
+	public boolean isTrackedConcept(String conceptUuid) {
+		return trackedConceptUuids.contains(conceptUuid);
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the current {@link LampMetadata} snapshot of the metadata the {@link ProgramRule}s refer to. The snapshot is
+ * built when the module starts and rebuilt lazily on the first access after it has been invalidated, including when the
+ * rules change.
+ */
+@Component("lamp.LampMetadataCache")
+public class LampMetadataCache {
+	
+	private static final Log log = LogFactory.getLog(LampMetadataCache.class);
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	private volatile Set<String> programUuids = Collections.emptySet();
+	
+	private volatile Set<String> conceptUuids = Collections.emptySet();
+	
+	private volatile Collection<ProgramRule> rules = Collections.emptyList();
+	
+	private volatile LampMetadata metadata;
+	
+	/**
+	 * Sets the programs and concepts of the snapshot to those the given rules refer to.
+	 */
+	public void setRules(Collection<ProgramRule> rules) {
+		Set<String> programs = new LinkedHashSet<String>();
+		Set<String> concepts = new LinkedHashSet<String>();
+		for (ProgramRule rule : rules) {
+			programs.add(rule.getProgramUuid());
+			concepts.addAll(rule.getQuestionConceptUuids());
+			if (rule.getCompletionStateConceptUuid() != null) {
+				concepts.add(rule.getCompletionStateConceptUuid());
+			}
+		}
+		programUuids = Collections.unmodifiableSet(programs);
+		conceptUuids = Collections.unmodifiableSet(concepts);
+		this.rules = rules;
+		invalidate();
+	}
+	
+	public LampMetadata getMetadata() {
+		LampMetadata current = metadata;
+		if (current != null) {
+			return current;
+		}
+		return refresh();
+	}
+	
+	/**
+	 * Builds a new snapshot and makes it current, unless the cache was invalidated while it was being built.
+	 */
+	public synchronized LampMetadata refresh() {
+		long buildGeneration = generation.get();
+		LampMetadata built = LampMetadata.build(Context.getProgramWorkflowService(), Context.getConceptService(),
+		    programUuids, conceptUuids);
+		if (generation.get() == buildGeneration) {
+			metadata = built;
+		}
+		return built;
+	}
+	
+	/**
+	 * Builds a new snapshot and checks that every program, workflow, state, concept and encounter type the rules refer to
+	 * exists, so that a misconfiguration is reported once rather than found out one save at a time. Loading the encounter
+	 * types and the answers of the questions along with the snapshot warms the second-level cache for the first saves.
+	 * The outcome is logged and published as the readiness of {@link LampMetrics}.
+	 * 
+	 * @return the problems found, empty if all the rules can be applied
+	 */
+	public synchronized List<String> validate() {
+		LampMetadata built = refresh();
+		EncounterService encounterService = Context.getEncounterService();
+		List<String> problems = new ArrayList<String>();
+		if (rules.isEmpty()) {
+			problems.add("No program rule is defined by the " + LampConfig.GP_PROGRAM_RULES_PREFIX + "* global properties");
+		}
+		for (ProgramRule rule : rules) {
+			for (String encounterTypeUuid : rule.getEncounterTypeUuids()) {
+				if (encounterService.getEncounterTypeByUuid(encounterTypeUuid) == null) {
+					problems.add(rule + ": the encounter type " + encounterTypeUuid + " does not exist");
+				}
+			}
+			for (String questionConceptUuid : rule.getQuestionConceptUuids()) {
+				Concept question = built.getConcept(questionConceptUuid);
+				if (question != null) {
+					for (ConceptAnswer answer : question.getAnswers()) {
+						answer.getAnswerConcept().getUuid();
+					}
+				}
+			}
+			problems.addAll(built.getProblems(rule));
+		}
+		
+		for (String problem : problems) {
+			log.error("Invalid LAMP metadata, " + problem);
+		}
+		if (problems.isEmpty()) {
+			log.info("Validated the metadata of " + rules.size() + " program rules");
+		}
+		Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class).recordMetadataValidation(problems);
+		return problems;
+	}
+	
+	public void invalidate() {
+		generation.incrementAndGet();
+		metadata = null;
+	}
+	
+	/**
+	 * @return true if the concept is part of the current snapshot, or if there is no current snapshot to tell
+	 */
+	public boolean isTrackedConcept(String conceptUuid) {
+		LampMetadata current = metadata;
+		return current == null || current.isTrackedConcept(conceptUuid);
+	}
+}
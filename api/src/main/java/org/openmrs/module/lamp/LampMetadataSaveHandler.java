@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.Date;
+
+import org.openmrs.Concept;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Program;
+import org.openmrs.User;
+import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.handler.SaveHandler;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Invalidates the {@link LampMetadataCache} when a program or a concept it holds is saved. The cache is invalidated
+ * again once the transaction completes so that a snapshot rebuilt in the meantime does not outlive the change.
+ */
+@Handler(supports = { Program.class, Concept.class })
+public class LampMetadataSaveHandler implements SaveHandler<OpenmrsObject> {
+	
+	@Override
+	public void handle(OpenmrsObject object, User currentUser, Date currentDate, String reason) {
+		final LampMetadataCache cache = Context.getRegisteredComponent("lamp.LampMetadataCache", LampMetadataCache.class);
+		if (object instanceof Concept && !cache.isTrackedConcept(object.getUuid())) {
+			return;
+		}
+		
+		cache.invalidate();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCompletion(int status) {
+					cache.invalidate();
+				}
+			});
+		}
+	}
+}
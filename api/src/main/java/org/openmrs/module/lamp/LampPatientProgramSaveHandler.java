@@ -0,0 +1,70 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.openmrs.PatientProgram;
+import org.openmrs.User;
+import org.openmrs.annotation.Handler;
+import org.openmrs.api.handler.SaveHandler;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Evicts the entries of the {@link EnrollmentCache} a save of an enrollment may invalidate, and keeps the completion due
+ * date of the enrollment in line with it, whoever saves it. The due date is updated just before the saving transaction
+ * commits, so that new enrollments have their id and the enrollments saved several times are updated once.
+ */
+@Handler(supports = PatientProgram.class)
+public class LampPatientProgramSaveHandler implements SaveHandler<PatientProgram> {
+	
+	@Override
+	public void handle(PatientProgram patientProgram, User currentUser, Date currentDate, String reason) {
+		EnrollmentCache.evict(patientProgram);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			Utils.updateCompletionDue(patientProgram);
+			return;
+		}
+		getPendingCompletionDues().patientPrograms.add(patientProgram);
+	}
+	
+	private static PendingCompletionDues getPendingCompletionDues() {
+		// Only the synchronizations of the current transaction, not those of a transaction it suspended
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			if (synchronization instanceof PendingCompletionDues) {
+				return (PendingCompletionDues) synchronization;
+			}
+		}
+		PendingCompletionDues pending = new PendingCompletionDues();
+		TransactionSynchronizationManager.registerSynchronization(pending);
+		return pending;
+	}
+	
+	/**
+	 * The enrollments saved in the current transaction.
+	 */
+	private static class PendingCompletionDues extends TransactionSynchronizationAdapter {
+		
+		private final Set<PatientProgram> patientPrograms = Collections
+		        .newSetFromMap(new IdentityHashMap<PatientProgram, Boolean>());
+		
+		@Override
+		public void beforeCommit(boolean readOnly) {
+			for (PatientProgram patientProgram : patientPrograms) {
+				Utils.updateCompletionDue(patientProgram);
+			}
+		}
+	}
+}
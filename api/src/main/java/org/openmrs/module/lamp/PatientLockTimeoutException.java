@@ -0,0 +1,25 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when the {@link PatientLocks} lock of a patient could not be acquired in time. It is thrown before anything of
+ * the programs of the patient was changed, so the program update can be retried once the lock is released.
+ */
+public class PatientLockTimeoutException extends APIException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public PatientLockTimeoutException(String message) {
+		super(message);
+	}
+}
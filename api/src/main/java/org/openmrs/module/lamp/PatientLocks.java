@@ -0,0 +1,123 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.OptimisticLockException;
+
+import org.hibernate.PessimisticLockException;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Striped locks that serialize the program updates of a patient within this node, while the encounters of other
+ * patients are processed in parallel. A lock taken within a transaction is held until the transaction completes, so that
+ * the encounters of a patient saved concurrently on this node wait for each other here rather than on row locks. They
+ * do not reach the other nodes: duplicate enrollments and transitions are prevented by the locking reads of the active
+ * enrollment and of its states in {@link org.openmrs.module.lamp.db.LampDao}, which also see what the previous
+ * transaction committed.
+ */
+@Component("lamp.PatientLocks")
+public class PatientLocks {
+	
+	static final int STRIPES = 256;
+	
+	/**
+	 * How long to wait for the lock of a patient, bounded so that two transactions each holding the stripe the other one
+	 * waits for give up rather than deadlock, their program updates being retried once the locks are released
+	 */
+	static final long TIMEOUT_SECONDS = 30;
+	
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+	
+	public PatientLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+	
+	/**
+	 * Locks the program updates of the patient until the current transaction completes. Unsaved patients are not locked
+	 * since no other thread can see them.
+	 * 
+	 * @return true if there is no transaction and the caller must {@link #unlock(Patient)} the patient itself
+	 * @throws PatientLockTimeoutException if the lock could not be acquired in time
+	 */
+	public boolean lock(Patient patient) {
+		if (patient == null || patient.getPatientId() == null) {
+			return false;
+		}
+		final ReentrantLock lock = getStripe(patient.getPatientId());
+		boolean transaction = TransactionSynchronizationManager.isSynchronizationActive();
+		if (transaction && lock.isHeldByCurrentThread()) {
+			// Already held until the end of this transaction, for this patient or another one of the stripe
+			return false;
+		}
+		
+		try {
+			if (!lock.tryLock(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new PatientLockTimeoutException(
+				        "Timed out waiting for the program updates of another encounter of patient " + patient.getPatientId());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting to update the programs of patient " + patient.getPatientId(),
+			        e);
+		}
+		
+		if (!transaction) {
+			return true;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCompletion(int status) {
+				lock.unlock();
+			}
+		});
+		return false;
+	}
+	
+	public void unlock(Patient patient) {
+		getStripe(patient.getPatientId()).unlock();
+	}
+	
+	/**
+	 * @return true if the program update failed because of a concurrent update of the patient, in which case it is worth
+	 *         retrying in a new transaction
+	 */
+	public static boolean isConflict(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof PatientLockTimeoutException || cause instanceof ConcurrencyFailureException
+			        || cause instanceof StaleStateException || cause instanceof OptimisticLockException
+			        || cause instanceof LockAcquisitionException || cause instanceof PessimisticLockException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	boolean isLocked(Patient patient) {
+		return getStripe(patient.getPatientId()).isLocked();
+	}
+	
+	private ReentrantLock getStripe(Integer patientId) {
+		return stripes[Math.floorMod(patientId, STRIPES)];
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.User;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+
+/**
+ * A program rule: the encounters of the rule encounter types move the patient to the state of the program workflow whose
+ * concept is the latest coded answer to the rule questions, and the enrollments are optionally completed a number of
+ * weeks after they start. Rules are defined by the {@code lamp.programRules.*} global properties, each holding
+ * semicolon separated settings such as
+ * 
+ * <pre>
+ * encounterTypes=uuid; questions=uuid,uuid; program=uuid; workflow=uuid; completionWeeks=18; completionState=uuid
+ * </pre>
+ * 
+ * When several questions are answered, the answer to the last question listed wins.
+ */
+public class ProgramRule implements ProgramStrategy {
+	
+	private final String name;
+	
+	private final String programUuid;
+	
+	private final String workflowUuid;
+	
+	private final Set<String> encounterTypeUuids;
+	
+	private final Set<String> questionConceptUuids;
+	
+	private final Integer completionWeeks;
+	
+	private final String completionStateConceptUuid;
+	
+	public ProgramRule(String name, String programUuid, String workflowUuid, Collection<String> encounterTypeUuids,
+	    List<String> questionConceptUuids, Integer completionWeeks, String completionStateConceptUuid) {
+		this.name = name;
+		this.programUuid = programUuid;
+		this.workflowUuid = workflowUuid;
+		this.encounterTypeUuids = Collections.unmodifiableSet(new LinkedHashSet<String>(encounterTypeUuids));
+		this.questionConceptUuids = Collections.unmodifiableSet(new LinkedHashSet<String>(questionConceptUuids));
+		this.completionWeeks = completionWeeks;
+		this.completionStateConceptUuid = completionStateConceptUuid;
+	}
+	
+	/**
+	 * Parses the definition of a rule.
+	 * 
+	 * @param name the name of the rule, the suffix of the global property that defines it
+	 * @throws IllegalArgumentException if a setting is unknown, missing or invalid
+	 */
+	public static ProgramRule parse(String name, String definition) {
+		Map<String, String> settings = new HashMap<String, String>();
+		for (String setting : StringUtils.split(definition, ';')) {
+			if (StringUtils.isBlank(setting)) {
+				continue;
+			}
+			String[] keyValue = StringUtils.split(setting, "=", 2);
+			if (keyValue.length != 2 || StringUtils.isBlank(keyValue[1])) {
+				throw new IllegalArgumentException("Invalid setting '" + setting.trim() + "' in program rule " + name);
+			}
+			settings.put(keyValue[0].trim(), keyValue[1].trim());
+		}
+		
+		String programUuid = getRequired(settings, "program", name);
+		String workflowUuid = getRequired(settings, "workflow", name);
+		List<String> encounterTypeUuids = splitList(getRequired(settings, "encounterTypes", name));
+		List<String> questionConceptUuids = splitList(getRequired(settings, "questions", name));
+		String completionStateConceptUuid = settings.remove("completionState");
+		String weeks = settings.remove("completionWeeks");
+		if (!settings.isEmpty()) {
+			throw new IllegalArgumentException("Unknown settings " + settings.keySet() + " in program rule " + name);
+		}
+		if ((weeks == null) != (completionStateConceptUuid == null)) {
+			throw new IllegalArgumentException("Program rule " + name
+			        + " must set both completionWeeks and completionState, or neither");
+		}
+		
+		Integer completionWeeks = null;
+		if (weeks != null) {
+			try {
+				completionWeeks = Integer.valueOf(weeks);
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid completionWeeks '" + weeks + "' in program rule " + name);
+			}
+			if (completionWeeks < 1) {
+				throw new IllegalArgumentException("Invalid completionWeeks '" + weeks + "' in program rule " + name);
+			}
+		}
+		return new ProgramRule(name, programUuid, workflowUuid, encounterTypeUuids, questionConceptUuids, completionWeeks,
+		        completionStateConceptUuid);
+	}
+	
+	private static String getRequired(Map<String, String> settings, String key, String name) {
+		String value = settings.remove(key);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing setting " + key + " in program rule " + name);
+		}
+		return value;
+	}
+	
+	private static List<String> splitList(String value) {
+		List<String> values = new ArrayList<String>();
+		for (String item : StringUtils.split(value, ',')) {
+			if (StringUtils.isNotBlank(item)) {
+				values.add(item.trim());
+			}
+		}
+		return values;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getProgramUuid() {
+		return programUuid;
+	}
+	
+	public String getWorkflowUuid() {
+		return workflowUuid;
+	}
+	
+	@Override
+	public Set<String> getEncounterTypeUuids() {
+		return encounterTypeUuids;
+	}
+	
+	/**
+	 * @return the question concept uuids, in the order of precedence of their answers
+	 */
+	@Override
+	public Set<String> getQuestionConceptUuids() {
+		return questionConceptUuids;
+	}
+	
+	/**
+	 * @return the number of weeks after which the enrollments are completed, null if they are not completed automatically
+	 */
+	public Integer getCompletionWeeks() {
+		return completionWeeks;
+	}
+	
+	/**
+	 * @return the uuid of the concept of the state the enrollments are completed with, null if they are not completed
+	 *         automatically
+	 */
+	public String getCompletionStateConceptUuid() {
+		return completionStateConceptUuid;
+	}
+	
+	/**
+	 * @return the settings of the rule, in the syntax {@link #parse(String, String)} reads
+	 */
+	@Override
+	public String getDefinition() {
+		String definition = "encounterTypes=" + StringUtils.join(encounterTypeUuids, ',') + "; questions="
+		        + StringUtils.join(questionConceptUuids, ',') + "; program=" + programUuid + "; workflow=" + workflowUuid;
+		if (completionWeeks != null) {
+			definition += "; completionWeeks=" + completionWeeks + "; completionState=" + completionStateConceptUuid;
+		}
+		return definition;
+	}
+	
+	@Override
+	public StrategyOutcome execute(Encounter encounter, Map<Integer, Concept> latestCodedValues, User currentUser,
+	        Date currentDate, String reason) {
+		LampMetadata metadata = Context.getRegisteredComponent("lamp.LampMetadataCache", LampMetadataCache.class)
+		        .getMetadata();
+		Program program = metadata.getProgram(programUuid);
+		if (program == null) {
+			return StrategyOutcome.MISSING_PROGRAM;
+		}
+		
+		ProgramWorkflowService programWorkflowService = Context.getProgramWorkflowService();
+		PatientProgram patientProgram = Utils.getOrCreateActiveProgramEnrollment(programWorkflowService,
+		    encounter.getPatient(), program, encounter.getEncounterDatetime());
+		Concept value = null;
+		for (String questionConceptUuid : questionConceptUuids) {
+			Concept question = metadata.getConcept(questionConceptUuid);
+			if (question == null) {
+				return StrategyOutcome.MISSING_CONCEPT;
+			}
+			Concept answer = latestCodedValues.get(question.getConceptId());
+			if (answer != null) {
+				value = answer;
+			}
+		}
+		
+		if (value == null) {
+			return StrategyOutcome.NO_VALUE;
+		}
+		
+		ProgramWorkflow programWorkflow = metadata.getWorkflow(programUuid, workflowUuid);
+		if (programWorkflow == null) {
+			return StrategyOutcome.MISSING_WORKFLOW;
+		}
+		
+		ProgramWorkflowState targetState = metadata.getStateByConcept(programWorkflow, value);
+		if (targetState == null) {
+			return StrategyOutcome.MISSING_STATE;
+		}
+		
+		// Encounters are not always saved in the order they happened, what matters is the state at the encounter datetime
+		PatientState patientState = Utils.getStateOn(patientProgram, programWorkflow, encounter.getEncounterDatetime());
+		if (patientState != null && Utils.isState(patientState, targetState)) {
+			return StrategyOutcome.UNCHANGED_STATE;
+		}
+		
+		Utils.updateProgram(patientProgram, encounter, targetState);
+		patientProgram.setLocation(encounter.getLocation());
+		programWorkflowService.savePatientProgram(patientProgram);
+		LampMetrics.recordDbCall();
+		return StrategyOutcome.TRANSITIONED;
+	}
+	
+	@Override
+	public String toString() {
+		return "program rule " + name;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the {@link ProgramRule}s defined by the {@code lamp.programRules.*} global properties. The rules are loaded when
+ * the module starts and reloaded whenever one of these global properties changes, and each load rebuilds the dispatch
+ * table of the {@link ProgramStrategyDispatcher} and the metadata snapshot of the {@link LampMetadataCache}.
+ */
+@Component("lamp.ProgramRules")
+public class ProgramRules implements GlobalPropertyListener {
+	
+	private static final Log log = LogFactory.getLog(ProgramRules.class);
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStrategyDispatcher")
+	private ProgramStrategyDispatcher dispatcher;
+	
+	@Autowired
+	@Qualifier("lamp.LampMetadataCache")
+	private LampMetadataCache metadataCache;
+	
+	private volatile List<ProgramRule> rules = Collections.emptyList();
+	
+	/**
+	 * @return the current rules, in the order of their global properties
+	 */
+	public List<ProgramRule> getRules() {
+		return rules;
+	}
+	
+	/**
+	 * @return the rules that complete the enrollments of their program, the first of them for each program
+	 */
+	public List<ProgramRule> getCompletionRules() {
+		Map<String, ProgramRule> completionRules = new LinkedHashMap<String, ProgramRule>();
+		for (ProgramRule rule : rules) {
+			if (rule.getCompletionWeeks() != null && !completionRules.containsKey(rule.getProgramUuid())) {
+				completionRules.put(rule.getProgramUuid(), rule);
+			}
+		}
+		return new ArrayList<ProgramRule>(completionRules.values());
+	}
+	
+	/**
+	 * @return the rule that completes the enrollments in the given program, or null if there is none
+	 */
+	public ProgramRule getCompletionRule(String programUuid) {
+		for (ProgramRule rule : getCompletionRules()) {
+			if (rule.getProgramUuid().equals(programUuid)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Loads the rules from the global properties. A rule that cannot be parsed is logged and left out, so that an editing
+	 * mistake in one rule does not disable the others. When the completion settings change, the completion due dates of
+	 * the existing enrollments are recomputed by the next run of the task.
+	 */
+	public void reload() {
+		List<ProgramRule> loaded = new ArrayList<ProgramRule>();
+		for (GlobalProperty globalProperty : Context.getAdministrationService().getGlobalPropertiesByPrefix(
+		    LampConfig.GP_PROGRAM_RULES_PREFIX)) {
+			if (StringUtils.isBlank(globalProperty.getPropertyValue())) {
+				continue;
+			}
+			String name = globalProperty.getProperty().substring(LampConfig.GP_PROGRAM_RULES_PREFIX.length());
+			try {
+				loaded.add(ProgramRule.parse(name, globalProperty.getPropertyValue()));
+			}
+			catch (IllegalArgumentException e) {
+				log.error("Ignoring the program rule " + globalProperty.getProperty() + ": " + e.getMessage());
+			}
+		}
+		Map<String, Integer> previousCompletionWeeks = rules.isEmpty() ? null : getCompletionWeeksByProgram();
+		setRules(loaded);
+		log.info("Loaded " + loaded.size() + " program rules");
+		
+		if (previousCompletionWeeks != null && !previousCompletionWeeks.equals(getCompletionWeeksByProgram())) {
+			Context.getAdministrationService().setGlobalProperty(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED,
+			    "false");
+			Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class).wakeUp();
+		}
+	}
+	
+	private Map<String, Integer> getCompletionWeeksByProgram() {
+		Map<String, Integer> completionWeeks = new HashMap<String, Integer>();
+		for (ProgramRule rule : getCompletionRules()) {
+			completionWeeks.put(rule.getProgramUuid(), rule.getCompletionWeeks());
+		}
+		return completionWeeks;
+	}
+	
+	public void setRules(Collection<ProgramRule> rules) {
+		List<ProgramRule> current = Collections.unmodifiableList(new ArrayList<ProgramRule>(rules));
+		this.rules = current;
+		metadataCache.setRules(current);
+		dispatcher.setStrategies(new ArrayList<ProgramStrategy>(current));
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(LampConfig.GP_PROGRAM_RULES_PREFIX);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		reload();
+		metadataCache.validate();
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		reload();
+		metadataCache.validate();
+	}
+}
@@ -1,10 +1,41 @@
 package org.openmrs.module.lamp;
 
 import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.User;
 
 public interface ProgramStrategy {
 	
-	void execute(Encounter encounter, User currentUser, Date currentDate, String reason);
+	/**
+	 * @return the uuid of the program this strategy updates
+	 */
+	String getProgramUuid();
+	
+	/**
+	 * @return the uuids of the encounter types this strategy handles, used to dispatch encounters to it
+	 */
+	Set<String> getEncounterTypeUuids();
+	
+	/**
+	 * @return the uuids of the coded questions whose latest values this strategy reads from the encounter
+	 */
+	Set<String> getQuestionConceptUuids();
+	
+	/**
+	 * @return the settings the outcome of this strategy depends on besides the encounter, part of the fingerprint of the
+	 *         encounters it processed so that they are processed again once the settings change
+	 */
+	String getDefinition();
+	
+	/**
+	 * @param latestCodedValues the latest coded values of the encounter, keyed by question concept id, extracted once for
+	 *            all the strategies handling the encounter
+	 * @return the transition applied or the reason no transition was applied
+	 */
+	StrategyOutcome execute(Encounter encounter, Map<Integer, Concept> latestCodedValues, User currentUser, Date currentDate,
+	        String reason);
 }
@@ -0,0 +1,224 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Program;
+import org.openmrs.User;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Dispatch table of the {@link ProgramStrategy} instances, the {@link ProgramRule}s loaded by {@link ProgramRules}, keyed
+ * by the encounter type uuids they declare, so that encounters of unrelated types are discarded with a single lookup.
+ * The coded values the strategies of an encounter type read are extracted once per encounter and shared between them,
+ * and the strategies run under the {@link PatientLocks} lock of the patient. The saves of an encounter whose fingerprint
+ * is that of the version last processed are skipped.
+ */
+@Component("lamp.ProgramStrategyDispatcher")
+public class ProgramStrategyDispatcher {
+	
+	@Autowired
+	@Qualifier("lamp.LampMetadataCache")
+	private LampMetadataCache metadataCache;
+	
+	@Autowired
+	@Qualifier("lamp.LampMetrics")
+	private LampMetrics metrics;
+	
+	@Autowired
+	@Qualifier("lamp.PatientLocks")
+	private PatientLocks patientLocks;
+	
+	@Autowired
+	@Qualifier("lamp.LampDao")
+	private LampDao dao;
+	
+	private volatile DispatchTable table = new DispatchTable(Collections.<String, List<ProgramStrategy>> emptyMap(),
+	        Collections.<String, Set<String>> emptyMap(), Collections.<String, String> emptyMap());
+	
+	/**
+	 * Replaces the dispatch table, the encounters being dispatched keep using the table they started with.
+	 */
+	public void setStrategies(List<ProgramStrategy> strategies) {
+		Map<String, List<ProgramStrategy>> index = new HashMap<String, List<ProgramStrategy>>();
+		Map<String, Set<String>> questionIndex = new HashMap<String, Set<String>>();
+		Map<String, String> definitionIndex = new HashMap<String, String>();
+		for (ProgramStrategy strategy : strategies) {
+			for (String encounterTypeUuid : strategy.getEncounterTypeUuids()) {
+				List<ProgramStrategy> forType = index.get(encounterTypeUuid);
+				Set<String> questionsForType = questionIndex.get(encounterTypeUuid);
+				if (forType == null) {
+					forType = new ArrayList<ProgramStrategy>();
+					index.put(encounterTypeUuid, forType);
+					questionsForType = new LinkedHashSet<String>();
+					questionIndex.put(encounterTypeUuid, questionsForType);
+				}
+				forType.add(strategy);
+				questionsForType.addAll(strategy.getQuestionConceptUuids());
+				String definitions = definitionIndex.get(encounterTypeUuid);
+				definitionIndex.put(encounterTypeUuid, definitions == null ? strategy.getDefinition() : definitions + '\n'
+				        + strategy.getDefinition());
+			}
+		}
+		table = new DispatchTable(index, questionIndex, definitionIndex);
+	}
+	
+	/**
+	 * @return the strategies handling the encounter, or null if there are none
+	 */
+	public List<ProgramStrategy> getStrategies(Encounter encounter) {
+		return table.getStrategies(encounter);
+	}
+	
+	/**
+	 * @return true if strategies handle the encounters of the given type
+	 */
+	public boolean handles(String encounterTypeUuid) {
+		return table.strategiesByEncounterType.containsKey(encounterTypeUuid);
+	}
+	
+	public void dispatch(Encounter encounter, User currentUser, Date currentDate, String reason) {
+		DispatchTable current = table;
+		List<ProgramStrategy> strategies = current.getStrategies(encounter);
+		if (strategies == null) {
+			return;
+		}
+		
+		LampMetadata metadata = metadataCache.getMetadata();
+		String encounterTypeUuid = encounter.getEncounterType().getUuid();
+		List<Concept> questionConcepts = getQuestionConcepts(metadata,
+		    current.questionConceptUuidsByEncounterType.get(encounterTypeUuid));
+		Map<Integer, Concept> latestCodedValues = Utils.findLatestCodedObsValues(encounter, questionConcepts);
+		Patient patient = encounter.getPatient();
+		boolean unlock = patientLocks.lock(patient);
+		metrics.beginSave();
+		try {
+			String fingerprint = null;
+			if (encounter.getEncounterId() != null) {
+				// Most saves of an existing encounter are edits of obs the strategies do not read
+				fingerprint = getFingerprint(encounter, current.definitionsByEncounterType.get(encounterTypeUuid),
+				    questionConcepts, latestCodedValues);
+				LampMetrics.recordDbCall();
+				if (fingerprint.equals(dao.getEncounterFingerprint(encounter.getEncounterId()))) {
+					metrics.recordUnchangedEncounter();
+					return;
+				}
+			}
+			
+			boolean processed = true;
+			for (ProgramStrategy strategy : strategies) {
+				long start = System.nanoTime();
+				StrategyOutcome outcome = strategy.execute(encounter, latestCodedValues, currentUser, currentDate, reason);
+				metrics.recordStrategyExecution(getProgramName(metadata, strategy), outcome, System.nanoTime() - start);
+				processed &= outcome == StrategyOutcome.TRANSITIONED || outcome == StrategyOutcome.UNCHANGED_STATE
+				        || outcome == StrategyOutcome.NO_VALUE;
+			}
+			// Encounters stopped short by missing metadata are processed again on their next save
+			if (fingerprint != null && processed) {
+				LampMetrics.recordDbCall();
+				dao.saveEncounterFingerprint(encounter.getEncounterId(), fingerprint);
+			}
+		}
+		finally {
+			metrics.endSave();
+			if (unlock) {
+				patientLocks.unlock(patient);
+			}
+		}
+	}
+	
+	private List<Concept> getQuestionConcepts(LampMetadata metadata, Set<String> questionConceptUuids) {
+		List<Concept> questionConcepts = new ArrayList<Concept>();
+		for (String conceptUuid : questionConceptUuids) {
+			Concept concept = metadata.getConcept(conceptUuid);
+			if (concept != null) {
+				questionConcepts.add(concept);
+			}
+		}
+		return questionConcepts;
+	}
+	
+	/**
+	 * Digests what the outcome of the strategies depends on: the patient, datetime and location of the encounter, the
+	 * latest coded values of the questions the strategies read and the definitions of the strategies.
+	 */
+	private String getFingerprint(Encounter encounter, String definitions, List<Concept> questionConcepts,
+	        Map<Integer, Concept> latestCodedValues) {
+		StringBuilder content = new StringBuilder(definitions);
+		content.append('\n').append(encounter.getPatient() != null ? encounter.getPatient().getPatientId() : null);
+		content.append('\n').append(encounter.getEncounterDatetime() != null ? encounter.getEncounterDatetime().getTime()
+		        : null);
+		content.append('\n').append(encounter.getLocation() != null ? encounter.getLocation().getLocationId() : null);
+		content.append('\n').append(encounter.getVoided());
+		for (Concept question : questionConcepts) {
+			Concept answer = latestCodedValues.get(question.getConceptId());
+			content.append('\n').append(question.getUuid()).append('=').append(answer != null ? answer.getUuid() : null);
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+			return String.format("%064x", new BigInteger(1, digest));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private String getProgramName(LampMetadata metadata, ProgramStrategy strategy) {
+		Program program = metadata.getProgram(strategy.getProgramUuid());
+		return program != null ? program.getName() : strategy.getProgramUuid();
+	}
+	
+	private static class DispatchTable {
+		
+		private final Map<String, List<ProgramStrategy>> strategiesByEncounterType;
+		
+		private final Map<String, Set<String>> questionConceptUuidsByEncounterType;
+		
+		private final Map<String, String> definitionsByEncounterType;
+		
+		DispatchTable(Map<String, List<ProgramStrategy>> strategiesByEncounterType,
+		    Map<String, Set<String>> questionConceptUuidsByEncounterType, Map<String, String> definitionsByEncounterType) {
+			this.strategiesByEncounterType = strategiesByEncounterType;
+			this.questionConceptUuidsByEncounterType = questionConceptUuidsByEncounterType;
+			this.definitionsByEncounterType = definitionsByEncounterType;
+		}
+		
+		List<ProgramStrategy> getStrategies(Encounter encounter) {
+			if (encounter == null) {
+				return null;
+			}
+			EncounterType encounterType = encounter.getEncounterType();
+			if (encounterType == null) {
+				return null;
+			}
+			return strategiesByEncounterType.get(encounterType.getUuid());
+		}
+	}
+}
@@ -1,6 +1,15 @@
 package org.openmrs.module.lamp;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Hibernate;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
@@ -11,48 +20,154 @@ import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
 import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
 
 public class Utils {
 	
 	public static PatientProgram getOrCreateActiveProgramEnrollment(ProgramWorkflowService programWorkflowService,
 	        Patient patient, Program program, Date enrolledOn) {
-		PatientProgram activePatientProgram = getActiveProgramEnrollment(programWorkflowService, patient, program);
+		PatientProgram activePatientProgram = getActiveProgramEnrollment(patient, program);
 		if (activePatientProgram != null) {
+			if (enrolledOn != null && activePatientProgram.getDateEnrolled() != null
+			        && enrolledOn.before(activePatientProgram.getDateEnrolled())) {
+				// An earlier encounter synced after the one that enrolled the patient
+				activePatientProgram.setDateEnrolled(enrolledOn);
+				// Which also moves its completion due date, see LampPatientProgramSaveHandler
+				programWorkflowService.savePatientProgram(activePatientProgram);
+				LampMetrics.recordDbCall();
+			}
 			return activePatientProgram;
 		}
 		PatientProgram patientProgram = new PatientProgram();
 		patientProgram.setPatient(patient);
 		patientProgram.setProgram(program);
 		patientProgram.setDateEnrolled(enrolledOn);
-		return programWorkflowService.savePatientProgram(patientProgram);
+		patientProgram = programWorkflowService.savePatientProgram(patientProgram);
+		LampMetrics.recordDbCall();
+		EnrollmentCache.put(patientProgram);
+		return patientProgram;
 	}
 	
-	public static PatientProgram getActiveProgramEnrollment(ProgramWorkflowService programWorkflowService, Patient patient,
-	        Program program) {
-		for (PatientProgram patientProgram : programWorkflowService.getPatientPrograms(patient, program, null, null, null,
-		    null, false)) {
-			if (patientProgram.getDateCompleted() == null && patientProgram.getVoided().equals(Boolean.FALSE)) {
-				return patientProgram;
+	/**
+	 * Records the date at which the enrollment is due for completion if it is active, enrolled on a known date and in a
+	 * program whose enrollments are completed automatically, and removes the date recorded for it otherwise. Nothing is
+	 * written if the recorded date is already the right one.
+	 */
+	public static void updateCompletionDue(PatientProgram patientProgram) {
+		Program program = patientProgram.getProgram();
+		if (patientProgram.getPatientProgramId() == null || program == null) {
+			return;
+		}
+		Date dueDate = null;
+		Integer completionWeeks = getCompletionWeeks(program);
+		if (completionWeeks != null && patientProgram.getDateEnrolled() != null
+		        && patientProgram.getDateCompleted() == null && !patientProgram.getVoided()) {
+			dueDate = getCompletionDueDate(patientProgram.getDateEnrolled(), completionWeeks);
+		}
+		
+		LampDao dao = Context.getRegisteredComponent("lamp.LampDao", LampDao.class);
+		LampMetrics.recordDbCall();
+		Date recordedDueDate = dao.getCompletionDueDate(patientProgram.getPatientProgramId());
+		if (dueDate == null) {
+			if (recordedDueDate != null) {
+				LampMetrics.recordDbCall();
+				dao.deleteCompletionDue(Collections.singleton(patientProgram.getPatientProgramId()));
 			}
+			return;
 		}
-		return null;
+		// The due date column has no fractional seconds
+		if (recordedDueDate != null && Math.abs(recordedDueDate.getTime() - dueDate.getTime()) < 1000) {
+			return;
+		}
+		LampMetrics.recordDbCall();
+		dao.saveCompletionDue(patientProgram.getPatientProgramId(), program.getProgramId(), dueDate);
+		// Back-dated enrollments can be due before the next scheduled run of the task
+		Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class).wakeUpBy(dueDate);
+	}
+	
+	/**
+	 * @return the number of weeks after which enrollments in the program are automatically completed, or null if they
+	 *         are not
+	 */
+	public static Integer getCompletionWeeks(Program program) {
+		ProgramRule rule = Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class).getCompletionRule(
+		    program.getUuid());
+		return rule == null ? null : rule.getCompletionWeeks();
+	}
+	
+	public static Date getCompletionDueDate(Date enrolledOn, int completionWeeks) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(enrolledOn);
+		cal.add(Calendar.WEEK_OF_YEAR, completionWeeks);
+		return cal.getTime();
+	}
+	
+	/**
+	 * Looks up the single non-voided, uncompleted enrollment of the patient in the program with an indexed query rather
+	 * than loading the whole enrollment history of the patient, once per transaction thanks to the
+	 * {@link EnrollmentCache}.
+	 */
+	public static PatientProgram getActiveProgramEnrollment(Patient patient, Program program) {
+		if (patient.getPatientId() == null || program.getProgramId() == null) {
+			// Unsaved patients and programs have no enrollments yet
+			return null;
+		}
+		return EnrollmentCache.getActiveEnrollment(patient, program, () -> {
+			LampMetrics.recordDbCall();
+			return Context.getRegisteredComponent("lamp.LampDao", LampDao.class).getActivePatientProgram(patient, program);
+		});
 	}
 	
 	public static Concept findLatestCodedObsValue(Encounter encounter, Concept questionConcept) {
-		Concept result = null;
-		Date latest = null;
-		for (Obs obs : encounter.getAllObs(false)) {
-			if (questionConcept.equals(obs.getConcept()) && obs.getValueCoded() != null) {
+		return findLatestCodedObsValues(encounter, Collections.singleton(questionConcept)).get(
+		    questionConcept.getConceptId());
+	}
+	
+	/**
+	 * Extracts the latest coded value of each of the given questions in a single pass over the obs of the encounter,
+	 * including the members of obs groups.
+	 * 
+	 * @return the latest coded values keyed by question concept id, questions with no coded value are left out
+	 */
+	public static Map<Integer, Concept> findLatestCodedObsValues(Encounter encounter,
+	        Collection<Concept> questionConcepts) {
+		Map<Integer, Obs> latestObs = new HashMap<Integer, Obs>();
+		if (!questionConcepts.isEmpty()) {
+			// The voided obs are skipped here rather than by getAllObs(false), which copies the obs into a new set
+			for (Obs obs : encounter.getAllObs(true)) {
+				if (obs.getVoided() || obs.getValueCoded() == null || obs.getConcept() == null
+				        || !containsConcept(questionConcepts, obs.getConcept().getConceptId())) {
+					continue;
+				}
+				Integer conceptId = obs.getConcept().getConceptId();
+				Obs latest = latestObs.get(conceptId);
 				Date obsDate = obs.getObsDatetime();
-				if (latest == null || (obsDate != null && obsDate.after(latest))) {
-					latest = obsDate;
-					result = obs.getValueCoded();
+				if (latest == null || latest.getObsDatetime() == null
+				        || (obsDate != null && obsDate.after(latest.getObsDatetime()))) {
+					latestObs.put(conceptId, obs);
 				}
 			}
 		}
+		
+		Map<Integer, Concept> result = new HashMap<Integer, Concept>();
+		for (Map.Entry<Integer, Obs> entry : latestObs.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getValueCoded());
+		}
 		return result;
 	}
 	
+	private static boolean containsConcept(Collection<Concept> concepts, Integer conceptId) {
+		for (Concept concept : concepts) {
+			if (concept.getConceptId() != null && concept.getConceptId().equals(conceptId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public static ProgramWorkflow getWorkflowByUuid(Program program, String workflowUuid) {
 		for (ProgramWorkflow programWorkflow : program.getWorkflows()) {
 			if (programWorkflow != null && workflowUuid.equals(programWorkflow.getUuid())) {
@@ -71,13 +186,182 @@ public class Utils {
 		return null;
 	}
 	
+	/**
+	 * Returns the non-voided state of the workflow the patient was in at the given date, in a single pass over the states
+	 * of the enrollment in the workflow.
+	 * 
+	 * @return the state, null if the patient was in no state of the workflow at that date
+	 */
+	public static PatientState getStateOn(PatientProgram patientProgram, ProgramWorkflow programWorkflow, Date date) {
+		PatientState stateOn = null;
+		for (PatientState ps : getStatesInWorkflow(patientProgram, programWorkflow)) {
+			if (startsOnOrBefore(ps, date) && (stateOn == null || startsOnOrBefore(stateOn, ps.getStartDate()))) {
+				stateOn = ps;
+			}
+		}
+		return stateOn != null && (stateOn.getEndDate() == null || stateOn.getEndDate().after(date)) ? stateOn : null;
+	}
+	
+	/**
+	 * Moves the patient to the target state at the encounter datetime. Encounters synced from devices are saved out of
+	 * order, so when a state of the workflow starts after the encounter datetime the target state is inserted in the
+	 * timeline up to the start of that next state rather than appended, or the next state is moved back to the encounter
+	 * datetime if it is the target state. Whichever way the timeline changes, the enrollment is completed at the start of
+	 * the latest state of the workflow if that state is terminal, and no longer completed if the terminal state it was
+	 * completed by is corrected or followed by another state. The cost is a single pass over the states of the enrollment
+	 * in the workflow.
+	 */
 	public static void updateProgram(PatientProgram patientProgram, Encounter encounter, ProgramWorkflowState targetState) {
-		for (PatientState ps : patientProgram.getStates()) {
-			if (ps.getActive() && ps.getState().getProgramWorkflow().equals(targetState.getProgramWorkflow())) {
-				ps.setEndDate(encounter.getEncounterDatetime());
+		ProgramWorkflow programWorkflow = targetState.getProgramWorkflow();
+		Date date = encounter.getEncounterDatetime();
+		List<PatientState> states = getStatesInWorkflow(patientProgram, programWorkflow);
+		PatientState previous = null;
+		PatientState next = null;
+		PatientState latest = null;
+		for (PatientState ps : states) {
+			if (startsOnOrBefore(ps, date)) {
+				if (previous == null || startsOnOrBefore(previous, ps.getStartDate())) {
+					previous = ps;
+				}
+			} else if (next == null || ps.getStartDate().before(next.getStartDate())) {
+				next = ps;
+			}
+			if (latest == null || isLater(ps, latest)) {
+				latest = ps;
 			}
 		}
+		boolean completedByLatest = isTerminal(latest)
+		        && isSameTime(patientProgram.getDateCompleted(), latest.getStartDate());
 		
-		patientProgram.transitionToState(targetState, encounter.getEncounterDatetime());
+		PatientState added = null;
+		if (previous != null && isSameTime(previous.getStartDate(), date)) {
+			// A corrected encounter of the same datetime
+			previous.setState(targetState);
+		} else if (next == null || date == null) {
+			for (PatientState ps : states) {
+				if (ps.getActive()) {
+					ps.setEndDate(date);
+				}
+			}
+			added = addState(patientProgram, targetState, date, null);
+		} else {
+			if (previous != null && (previous.getEndDate() == null || previous.getEndDate().after(date))) {
+				previous.setEndDate(date);
+			}
+			if (isState(next, targetState)) {
+				next.setStartDate(date);
+			} else {
+				added = addState(patientProgram, targetState, date, next.getStartDate());
+			}
+		}
+		
+		if (added != null && (latest == null || isLater(added, latest))) {
+			latest = added;
+		}
+		if (isTerminal(latest)) {
+			patientProgram.setDateCompleted(latest.getStartDate());
+		} else if (completedByLatest) {
+			patientProgram.setDateCompleted(null);
+		}
+	}
+	
+	private static boolean isTerminal(PatientState patientState) {
+		return patientState != null && Boolean.TRUE.equals(patientState.getState().getTerminal());
+	}
+	
+	/**
+	 * @return true if the patient state starts after the other one, or at the same time but ends later
+	 */
+	private static boolean isLater(PatientState patientState, PatientState other) {
+		if (patientState.getStartDate() == null || other.getStartDate() == null) {
+			return patientState.getStartDate() != null;
+		}
+		if (isSameTime(patientState.getStartDate(), other.getStartDate())) {
+			return other.getEndDate() != null
+			        && (patientState.getEndDate() == null || patientState.getEndDate().after(other.getEndDate()));
+		}
+		return patientState.getStartDate().after(other.getStartDate());
+	}
+	
+	private static boolean isSameTime(Date date, Date other) {
+		return date != null && other != null && date.getTime() == other.getTime();
+	}
+	
+	/**
+	 * Adds a state to the enrollment without loading its state history, which
+	 * {@link PatientProgram#transitionToState(ProgramWorkflowState, Date)} walks along with the workflow of each state.
+	 * Unless the states of the enrollment are already loaded, the new state is saved on its own rather than added to
+	 * them.
+	 */
+	public static PatientState addState(PatientProgram patientProgram, ProgramWorkflowState state, Date startDate,
+	        Date endDate) {
+		PatientState patientState = new PatientState();
+		patientState.setPatientProgram(patientProgram);
+		patientState.setState(state);
+		patientState.setStartDate(startDate);
+		patientState.setEndDate(endDate);
+		if (patientProgram.getPatientProgramId() != null && !Hibernate.isInitialized(patientProgram.getStates())) {
+			LampMetrics.recordDbCall();
+			Context.getRegisteredComponent("lamp.LampDao", LampDao.class).savePatientState(patientState);
+		} else {
+			patientProgram.getStates().add(patientState);
+		}
+		return patientState;
+	}
+	
+	/**
+	 * Returns the non-voided states of the enrollment in the workflow. Unless the states of the enrollment are already
+	 * loaded, they are queried along with their workflow states rather than loaded with the whole state history of the
+	 * enrollment, whose workflow states and workflows would then be loaded one at a time.
+	 */
+	private static List<PatientState> getStatesInWorkflow(PatientProgram patientProgram, ProgramWorkflow programWorkflow) {
+		if (patientProgram.getPatientProgramId() != null && !Hibernate.isInitialized(patientProgram.getStates())) {
+			LampMetrics.recordDbCall();
+			return Context.getRegisteredComponent("lamp.LampDao", LampDao.class).getPatientStates(patientProgram,
+			    programWorkflow);
+		}
+		List<PatientState> states = new ArrayList<PatientState>();
+		for (PatientState ps : patientProgram.getStates()) {
+			if (isInWorkflow(ps, programWorkflow)) {
+				states.add(ps);
+			}
+		}
+		return states;
+	}
+	
+	/**
+	 * @return true if the patient state is of the given workflow state, compared by id since the workflow states of the
+	 *         metadata cache are loaded by another session, or by concept for workflow states not saved yet
+	 */
+	public static boolean isState(PatientState patientState, ProgramWorkflowState state) {
+		if (patientState.getState() == null) {
+			return false;
+		}
+		Integer id = patientState.getState().getProgramWorkflowStateId();
+		if (id != null && state.getProgramWorkflowStateId() != null) {
+			return id.equals(state.getProgramWorkflowStateId());
+		}
+		return patientState.getState().getConcept().getUuid().equals(state.getConcept().getUuid());
+	}
+	
+	/**
+	 * Compares the workflows by id, which reads the id of a workflow proxy without loading it.
+	 */
+	private static boolean isInWorkflow(PatientState patientState, ProgramWorkflow programWorkflow) {
+		if (patientState.getVoided() || patientState.getState() == null) {
+			return false;
+		}
+		ProgramWorkflow workflow = patientState.getState().getProgramWorkflow();
+		if (workflow != null && workflow.getProgramWorkflowId() != null && programWorkflow.getProgramWorkflowId() != null) {
+			return workflow.getProgramWorkflowId().equals(programWorkflow.getProgramWorkflowId());
+		}
+		return programWorkflow.equals(workflow);
+	}
+	
+	/**
+	 * States without a start date are taken as started at the enrollment, before any other state
+	 */
+	private static boolean startsOnOrBefore(PatientState patientState, Date date) {
+		return patientState.getStartDate() == null || (date != null && !patientState.getStartDate().after(date));
 	}
 }
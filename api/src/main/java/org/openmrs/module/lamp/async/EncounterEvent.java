@@ -0,0 +1,59 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.async;
+
+import org.openmrs.Encounter;
+
+/**
+ * A saved encounter waiting for its program states to be processed.
+ */
+public class EncounterEvent {
+	
+	private final String encounterUuid;
+	
+	private final String encounterTypeUuid;
+	
+	private final Integer patientId;
+	
+	public EncounterEvent(String encounterUuid, String encounterTypeUuid) {
+		this(encounterUuid, encounterTypeUuid, null);
+	}
+	
+	public EncounterEvent(String encounterUuid, String encounterTypeUuid, Integer patientId) {
+		this.encounterUuid = encounterUuid;
+		this.encounterTypeUuid = encounterTypeUuid;
+		this.patientId = patientId;
+	}
+	
+	public static EncounterEvent of(Encounter encounter) {
+		return new EncounterEvent(encounter.getUuid(), encounter.getEncounterType().getUuid(),
+		        encounter.getPatient() != null ? encounter.getPatient().getPatientId() : null);
+	}
+	
+	public String getEncounterUuid() {
+		return encounterUuid;
+	}
+	
+	public String getEncounterTypeUuid() {
+		return encounterTypeUuid;
+	}
+	
+	/**
+	 * @return the id of the patient of the encounter, null for the events read back from the dead letter table
+	 */
+	public Integer getPatientId() {
+		return patientId;
+	}
+	
+	@Override
+	public String toString() {
+		return "encounter " + encounterUuid + " of type " + encounterTypeUuid;
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.async;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Delivers the events of the encounters created or updated to their subscribers.
+ */
+public interface EncounterEventBroker {
+	
+	/**
+	 * Subscribes the listener to the events of the encounters whose type is accepted by the filter, the events of the
+	 * other encounters are not delivered to it.
+	 * 
+	 * @param encounterTypeFilter tests the uuid of the encounter type, evaluated for each event
+	 */
+	void subscribe(Predicate<String> encounterTypeFilter, Consumer<EncounterEvent> listener);
+	
+	void unsubscribe(Consumer<EncounterEvent> listener);
+}
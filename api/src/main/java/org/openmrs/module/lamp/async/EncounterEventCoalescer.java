@@ -0,0 +1,229 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.async;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Subscribes to the events of the encounters of the types the program strategies handle, and coalesces the events of
+ * each patient before they are handed to the {@link ProgramStateQueue}. The events of a patient are held until no other
+ * event of the patient was received for the debounce window, or for at most the maximum delay after the first of them,
+ * and the repeated events of an encounter are queued once: the autosaves, submission and corrections of a form become a
+ * single strategy run on the latest version of its encounter. As the encounter type filter of the subscription reads the
+ * current dispatch table, the subscription follows the reloads of the program rules.
+ */
+@Component("lamp.EncounterEventCoalescer")
+public class EncounterEventCoalescer {
+	
+	private static final Log log = LogFactory.getLog(EncounterEventCoalescer.class);
+	
+	private static final long POLL_TIMEOUT_MILLIS = 1000;
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStrategyDispatcher")
+	private ProgramStrategyDispatcher dispatcher;
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStateQueue")
+	private ProgramStateQueue programStateQueue;
+	
+	@Autowired
+	@Qualifier("lamp.LampMetrics")
+	private LampMetrics metrics;
+	
+	private final Consumer<EncounterEvent> listener = this::accept;
+	
+	/**
+	 * The pending events by patient, in the order the first of them was received
+	 */
+	private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+	
+	private volatile boolean running;
+	
+	private volatile long windowMillis;
+	
+	private volatile long maxDelayMillis;
+	
+	private Thread flusher;
+	
+	private EncounterEventBroker broker;
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Subscribes to the encounter events of the broker and starts flushing the events of the patients as they become due.
+	 * 
+	 * @param windowMillis the time without another event of a patient after which its events are due
+	 * @param maxDelayMillis the time after the first event of a patient after which its events are due in any case
+	 */
+	public synchronized void start(DaemonToken daemonToken, EncounterEventBroker broker, long windowMillis,
+	        long maxDelayMillis) {
+		if (running) {
+			return;
+		}
+		this.broker = broker;
+		this.windowMillis = windowMillis;
+		this.maxDelayMillis = Math.max(windowMillis, maxDelayMillis);
+		running = true;
+		flusher = Daemon.runInDaemonThread(new Flusher(), daemonToken);
+		broker.subscribe(dispatcher::handles, listener);
+		log.info("Started event driven program state processing, coalescing the events of a patient over "
+		        + windowMillis + " ms, up to " + this.maxDelayMillis + " ms");
+	}
+	
+	/**
+	 * Unsubscribes from the encounter events and hands the events still pending to the queue.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		broker.unsubscribe(listener);
+		broker = null;
+		running = false;
+		synchronized (batches) {
+			batches.notifyAll();
+		}
+		try {
+			flusher.join(POLL_TIMEOUT_MILLIS * 2);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flusher = null;
+		
+		List<EncounterEvent> remaining = takeDue(Long.MAX_VALUE);
+		for (EncounterEvent event : remaining) {
+			programStateQueue.enqueue(event);
+		}
+		log.info("Stopped event driven program state processing, " + remaining.size() + " events handed to the queue");
+	}
+	
+	void accept(EncounterEvent event) {
+		accept(event, System.currentTimeMillis());
+	}
+	
+	void accept(EncounterEvent event, long now) {
+		String key = event.getPatientId() != null ? "patient:" + event.getPatientId() : "encounter:"
+		        + event.getEncounterUuid();
+		boolean repeated;
+		synchronized (batches) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				batch = new Batch(now + maxDelayMillis);
+				batches.put(key, batch);
+				batches.notifyAll();
+			}
+			batch.dueAt = Math.min(now + windowMillis, batch.latestDueAt);
+			// Moved to the end, the encounters of a patient are queued in the order they were last saved
+			repeated = batch.events.remove(event.getEncounterUuid()) != null;
+			batch.events.put(event.getEncounterUuid(), event);
+		}
+		if (repeated) {
+			metrics.recordCoalescedEncounterSave();
+		}
+	}
+	
+	/**
+	 * Removes the events of the patients due at the given time.
+	 * 
+	 * @return these events, one per encounter
+	 */
+	List<EncounterEvent> takeDue(long now) {
+		List<EncounterEvent> due = new ArrayList<EncounterEvent>();
+		synchronized (batches) {
+			Iterator<Batch> iterator = batches.values().iterator();
+			while (iterator.hasNext()) {
+				Batch batch = iterator.next();
+				if (batch.dueAt <= now) {
+					due.addAll(batch.events.values());
+					iterator.remove();
+				}
+			}
+		}
+		return due;
+	}
+	
+	/**
+	 * @return the time the first of the pending events becomes due, or {@link Long#MAX_VALUE} if there are none
+	 */
+	private long getNextDueAt() {
+		long next = Long.MAX_VALUE;
+		for (Batch batch : batches.values()) {
+			next = Math.min(next, batch.dueAt);
+		}
+		return next;
+	}
+	
+	/**
+	 * The pending events of a patient.
+	 */
+	private static class Batch {
+		
+		private final long latestDueAt;
+		
+		private long dueAt;
+		
+		private final Map<String, EncounterEvent> events = new LinkedHashMap<String, EncounterEvent>();
+		
+		Batch(long latestDueAt) {
+			this.latestDueAt = latestDueAt;
+		}
+	}
+	
+	private class Flusher implements Runnable {
+		
+		@Override
+		public void run() {
+			while (running) {
+				long now = System.currentTimeMillis();
+				synchronized (batches) {
+					long wait = batches.isEmpty() ? POLL_TIMEOUT_MILLIS : getNextDueAt() - now;
+					if (wait > 0) {
+						try {
+							batches.wait(Math.min(wait, POLL_TIMEOUT_MILLIS));
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						continue;
+					}
+				}
+				
+				try {
+					for (EncounterEvent event : takeDue(now)) {
+						programStateQueue.enqueue(event);
+					}
+				}
+				catch (RuntimeException e) {
+					log.error("Unexpected error in encounter event coalescer", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.async;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.api.context.Context;
+import org.openmrs.event.Event;
+import org.openmrs.event.EventListener;
+import org.openmrs.module.lamp.db.LampDao;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * The {@link EncounterEventBroker} of the OpenMRS event module, which publishes the encounters created, updated, voided
+ * and unvoided once their transaction commits and delivers them on its own threads, so that nothing of the program
+ * automation runs as part of the saves. The messages only carry the uuid of the encounter: its type and patient are read
+ * with a single query and the encounters none of the subscriptions accepts are dropped there, before anything else is
+ * loaded. Not a Spring bean, as the classes of the event module are only there when the module is started.
+ */
+public class OpenmrsEventBroker implements EncounterEventBroker, EventListener {
+	
+	private static final Log log = LogFactory.getLog(OpenmrsEventBroker.class);
+	
+	static final Event.Action[] ACTIONS = { Event.Action.CREATED, Event.Action.UPDATED, Event.Action.VOIDED,
+	        Event.Action.UNVOIDED };
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	
+	private final LampDao dao;
+	
+	private final TransactionTemplate transactionTemplate;
+	
+	public OpenmrsEventBroker(LampDao dao, PlatformTransactionManager transactionManager) {
+		this.dao = dao;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setReadOnly(true);
+	}
+	
+	@Override
+	public synchronized void subscribe(Predicate<String> encounterTypeFilter, Consumer<EncounterEvent> listener) {
+		subscriptions.removeIf(subscription -> subscription.listener == listener);
+		if (subscriptions.isEmpty()) {
+			for (Event.Action action : ACTIONS) {
+				Event.subscribe(Encounter.class, action.name(), this);
+			}
+		}
+		subscriptions.add(new Subscription(encounterTypeFilter, listener));
+	}
+	
+	@Override
+	public synchronized void unsubscribe(Consumer<EncounterEvent> listener) {
+		if (subscriptions.removeIf(subscription -> subscription.listener == listener) && subscriptions.isEmpty()) {
+			for (Event.Action action : ACTIONS) {
+				Event.unsubscribe(Encounter.class, action, this);
+			}
+		}
+	}
+	
+	@Override
+	public void onMessage(Message message) {
+		final String encounterUuid = getEncounterUuid(message);
+		if (encounterUuid == null) {
+			return;
+		}
+		
+		EncounterEvent event;
+		Context.openSession();
+		try {
+			event = transactionTemplate.execute(status -> dao.getEncounterEvent(encounterUuid));
+		}
+		catch (RuntimeException e) {
+			log.error("Failed to read the encounter " + encounterUuid + " of the event", e);
+			return;
+		}
+		finally {
+			Context.closeSession();
+		}
+		if (event == null) {
+			log.debug("Skipping the event of encounter " + encounterUuid + " that no longer exists");
+			return;
+		}
+		
+		for (Subscription subscription : subscriptions) {
+			if (!subscription.encounterTypeFilter.test(event.getEncounterTypeUuid())) {
+				continue;
+			}
+			try {
+				subscription.listener.accept(event);
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to deliver " + event, e);
+			}
+		}
+	}
+	
+	private String getEncounterUuid(Message message) {
+		try {
+			return ((MapMessage) message).getString("uuid");
+		}
+		catch (JMSException e) {
+			log.error("Failed to read the encounter event " + message, e);
+			return null;
+		}
+	}
+	
+	private static class Subscription {
+		
+		private final Predicate<String> encounterTypeFilter;
+		
+		private final Consumer<EncounterEvent> listener;
+		
+		Subscription(Predicate<String> encounterTypeFilter, Consumer<EncounterEvent> listener) {
+			this.encounterTypeFilter = encounterTypeFilter;
+			this.listener = listener;
+		}
+	}
+}
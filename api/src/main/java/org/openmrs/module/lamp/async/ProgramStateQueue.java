@@ -0,0 +1,334 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.async;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.db.LampDao;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Applies the program strategies to saved encounters outside of the save, once the saving transaction has committed.
+ * Encounters are queued in a bounded in-memory queue consumed by a pool of daemon workers, each encounter being
+ * processed in its own transaction and retried a few times before it is recorded in the dead letter table. Encounters
+ * that do not fit in the queue are parked in the same table as pending events and queued again when the workers catch
+ * up, or when the queue is next started.
+ */
+@Component("lamp.ProgramStateQueue")
+public class ProgramStateQueue {
+	
+	private static final Log log = LogFactory.getLog(ProgramStateQueue.class);
+	
+	static final long RETRY_DELAY_MILLIS = 1000;
+	
+	public static final int DEFAULT_WORKERS = 2;
+	
+	public static final int DEFAULT_CAPACITY = 1000;
+	
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	
+	private static final long POLL_TIMEOUT_MILLIS = 1000;
+	
+	private static final int MAX_ERROR_LENGTH = 1024;
+	
+	@Autowired
+	@Qualifier("lamp.ProgramStrategyDispatcher")
+	private ProgramStrategyDispatcher dispatcher;
+	
+	@Autowired
+	@Qualifier("lamp.LampDao")
+	private LampDao dao;
+	
+	@Autowired
+	@Qualifier("transactionManager")
+	private PlatformTransactionManager transactionManager;
+	
+	private final List<Thread> workers = new ArrayList<Thread>();
+	
+	private final Object pendingEventsLock = new Object();
+	
+	private volatile BlockingQueue<EncounterEvent> queue;
+	
+	private volatile boolean running;
+	
+	private volatile boolean pendingEvents;
+	
+	private int capacity;
+	
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	
+	private volatile DaemonToken daemonToken;
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Sets the token the retries of {@link #retryAfterCommit(Encounter)} run with while the workers are stopped.
+	 */
+	public void setDaemonToken(DaemonToken daemonToken) {
+		this.daemonToken = daemonToken;
+	}
+	
+	/**
+	 * Starts the workers and queues again the events left pending by a previous run. Null or non-positive settings are
+	 * replaced with their defaults.
+	 */
+	public synchronized void start(DaemonToken daemonToken, Integer workerCount, Integer capacity, Integer maxAttempts) {
+		if (running) {
+			return;
+		}
+		workerCount = positiveOrDefault(workerCount, DEFAULT_WORKERS);
+		this.capacity = positiveOrDefault(capacity, DEFAULT_CAPACITY);
+		this.maxAttempts = positiveOrDefault(maxAttempts, DEFAULT_MAX_ATTEMPTS);
+		queue = new ArrayBlockingQueue<EncounterEvent>(this.capacity);
+		running = true;
+		pendingEvents = true;
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(Daemon.runInDaemonThread(new Worker(), daemonToken));
+		}
+		log.info("Started asynchronous program state processing with " + workerCount + " workers");
+	}
+	
+	private static int positiveOrDefault(Integer value, int defaultValue) {
+		if (value == null || value < 1) {
+			return defaultValue;
+		}
+		return value;
+	}
+	
+	/**
+	 * Stops the workers and parks the events still in the queue as pending events.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		for (Thread worker : workers) {
+			try {
+				worker.join(POLL_TIMEOUT_MILLIS * 2);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		workers.clear();
+		
+		final List<EncounterEvent> remaining = new ArrayList<EncounterEvent>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty()) {
+			newTransactionTemplate().execute(status -> {
+				for (EncounterEvent event : remaining) {
+					dao.saveDeadLetter(event, 0, null);
+				}
+				return null;
+			});
+		}
+		log.info("Stopped asynchronous program state processing, " + remaining.size() + " events left pending");
+	}
+	
+	/**
+	 * Queues the encounter once the current transaction commits, or right away if there is no transaction. Encounters
+	 * that no strategy handles are ignored.
+	 */
+	public void enqueueAfterCommit(Encounter encounter) {
+		if (dispatcher.getStrategies(encounter) == null) {
+			return;
+		}
+		final EncounterEvent event = EncounterEvent.of(encounter);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			enqueue(event);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				enqueue(event);
+			}
+		});
+	}
+	
+	/**
+	 * Applies the strategies to an encounter whose program update could not be made within its save, once the saving
+	 * transaction commits. The encounter is queued if the workers are running, otherwise it is processed with the
+	 * usual retries in a daemon thread of its own, or parked as a pending event if there is no daemon token.
+	 */
+	public void retryAfterCommit(Encounter encounter) {
+		final EncounterEvent event = EncounterEvent.of(encounter);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			retry(event);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				retry(event);
+			}
+		});
+	}
+	
+	private void retry(final EncounterEvent event) {
+		DaemonToken token = daemonToken;
+		if (running || token == null) {
+			enqueue(event);
+		} else {
+			Daemon.runInDaemonThread(() -> process(event), token);
+		}
+	}
+	
+	void enqueue(final EncounterEvent event) {
+		if (running && queue.offer(event)) {
+			return;
+		}
+		log.warn("Program state queue is full or stopped, parking " + event);
+		newTransactionTemplate().execute(status -> {
+			dao.saveDeadLetter(event, 0, null);
+			return null;
+		});
+		pendingEvents = true;
+	}
+	
+	/**
+	 * Applies the strategies to the encounter of the event, retrying up to the configured number of attempts before the
+	 * event is recorded in the dead letter table.
+	 */
+	void process(final EncounterEvent event) {
+		RuntimeException lastError = null;
+		for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+			try {
+				newTransactionTemplate().execute(status -> {
+					apply(event);
+					return null;
+				});
+				return;
+			}
+			catch (RuntimeException e) {
+				lastError = e;
+				log.warn("Attempt " + attempt + " of " + maxAttempts + " failed to process " + event, e);
+				if (attempt < maxAttempts && !sleep(attempt * RETRY_DELAY_MILLIS)) {
+					break;
+				}
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+		
+		log.error("Giving up on processing " + event);
+		final String error = StringUtils.abbreviate(String.valueOf(lastError), MAX_ERROR_LENGTH);
+		final int attempts = maxAttempts;
+		newTransactionTemplate().execute(status -> {
+			dao.saveDeadLetter(event, attempts, error);
+			return null;
+		});
+	}
+	
+	private void apply(EncounterEvent event) {
+		Encounter encounter = Context.getEncounterService().getEncounterByUuid(event.getEncounterUuid());
+		if (encounter == null) {
+			log.debug("Skipping " + event + " that no longer exists");
+			return;
+		}
+		dispatcher.dispatch(encounter, Context.getAuthenticatedUser(), new Date(), null);
+	}
+	
+	private void requeuePendingEvents() {
+		final int maxResults = Math.max(1, capacity / 2);
+		Map<Integer, EncounterEvent> events;
+		synchronized (pendingEventsLock) {
+			if (!pendingEvents) {
+				return;
+			}
+			pendingEvents = false;
+			events = newTransactionTemplate().execute(status -> {
+				Map<Integer, EncounterEvent> pending = dao.getPendingEvents(maxResults);
+				dao.deleteDeadLetters(pending.keySet());
+				return pending;
+			});
+		}
+		
+		for (EncounterEvent event : events.values()) {
+			enqueue(event);
+		}
+		if (events.size() == maxResults) {
+			pendingEvents = true;
+		}
+	}
+	
+	private TransactionTemplate newTransactionTemplate() {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		// Also used from afterCommit() callbacks, where the committed transaction must not be joined
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return transactionTemplate;
+	}
+	
+	private boolean sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	private class Worker implements Runnable {
+		
+		@Override
+		public void run() {
+			while (running) {
+				EncounterEvent event;
+				try {
+					event = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				
+				try {
+					if (event != null) {
+						process(event);
+					} else if (pendingEvents) {
+						requeuePendingEvents();
+					}
+				}
+				catch (RuntimeException e) {
+					log.error("Unexpected error in program state worker", e);
+				}
+			}
+		}
+	}
+}
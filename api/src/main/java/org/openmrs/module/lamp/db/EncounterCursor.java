@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.db;
+
+import java.util.Date;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+
+/**
+ * A forward only cursor over the ids and datetimes of encounters, read over a stateless session of its own so that the
+ * encounters can be processed and committed in other transactions while it stays open. Must be closed.
+ */
+public class EncounterCursor implements AutoCloseable {
+	
+	private final StatelessSession session;
+	
+	private final ScrollableResults results;
+	
+	EncounterCursor(StatelessSession session, ScrollableResults results) {
+		this.session = session;
+		this.results = results;
+	}
+	
+	/**
+	 * Moves to the next encounter.
+	 * 
+	 * @return false if there is none left
+	 */
+	public boolean next() {
+		return results.next();
+	}
+	
+	public Integer getEncounterId() {
+		return ((Number) results.get(0)).intValue();
+	}
+	
+	public Date getEncounterDatetime() {
+		return (Date) results.get(1);
+	}
+	
+	@Override
+	public void close() {
+		try {
+			results.close();
+		}
+		finally {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,544 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.db;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.LockMode;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.type.StandardBasicTypes;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.User;
+import org.openmrs.module.lamp.async.EncounterEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Data access for the queries the LAMP module needs that the core services do not offer.
+ */
+@Repository("lamp.LampDao")
+public class LampDao {
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	/**
+	 * Returns the enrollment date of the next page of non-voided, uncompleted enrollments in the given program. Results
+	 * are ordered by id so that callers can page through them with a keyset on {@code patient_program_id}.
+	 * 
+	 * @param program the program to look in
+	 * @param afterId only enrollments with a strictly greater id are returned
+	 * @param maxResults the page size
+	 * @return the enrollment dates keyed by enrollment id
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Date> getIncompletePatientProgramEnrollmentDates(Program program, Integer afterId, int maxResults) {
+		List<Object[]> rows = getSession()
+		        .createQuery(
+		            "select pp.patientProgramId, pp.dateEnrolled from PatientProgram pp where pp.program = :program"
+		                    + " and pp.voided = false and pp.dateCompleted is null and pp.patientProgramId > :afterId"
+		                    + " order by pp.patientProgramId").setParameter("program", program)
+		        .setParameter("afterId", afterId).setMaxResults(maxResults).list();
+		Map<Integer, Date> enrollmentDates = new LinkedHashMap<Integer, Date>();
+		for (Object[] row : rows) {
+			enrollmentDates.put((Integer) row[0], (Date) row[1]);
+		}
+		return enrollmentDates;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<PatientProgram> getPatientPrograms(Collection<Integer> patientProgramIds) {
+		return getSession().createQuery("from PatientProgram pp where pp.patientProgramId in (:ids)")
+		        .setParameterList("ids", patientProgramIds).list();
+	}
+	
+	/**
+	 * Returns the non-voided states of the enrollment in the given workflow with their workflow states fetched by the same
+	 * query, rather than the whole state history of the enrollment. The workflow is matched on the foreign key of the
+	 * workflow states, so neither the workflows nor the states of the other workflows are loaded. The states are read with
+	 * a shared locking read, which sees the states committed by concurrent transactions even under repeatable read
+	 * isolation, so that a transition already applied by another transaction is not applied a second time.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PatientState> getPatientStates(PatientProgram patientProgram, ProgramWorkflow programWorkflow) {
+		return getSession()
+		        .createQuery(
+		            "select ps from PatientState ps join fetch ps.state s where ps.patientProgram = :patientProgram"
+		                    + " and ps.voided = false and s.programWorkflow.programWorkflowId = :programWorkflowId")
+		        .setParameter("patientProgram", patientProgram)
+		        .setParameter("programWorkflowId", programWorkflow.getProgramWorkflowId())
+		        .setLockMode("ps", LockMode.PESSIMISTIC_READ).list();
+	}
+	
+	/**
+	 * Saves a new state of an enrollment on its own, the states of the enrollment being mapped by the state side of the
+	 * association, so that the state history of the enrollment is not loaded to add it.
+	 */
+	public void savePatientState(PatientState patientState) {
+		getSession().save(patientState);
+	}
+	
+	/**
+	 * Returns the states of the given enrollments in the given workflow that are active at the given date, with their
+	 * workflow states fetched by the same query.
+	 * 
+	 * @see #getPatientStates(PatientProgram, ProgramWorkflow)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PatientState> getActivePatientStates(Collection<Integer> patientProgramIds, ProgramWorkflow programWorkflow,
+	        Date date) {
+		if (patientProgramIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return getSession()
+		        .createQuery(
+		            "select ps from PatientState ps join fetch ps.state s"
+		                    + " where ps.patientProgram.patientProgramId in (:ids) and ps.voided = false"
+		                    + " and (ps.startDate is null or ps.startDate <= :date)"
+		                    + " and (ps.endDate is null or ps.endDate > :date)"
+		                    + " and s.programWorkflow.programWorkflowId = :programWorkflowId")
+		        .setParameterList("ids", patientProgramIds).setParameter("date", date)
+		        .setParameter("programWorkflowId", programWorkflow.getProgramWorkflowId()).list();
+	}
+	
+	/**
+	 * Records the date at which the given enrollment is due for completion, replacing any date previously recorded for it.
+	 */
+	public void saveCompletionDue(Integer patientProgramId, Integer programId, Date dueDate) {
+		deleteCompletionDue(Collections.singleton(patientProgramId));
+		getSession()
+		        .createSQLQuery(
+		            "insert into lamp_program_completion_due (patient_program_id, program_id, due_date)"
+		                    + " values (:patientProgramId, :programId, :dueDate)")
+		        .setParameter("patientProgramId", patientProgramId).setParameter("programId", programId)
+		        .setParameter("dueDate", dueDate).executeUpdate();
+	}
+	
+	/**
+	 * @return the date at which the given enrollment is due for completion, null if none is recorded
+	 */
+	public Date getCompletionDueDate(Integer patientProgramId) {
+		return (Date) getSession()
+		        .createSQLQuery("select due_date from lamp_program_completion_due where patient_program_id = :id")
+		        .setParameter("id", patientProgramId).uniqueResult();
+	}
+	
+	/**
+	 * Returns the ids of the enrollments in the given program that were due for completion strictly before the given
+	 * date, the earliest due first. The predicate is served by the {@code lamp_completion_due_date_idx} index so the cost
+	 * is proportional to the number of enrollments due rather than to the number of enrollments.
+	 * 
+	 * @param partition only the enrollments whose id modulo {@code partitions} equals this value are returned
+	 * @param partitions the number of partitions the enrollments are split in, 1 for all of them
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getDuePatientProgramIds(Program program, Date dueBefore, int partition, int partitions,
+	        int maxResults) {
+		String partitionPredicate = partitions > 1 ? " and mod(patient_program_id, :partitions) = :partition" : "";
+		SQLQuery query = getSession().createSQLQuery(
+		    "select patient_program_id from lamp_program_completion_due where program_id = :programId"
+		            + " and due_date < :dueBefore" + partitionPredicate + " order by due_date, patient_program_id");
+		if (partitions > 1) {
+			query.setParameter("partitions", partitions).setParameter("partition", partition);
+		}
+		List<Number> ids = query.setParameter("programId", program.getProgramId()).setParameter("dueBefore", dueBefore)
+		        .setMaxResults(maxResults).list();
+		List<Integer> patientProgramIds = new ArrayList<Integer>(ids.size());
+		for (Number id : ids) {
+			patientProgramIds.add(id.intValue());
+		}
+		return patientProgramIds;
+	}
+	
+	/**
+	 * @return the earliest date at which an enrollment in the given program is due for completion, null if none is
+	 */
+	public Date getEarliestCompletionDueDate(Program program) {
+		return (Date) getSession()
+		        .createSQLQuery("select min(due_date) from lamp_program_completion_due where program_id = :programId")
+		        .setParameter("programId", program.getProgramId()).uniqueResult();
+	}
+	
+	public void deleteCompletionDue(Collection<Integer> patientProgramIds) {
+		if (patientProgramIds.isEmpty()) {
+			return;
+		}
+		getSession().createSQLQuery("delete from lamp_program_completion_due where patient_program_id in (:ids)")
+		        .setParameterList("ids", patientProgramIds).executeUpdate();
+	}
+	
+	/**
+	 * Returns the enrollment date of those of the given enrollments that are non-voided, uncompleted and were enrolled on
+	 * or after the given date, which are not due for completion yet.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Date> getEnrollmentDatesNotBefore(Collection<Integer> patientProgramIds, Date date) {
+		List<Object[]> rows = getSession()
+		        .createSQLQuery(
+		            "select patient_program_id, date_enrolled from patient_program where patient_program_id in (:ids)"
+		                    + " and voided = false and date_completed is null and date_enrolled >= :date")
+		        .setParameterList("ids", patientProgramIds).setParameter("date", date).list();
+		Map<Integer, Date> enrollmentDates = new LinkedHashMap<Integer, Date>();
+		for (Object[] row : rows) {
+			enrollmentDates.put(((Number) row[0]).intValue(), (Date) row[1]);
+		}
+		return enrollmentDates;
+	}
+	
+	/**
+	 * Transitions those of the given enrollments that are non-voided, uncompleted and were enrolled before the given date
+	 * to the given state with a few bulk statements, rather than loading and flushing each enrollment. The rows written
+	 * are those {@link PatientProgram#transitionToState(ProgramWorkflowState, Date)} leaves for Hibernate to flush: the
+	 * active states of the workflow are ended, the new state is inserted with a random uuid, and the enrollment is
+	 * completed if the state is terminal, all audited as changed or created by the given user. The uuids are generated by
+	 * the {@code uuid()} function of MySQL and MariaDB.
+	 * 
+	 * @return the number of enrollments transitioned
+	 */
+	public int transitionPatientPrograms(Collection<Integer> patientProgramIds, ProgramWorkflowState state,
+	        Date enrolledBefore, Date date, User user) {
+		if (patientProgramIds.isEmpty()) {
+			return 0;
+		}
+		String eligible = "patient_program_id in (:ids) and voided = false and date_completed is null"
+		        + " and date_enrolled < :enrolledBefore";
+		getSession()
+		        .createSQLQuery(
+		            "update patient_state set end_date = :date, changed_by = :userId, date_changed = :date"
+		                    + " where patient_program_id in (select patient_program_id from patient_program where " + eligible
+		                    + ") and voided = false"
+		                    + " and (start_date is null or start_date <= :date) and (end_date is null or end_date > :date)"
+		                    + " and state in (select program_workflow_state_id from program_workflow_state"
+		                    + " where program_workflow_id = :workflowId)").addSynchronizedEntityClass(PatientState.class)
+		        .setParameterList("ids", patientProgramIds).setParameter("enrolledBefore", enrolledBefore)
+		        .setParameter("date", date).setParameter("userId", user.getUserId())
+		        .setParameter("workflowId", state.getProgramWorkflow().getProgramWorkflowId()).executeUpdate();
+		int transitioned = getSession()
+		        .createSQLQuery(
+		            "insert into patient_state (patient_program_id, state, start_date, creator, date_created, voided, uuid)"
+		                    + " select patient_program_id, :stateId, :date, :userId, :date, false, uuid() from patient_program"
+		                    + " where " + eligible).addSynchronizedEntityClass(PatientState.class)
+		        .setParameterList("ids", patientProgramIds).setParameter("enrolledBefore", enrolledBefore)
+		        .setParameter("stateId", state.getProgramWorkflowStateId()).setParameter("date", date)
+		        .setParameter("userId", user.getUserId()).executeUpdate();
+		if (Boolean.TRUE.equals(state.getTerminal())) {
+			getSession()
+			        .createSQLQuery(
+			            "update patient_program set date_completed = :date, changed_by = :userId, date_changed = :date"
+			                    + " where " + eligible).addSynchronizedEntityClass(PatientProgram.class)
+			        .setParameterList("ids", patientProgramIds).setParameter("enrolledBefore", enrolledBefore)
+			        .setParameter("date", date).setParameter("userId", user.getUserId()).executeUpdate();
+		}
+		return transitioned;
+	}
+	
+	/**
+	 * Returns the non-voided, uncompleted enrollment of the patient in the given program, if any. The predicate is served
+	 * by the {@code lamp_patient_program_active_idx} index so the cost does not grow with the enrollment history of the
+	 * patient. The enrollment is read with a locking read, which sees the enrollments committed by concurrent
+	 * transactions even under repeatable read isolation and holds the enrollment until the transaction completes, so that
+	 * the program updates of the patient made on other nodes wait for this one. When the patient has no active
+	 * enrollment, two transactions enrolling the patient at the same time deadlock on the index gap and the database
+	 * rolls one of them back rather than enrolling the patient twice.
+	 */
+	public PatientProgram getActivePatientProgram(Patient patient, Program program) {
+		return (PatientProgram) getSession()
+		        .createQuery(
+		            "from PatientProgram pp where pp.patient = :patient and pp.program = :program"
+		                    + " and pp.dateCompleted is null and pp.voided = false order by pp.patientProgramId")
+		        .setParameter("patient", patient).setParameter("program", program)
+		        .setLockMode("pp", LockMode.PESSIMISTIC_WRITE).setMaxResults(1).uniqueResult();
+	}
+	
+	/**
+	 * @return true if the lease row of the given name exists
+	 */
+	public boolean leaseExists(String name) {
+		Number leases = (Number) getSession().createSQLQuery("select count(*) from lamp_task_lease where name = :name")
+		        .setParameter("name", name).uniqueResult();
+		return leases.intValue() > 0;
+	}
+	
+	/**
+	 * Creates the free lease row of the given name. The insert fails on the primary key if another node created it in the
+	 * meantime, which leaves the current transaction unusable, so this is to be called in a transaction of its own.
+	 */
+	public void createLease(String name) {
+		getSession().createSQLQuery("insert into lamp_task_lease (name) values (:name)").setParameter("name", name)
+		        .executeUpdate();
+	}
+	
+	/**
+	 * @return true if the failure is the violation of a constraint, such as the insert of a duplicate key
+	 */
+	public static boolean isConstraintViolation(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConstraintViolationException || cause instanceof SQLIntegrityConstraintViolationException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Acquires the existing lease of the given name for the given owner if it is free, expired or already held by the
+	 * owner. The expiry is computed and compared with the clock of the database rather than that of this node, so that
+	 * nodes whose clocks differ agree on when a lease expires. The date arithmetic is that of MySQL and MariaDB.
+	 * 
+	 * @param seconds the number of seconds the lease is held for unless renewed
+	 * @return true if the owner holds the lease
+	 */
+	public boolean acquireLease(String name, String owner, int seconds) {
+		return getSession()
+		        .createSQLQuery(
+		            "update lamp_task_lease set owner = :owner, heartbeat = current_timestamp,"
+		                    + " expires_at = timestampadd(SECOND, :seconds, current_timestamp) where name = :name"
+		                    + " and (owner is null or owner = :owner or expires_at < current_timestamp)")
+		        .setParameter("owner", owner).setParameter("seconds", seconds).setParameter("name", name)
+		        .executeUpdate() == 1;
+	}
+	
+	/**
+	 * Extends the lease of the given name if it is still held by the given owner, from the clock of the database.
+	 * 
+	 * @return false if the lease was taken over by another owner
+	 */
+	public boolean renewLease(String name, String owner, int seconds) {
+		return getSession()
+		        .createSQLQuery(
+		            "update lamp_task_lease set expires_at = timestampadd(SECOND, :seconds, current_timestamp),"
+		                    + " heartbeat = current_timestamp where name = :name and owner = :owner")
+		        .setParameter("seconds", seconds).setParameter("name", name).setParameter("owner", owner)
+		        .executeUpdate() == 1;
+	}
+	
+	public void releaseLease(String name, String owner) {
+		getSession()
+		        .createSQLQuery(
+		            "update lamp_task_lease set owner = null, expires_at = null where name = :name and owner = :owner")
+		        .setParameter("name", name).setParameter("owner", owner).executeUpdate();
+	}
+	
+	/**
+	 * Opens a cursor over the non-voided encounters of the given types that come after the given checkpoint, in
+	 * encounter datetime then id order. The order is served by the encounter datetime index, so the rows are streamed
+	 * without sorting the encounter table.
+	 * 
+	 * @param maxResults the number of encounters the cursor reads at most, which bounds what a driver that does not
+	 *            stream result sets holds in memory
+	 * @param fetchSize the number of rows fetched per round trip
+	 */
+	public EncounterCursor openEncounterCursor(Collection<String> encounterTypeUuids, ReplayCheckpoint after,
+	        int maxResults, int fetchSize) {
+		String afterPredicate = after.getEncounterDatetime() == null ? ""
+		        : " and (e.encounter_datetime > :afterDatetime"
+		                + " or (e.encounter_datetime = :afterDatetime and e.encounter_id > :afterId))";
+		StatelessSession session = sessionFactory.openStatelessSession();
+		try {
+			SQLQuery query = session.createSQLQuery(
+			    "select e.encounter_id, e.encounter_datetime from encounter e"
+			            + " join encounter_type et on et.encounter_type_id = e.encounter_type"
+			            + " where e.voided = false and et.uuid in (:encounterTypeUuids)" + afterPredicate
+			            + " order by e.encounter_datetime, e.encounter_id");
+			query.setParameterList("encounterTypeUuids", encounterTypeUuids);
+			if (after.getEncounterDatetime() != null) {
+				query.setParameter("afterDatetime", after.getEncounterDatetime()).setParameter("afterId",
+				    after.getEncounterId());
+			}
+			ScrollableResults results = query.setReadOnly(true).setFetchSize(fetchSize).setMaxResults(maxResults)
+			        .scroll(ScrollMode.FORWARD_ONLY);
+			return new EncounterCursor(session, results);
+		}
+		catch (RuntimeException e) {
+			session.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Opens a cursor over the non-voided, uncompleted enrollments in the given program, in id order.
+	 * 
+	 * @param afterId only enrollments with a strictly greater id are read
+	 * @param maxResults the number of enrollments the cursor reads at most, which bounds what a driver that does not
+	 *            stream result sets holds in memory
+	 * @param fetchSize the number of rows fetched per round trip
+	 */
+	public EnrollmentCursor openIncompleteEnrollmentCursor(Program program, Integer afterId, int maxResults, int fetchSize) {
+		StatelessSession session = sessionFactory.openStatelessSession();
+		try {
+			ScrollableResults results = session
+			        .createSQLQuery(
+			            "select patient_program_id, patient_id, date_enrolled from patient_program"
+			                    + " where program_id = :programId and voided = false and date_completed is null"
+			                    + " and patient_program_id > :afterId order by patient_program_id")
+			        .setParameter("programId", program.getProgramId()).setParameter("afterId", afterId).setReadOnly(true)
+			        .setFetchSize(fetchSize).setMaxResults(maxResults).scroll(ScrollMode.FORWARD_ONLY);
+			return new EnrollmentCursor(session, results);
+		}
+		catch (RuntimeException e) {
+			session.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the event of the encounter with the given uuid, read without loading the encounter, or null if there is
+	 *         no such encounter
+	 */
+	public EncounterEvent getEncounterEvent(String encounterUuid) {
+		Object[] row = (Object[]) getSession()
+		        .createQuery("select e.encounterType.uuid, e.patient.patientId from Encounter e where e.uuid = :uuid")
+		        .setParameter("uuid", encounterUuid).uniqueResult();
+		if (row == null) {
+			return null;
+		}
+		return new EncounterEvent(encounterUuid, (String) row[0], (Integer) row[1]);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Encounter> getEncounters(Collection<Integer> encounterIds) {
+		return getSession().createQuery("from Encounter e where e.encounterId in (:ids)")
+		        .setParameterList("ids", encounterIds).list();
+	}
+	
+	/**
+	 * @return the checkpoint of the replay of the given name, null if it has not started
+	 */
+	public ReplayCheckpoint getReplayCheckpoint(String name) {
+		Object[] row = (Object[]) getSession()
+		        .createSQLQuery(
+		            "select encounter_datetime, encounter_id, encounters_replayed, completed from lamp_replay_checkpoint"
+		                    + " where name = :name").setParameter("name", name).uniqueResult();
+		if (row == null) {
+			return null;
+		}
+		return new ReplayCheckpoint((Date) row[0], row[1] == null ? null : ((Number) row[1]).intValue(),
+		        ((Number) row[2]).longValue(), row[3] instanceof Boolean ? (Boolean) row[3]
+		                : ((Number) row[3]).intValue() != 0);
+	}
+	
+	public void saveReplayCheckpoint(String name, ReplayCheckpoint checkpoint) {
+		int updated = getSession()
+		        .createSQLQuery(
+		            "update lamp_replay_checkpoint set encounter_datetime = :encounterDatetime, encounter_id = :encounterId,"
+		                    + " encounters_replayed = :encountersReplayed, completed = :completed,"
+		                    + " date_changed = :dateChanged where name = :name")
+		        .setParameter("encounterDatetime", checkpoint.getEncounterDatetime(), StandardBasicTypes.TIMESTAMP)
+		        .setParameter("encounterId", checkpoint.getEncounterId(), StandardBasicTypes.INTEGER)
+		        .setParameter("encountersReplayed", checkpoint.getEncountersReplayed())
+		        .setParameter("completed", checkpoint.isCompleted()).setParameter("dateChanged", new Date())
+		        .setParameter("name", name).executeUpdate();
+		if (updated == 0) {
+			getSession()
+			        .createSQLQuery(
+			            "insert into lamp_replay_checkpoint"
+			                    + " (name, encounter_datetime, encounter_id, encounters_replayed, completed, date_changed)"
+			                    + " values (:name, :encounterDatetime, :encounterId, :encountersReplayed, :completed,"
+			                    + " :dateChanged)").setParameter("name", name)
+			        .setParameter("encounterDatetime", checkpoint.getEncounterDatetime(), StandardBasicTypes.TIMESTAMP)
+			        .setParameter("encounterId", checkpoint.getEncounterId(), StandardBasicTypes.INTEGER)
+			        .setParameter("encountersReplayed", checkpoint.getEncountersReplayed())
+			        .setParameter("completed", checkpoint.isCompleted()).setParameter("dateChanged", new Date())
+			        .executeUpdate();
+		}
+	}
+	
+	/**
+	 * @return the fingerprint of the encounter as it was last processed by the program strategies, null if it never was
+	 */
+	public String getEncounterFingerprint(Integer encounterId) {
+		return (String) getSession()
+		        .createSQLQuery("select fingerprint from lamp_encounter_fingerprint where encounter_id = :encounterId")
+		        .setParameter("encounterId", encounterId).uniqueResult();
+	}
+	
+	public void saveEncounterFingerprint(Integer encounterId, String fingerprint) {
+		int updated = getSession()
+		        .createSQLQuery(
+		            "update lamp_encounter_fingerprint set fingerprint = :fingerprint where encounter_id = :encounterId")
+		        .setParameter("fingerprint", fingerprint).setParameter("encounterId", encounterId).executeUpdate();
+		if (updated == 0) {
+			getSession()
+			        .createSQLQuery(
+			            "insert into lamp_encounter_fingerprint (encounter_id, fingerprint) values (:encounterId, :fingerprint)")
+			        .setParameter("encounterId", encounterId).setParameter("fingerprint", fingerprint).executeUpdate();
+		}
+	}
+	
+	/**
+	 * Sets the JDBC batch size of the current session so that the statements flushed for a chunk of enrollments are sent
+	 * to the database in batches.
+	 */
+	public void setJdbcBatchSize(int batchSize) {
+		getSession().setJdbcBatchSize(batchSize);
+	}
+	
+	/**
+	 * Records an encounter event in the dead letter table. Events recorded with no attempts are pending events that could
+	 * not be queued and are picked up again by {@link #getPendingEvents(int)}.
+	 */
+	public void saveDeadLetter(EncounterEvent event, int attempts, String error) {
+		getSession()
+		        .createSQLQuery(
+		            "insert into lamp_program_state_dead_letter"
+		                    + " (encounter_uuid, encounter_type_uuid, attempts, error, date_created)"
+		                    + " values (:encounterUuid, :encounterTypeUuid, :attempts, :error, :dateCreated)")
+		        .setParameter("encounterUuid", event.getEncounterUuid())
+		        .setParameter("encounterTypeUuid", event.getEncounterTypeUuid()).setParameter("attempts", attempts)
+		        .setParameter("error", error).setParameter("dateCreated", new Date()).executeUpdate();
+	}
+	
+	/**
+	 * @return the oldest pending events of the dead letter table, keyed by their row id
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, EncounterEvent> getPendingEvents(int maxResults) {
+		List<Object[]> rows = getSession()
+		        .createSQLQuery(
+		            "select id, encounter_uuid, encounter_type_uuid from lamp_program_state_dead_letter"
+		                    + " where attempts = 0 order by id").setMaxResults(maxResults).list();
+		Map<Integer, EncounterEvent> events = new LinkedHashMap<Integer, EncounterEvent>();
+		for (Object[] row : rows) {
+			events.put(((Number) row[0]).intValue(), new EncounterEvent((String) row[1], (String) row[2]));
+		}
+		return events;
+	}
+	
+	public void deleteDeadLetters(Collection<Integer> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		getSession().createSQLQuery("delete from lamp_program_state_dead_letter where id in (:ids)")
+		        .setParameterList("ids", ids).executeUpdate();
+	}
+	
+	private Session getSession() {
+		return sessionFactory.getCurrentSession();
+	}
+}
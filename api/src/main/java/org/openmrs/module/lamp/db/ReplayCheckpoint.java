@@ -0,0 +1,67 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.db;
+
+import java.util.Date;
+
+/**
+ * The position of a replay of the historic encounters, the last encounter replayed in encounter datetime then id order.
+ */
+public class ReplayCheckpoint {
+	
+	private final Date encounterDatetime;
+	
+	private final Integer encounterId;
+	
+	private final long encountersReplayed;
+	
+	private final boolean completed;
+	
+	public ReplayCheckpoint(Date encounterDatetime, Integer encounterId, long encountersReplayed, boolean completed) {
+		this.encounterDatetime = encounterDatetime;
+		this.encounterId = encounterId;
+		this.encountersReplayed = encountersReplayed;
+		this.completed = completed;
+	}
+	
+	/**
+	 * @return the position before the first encounter
+	 */
+	public static ReplayCheckpoint start() {
+		return new ReplayCheckpoint(null, null, 0, false);
+	}
+	
+	/**
+	 * @return the datetime of the last encounter replayed, null if none was
+	 */
+	public Date getEncounterDatetime() {
+		return encounterDatetime;
+	}
+	
+	/**
+	 * @return the id of the last encounter replayed, null if none was
+	 */
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+	
+	public long getEncountersReplayed() {
+		return encountersReplayed;
+	}
+	
+	public boolean isCompleted() {
+		return completed;
+	}
+	
+	@Override
+	public String toString() {
+		return "encounter " + encounterId + " of " + encounterDatetime + " (" + encountersReplayed + " replayed)";
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.lamp.StrategyOutcome;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counters and timers of the LAMP program automation. They are kept in memory since the module started and registered
+ * as a platform MXBean by the module activator, so that they can be read with any JMX client.
+ */
+@Component("lamp.LampMetrics")
+public class LampMetrics implements LampMetricsMXBean {
+	
+	public static final String OBJECT_NAME = "org.openmrs.module.lamp:type=LampMetrics";
+	
+	private static final Log log = LogFactory.getLog(LampMetrics.class);
+	
+	// The database calls of the save being handled by the current thread, if any
+	private static final ThreadLocal<int[]> saveDbCalls = new ThreadLocal<int[]>();
+	
+	private final ConcurrentMap<String, Timer> strategyExecutions = new ConcurrentHashMap<String, Timer>();
+	
+	private final ConcurrentMap<String, LongAdder> transitionsApplied = new ConcurrentHashMap<String, LongAdder>();
+	
+	private final ConcurrentMap<String, LongAdder> shortCircuits = new ConcurrentHashMap<String, LongAdder>();
+	
+	private final LongAdder saves = new LongAdder();
+	
+	private final LongAdder unchangedEncounters = new LongAdder();
+	
+	private final LongAdder coalescedEncounterSaves = new LongAdder();
+	
+	private final LongAdder dbCalls = new LongAdder();
+	
+	private final AtomicLong maxDbCallsPerSave = new AtomicLong();
+	
+	private final Timer taskRuns = new Timer();
+	
+	private final LongAdder taskRowsScanned = new LongAdder();
+	
+	private final LongAdder taskEnrollmentsCompleted = new LongAdder();
+	
+	private final Timer replayChunks = new Timer();
+	
+	private final LongAdder encountersReplayed = new LongAdder();
+	
+	private volatile List<String> metadataProblems;
+	
+	/**
+	 * Counts a database call against the save being handled by the current thread, does nothing outside of a save.
+	 */
+	public static void recordDbCall() {
+		int[] calls = saveDbCalls.get();
+		if (calls != null) {
+			calls[0]++;
+		}
+	}
+	
+	public void beginSave() {
+		saveDbCalls.set(new int[1]);
+	}
+	
+	public void endSave() {
+		int[] calls = saveDbCalls.get();
+		saveDbCalls.remove();
+		if (calls == null) {
+			return;
+		}
+		saves.increment();
+		dbCalls.add(calls[0]);
+		maxDbCallsPerSave.accumulateAndGet(calls[0], Math::max);
+	}
+	
+	public void recordStrategyExecution(String program, StrategyOutcome outcome, long durationNanos) {
+		strategyExecutions.computeIfAbsent(program, key -> new Timer()).record(durationNanos);
+		if (outcome == StrategyOutcome.TRANSITIONED) {
+			transitionsApplied.computeIfAbsent(program, key -> new LongAdder()).increment();
+		} else if (outcome != null) {
+			shortCircuits.computeIfAbsent(outcome.name(), key -> new LongAdder()).increment();
+		}
+	}
+	
+	public void recordUnchangedEncounter() {
+		unchangedEncounters.increment();
+	}
+	
+	public void recordCoalescedEncounterSave() {
+		coalescedEncounterSaves.increment();
+	}
+	
+	public void recordTaskRun(long durationNanos, long rowsScanned, long enrollmentsCompleted) {
+		taskRuns.record(durationNanos);
+		taskRowsScanned.add(rowsScanned);
+		taskEnrollmentsCompleted.add(enrollmentsCompleted);
+	}
+	
+	public void recordReplayChunk(int encounters, long durationNanos) {
+		replayChunks.record(durationNanos);
+		encountersReplayed.add(encounters);
+	}
+	
+	/**
+	 * Records the outcome of the last validation of the metadata of the program rules, which makes the module ready when
+	 * no problem was found.
+	 */
+	public void recordMetadataValidation(List<String> problems) {
+		metadataProblems = Collections.unmodifiableList(new ArrayList<String>(problems));
+	}
+	
+	public void register() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			// Left behind when the module is restarted without a clean stop
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+			mBeanServer.registerMBean(this, objectName);
+		}
+		catch (JMException e) {
+			log.warn("Failed to register the LAMP metrics MXBean", e);
+		}
+	}
+	
+	public void unregister() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+		}
+		catch (JMException e) {
+			log.warn("Failed to unregister the LAMP metrics MXBean", e);
+		}
+	}
+	
+	@Override
+	public Map<String, TimerSnapshot> getStrategyExecutions() {
+		Map<String, TimerSnapshot> snapshots = new TreeMap<String, TimerSnapshot>();
+		for (Map.Entry<String, Timer> entry : strategyExecutions.entrySet()) {
+			snapshots.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshots;
+	}
+	
+	@Override
+	public Map<String, Long> getTransitionsApplied() {
+		return snapshot(transitionsApplied);
+	}
+	
+	@Override
+	public Map<String, Long> getShortCircuits() {
+		return snapshot(shortCircuits);
+	}
+	
+	@Override
+	public long getSaves() {
+		return saves.sum();
+	}
+	
+	@Override
+	public long getUnchangedEncounters() {
+		return unchangedEncounters.sum();
+	}
+	
+	@Override
+	public long getCoalescedEncounterSaves() {
+		return coalescedEncounterSaves.sum();
+	}
+	
+	@Override
+	public long getDbCalls() {
+		return dbCalls.sum();
+	}
+	
+	@Override
+	public double getMeanDbCallsPerSave() {
+		long count = saves.sum();
+		return count == 0 ? 0 : (double) dbCalls.sum() / count;
+	}
+	
+	@Override
+	public long getMaxDbCallsPerSave() {
+		return maxDbCallsPerSave.get();
+	}
+	
+	@Override
+	public TimerSnapshot getTaskRuns() {
+		return taskRuns.snapshot();
+	}
+	
+	@Override
+	public long getTaskRowsScanned() {
+		return taskRowsScanned.sum();
+	}
+	
+	@Override
+	public long getTaskEnrollmentsCompleted() {
+		return taskEnrollmentsCompleted.sum();
+	}
+	
+	@Override
+	public TimerSnapshot getReplayChunks() {
+		return replayChunks.snapshot();
+	}
+	
+	@Override
+	public long getEncountersReplayed() {
+		return encountersReplayed.sum();
+	}
+	
+	@Override
+	public double getReplayedEncountersPerSecond() {
+		long nanos = replayChunks.totalNanos.sum();
+		return nanos == 0 ? 0 : encountersReplayed.sum() * 1e9 / nanos;
+	}
+	
+	@Override
+	public boolean isReady() {
+		List<String> problems = metadataProblems;
+		return problems != null && problems.isEmpty();
+	}
+	
+	@Override
+	public List<String> getMetadataProblems() {
+		List<String> problems = metadataProblems;
+		return problems == null ? Collections.<String> emptyList() : problems;
+	}
+	
+	@Override
+	public void reset() {
+		strategyExecutions.clear();
+		transitionsApplied.clear();
+		shortCircuits.clear();
+		saves.reset();
+		unchangedEncounters.reset();
+		coalescedEncounterSaves.reset();
+		dbCalls.reset();
+		maxDbCallsPerSave.set(0);
+		taskRuns.reset();
+		taskRowsScanned.reset();
+		taskEnrollmentsCompleted.reset();
+		replayChunks.reset();
+		encountersReplayed.reset();
+	}
+	
+	private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().sum());
+		}
+		return snapshot;
+	}
+	
+	private static class Timer {
+		
+		private final LongAdder count = new LongAdder();
+		
+		private final LongAdder totalNanos = new LongAdder();
+		
+		private final AtomicLong maxNanos = new AtomicLong();
+		
+		void record(long durationNanos) {
+			count.increment();
+			totalNanos.add(durationNanos);
+			maxNanos.accumulateAndGet(durationNanos, Math::max);
+		}
+		
+		TimerSnapshot snapshot() {
+			long snapshotCount = count.sum();
+			double meanMillis = snapshotCount == 0 ? 0 : totalNanos.sum() / (snapshotCount * 1e6);
+			return new TimerSnapshot(snapshotCount, meanMillis, maxNanos.get() / 1e6);
+		}
+		
+		void reset() {
+			count.reset();
+			totalNanos.reset();
+			maxNanos.set(0);
+		}
+	}
+}
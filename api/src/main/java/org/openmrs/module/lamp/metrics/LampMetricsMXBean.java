@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of the LAMP program automation, as exposed over JMX under {@link LampMetrics#OBJECT_NAME}.
+ */
+public interface LampMetricsMXBean {
+	
+	/**
+	 * @return the strategy executions and their duration, keyed by program
+	 */
+	Map<String, TimerSnapshot> getStrategyExecutions();
+	
+	/**
+	 * @return the number of state transitions applied by the strategies, keyed by program
+	 */
+	Map<String, Long> getTransitionsApplied();
+	
+	/**
+	 * @return the number of strategy executions that stopped without a transition, keyed by reason
+	 */
+	Map<String, Long> getShortCircuits();
+	
+	/**
+	 * @return the number of encounter saves handled by at least one strategy
+	 */
+	long getSaves();
+	
+	/**
+	 * @return the number of {@link #getSaves()} skipped because the encounter was unchanged since it was last processed
+	 */
+	long getUnchangedEncounters();
+	
+	/**
+	 * @return the number of encounter saves collapsed into a later save of the same encounter by event driven processing
+	 */
+	long getCoalescedEncounterSaves();
+	
+	/**
+	 * @return the number of database calls made by the strategies over all {@link #getSaves()}
+	 */
+	long getDbCalls();
+	
+	double getMeanDbCallsPerSave();
+	
+	long getMaxDbCallsPerSave();
+	
+	/**
+	 * @return the runs of the Complete LAMP Program Task and their duration
+	 */
+	TimerSnapshot getTaskRuns();
+	
+	/**
+	 * @return the number of enrollments read by the Complete LAMP Program Task over all its runs
+	 */
+	long getTaskRowsScanned();
+	
+	/**
+	 * @return the number of enrollments completed by the Complete LAMP Program Task over all its runs
+	 */
+	long getTaskEnrollmentsCompleted();
+	
+	/**
+	 * @return the chunks of encounters committed by the Replay LAMP Encounters Task and their duration
+	 */
+	TimerSnapshot getReplayChunks();
+	
+	/**
+	 * @return the number of encounters replayed by the Replay LAMP Encounters Task
+	 */
+	long getEncountersReplayed();
+	
+	/**
+	 * @return the throughput of the Replay LAMP Encounters Task over the time spent in its chunks
+	 */
+	double getReplayedEncountersPerSecond();
+	
+	/**
+	 * @return true once the metadata of the program rules was validated without problems, false before it is validated
+	 */
+	boolean isReady();
+	
+	/**
+	 * @return the problems found by the last validation of the metadata of the program rules
+	 */
+	List<String> getMetadataProblems();
+	
+	/**
+	 * Resets the counters and timers, not the outcome of the metadata validation.
+	 */
+	void reset();
+}
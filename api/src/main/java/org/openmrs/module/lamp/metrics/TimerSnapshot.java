@@ -0,0 +1,43 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time view of a timer, mapped to a composite value over JMX.
+ */
+public class TimerSnapshot {
+	
+	private final long count;
+	
+	private final double meanMillis;
+	
+	private final double maxMillis;
+	
+	@ConstructorProperties({ "count", "meanMillis", "maxMillis" })
+	public TimerSnapshot(long count, double meanMillis, double maxMillis) {
+		this.count = count;
+		this.meanMillis = meanMillis;
+		this.maxMillis = maxMillis;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+	
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+}
@@ -7,97 +7,558 @@ import org.openmrs.PatientState;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.lamp.LampConfig;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.ProgramRules;
 import org.openmrs.module.lamp.Utils;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
 import org.openmrs.scheduler.tasks.AbstractTask;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class CompleteProgramsTask extends AbstractTask {
 	
 	private static final Log log = LogFactory.getLog(CompleteProgramsTask.class);
 	
+	static final int DEFAULT_BATCH_SIZE = 200;
+	
+	static final int DEFAULT_MAX_SLEEP_MINUTES = 60;
+	
+	/**
+	 * The number of seconds a node holds the lease of a program without renewing it, renewed with every chunk
+	 */
+	static final int LEASE_SECONDS = 300;
+	
+	static final String LEASE_PREFIX = "completePrograms.";
+	
+	/**
+	 * Identifies this node, and this module start, as the owner of the leases it acquires
+	 */
+	static final String LEASE_OWNER = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+	
+	/**
+	 * Keeps a run that outlasts the repeat interval from overlapping the next run on this node
+	 */
+	private static final AtomicBoolean RUNNING = new AtomicBoolean();
+	
+	private LampDao dao;
+	
+	private TransactionTemplate transactionTemplate;
+	
+	private int batchSize;
+	
+	private boolean setBased;
+	
+	private final AtomicLong rowsScanned = new AtomicLong();
+	
+	private final AtomicLong enrollmentsCompleted = new AtomicLong();
+	
+	private volatile boolean cancelled;
+	
+	private volatile boolean leaseLost;
+	
+	private volatile CompletionDryRun dryRun;
+	
+	/**
+	 * Completes the due enrollments of the programs whose lease this node acquires, so that the nodes of a cluster sharing
+	 * the database never process the same program at the same time. The ticks before the earliest due date left by the
+	 * previous run return straight away. With the {@code dryRun} task property set to true, nothing is completed and the
+	 * enrollments that would be are reported by a {@link CompletionDryRun} instead.
+	 */
 	@Override
 	public void execute() {
+		if (getTaskDefinition() != null
+		        && Boolean.parseBoolean(getTaskDefinition().getProperty(CompletionDryRun.PROPERTY_DRY_RUN))) {
+			dryRun = new CompletionDryRun(getTaskDefinition().getProperties());
+			dryRun.run();
+			return;
+		}
+		if (!RUNNING.compareAndSet(false, true)) {
+			log.warn("Skipping CompletePrograms Task, the previous run has not finished yet");
+			return;
+		}
+		CompletionSchedule schedule = Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class);
+		if (!schedule.isDue()) {
+			RUNNING.set(false);
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping CompletePrograms Task, no enrollment is due before " + schedule.getNextRunAt());
+			}
+			return;
+		}
+		
+		schedule.beginRun();
+		List<String> leases = new ArrayList<String>();
+		boolean scheduled = false;
+		try {
+			scheduled = completePrograms(leases, schedule);
+		}
+		finally {
+			releaseLeases(leases);
+			if (!scheduled) {
+				schedule.wakeUp();
+			}
+			RUNNING.set(false);
+		}
+	}
+	
+	/**
+	 * @return true if the next run was scheduled, false if the next tick has to run again because some of the due
+	 *         enrollments may have been left
+	 */
+	private boolean completePrograms(List<String> leases, CompletionSchedule schedule) {
 		log.debug("Executing CompletePrograms Task");
+		long start = System.nanoTime();
+		rowsScanned.set(0);
+		enrollmentsCompleted.set(0);
+		cancelled = false;
+		leaseLost = false;
 		ProgramWorkflowService service = Context.getProgramWorkflowService();
+		dao = Context.getRegisteredComponent("lamp.LampDao", LampDao.class);
+		transactionTemplate = new TransactionTemplate(Context.getRegisteredComponent("transactionManager",
+		    PlatformTransactionManager.class));
+		AdministrationService administrationService = Context.getAdministrationService();
+		batchSize = getBatchSize(administrationService);
+		setBased = Boolean.TRUE.equals(administrationService.getGlobalPropertyValue(
+		    LampConfig.GP_COMPLETE_PROGRAMS_SET_BASED, Boolean.FALSE));
+		boolean backfillDueDates = !Boolean.TRUE.equals(administrationService.getGlobalPropertyValue(
+		    LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED, Boolean.FALSE));
+		int parallelism = getParallelism(administrationService);
 		
-		completeProgramIfExists(service, LampConfig.PROGRAM_CHILD_NUTRITION_UUID, 18);
-		completeProgramIfExists(service, LampConfig.PROGRAM_PRENATAL_UUID, 44);
+		List<Partition> partitions = new ArrayList<Partition>();
+		boolean allPrograms = true;
+		for (ProgramRule rule : Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)
+		        .getCompletionRules()) {
+			allPrograms &= addPartitionsIfProgramExists(partitions, leases, service, rule, backfillDueDates, parallelism);
+		}
+		
+		if (backfillDueDates && allPrograms) {
+			administrationService.setGlobalProperty(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED, "true");
+		}
+		
+		CompletionPartitionRunner partitionRunner = Context.getRegisteredComponent("lamp.CompletionPartitionRunner",
+		    CompletionPartitionRunner.class);
+		if (parallelism > 1 && partitionRunner.isAvailable()) {
+			partitionRunner.runAll(partitions, parallelism);
+		} else {
+			for (Partition partition : partitions) {
+				partition.run();
+			}
+		}
+		
+		Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class).recordTaskRun(System.nanoTime() - start,
+		    rowsScanned.get(), enrollmentsCompleted.get());
+		
+		if (!allPrograms || cancelled || leaseLost) {
+			return false;
+		}
+		scheduleNextRun(schedule, partitions, administrationService);
+		return true;
 	}
 	
+	/**
+	 * Schedules the next run at the earliest due date left in the programs processed, which is usually weeks away since
+	 * the enrollments are due 18 or 44 weeks after they start.
+	 */
+	private void scheduleNextRun(CompletionSchedule schedule, final List<Partition> partitions,
+	        AdministrationService administrationService) {
+		Date earliestDueDate = transactionTemplate.execute(status -> {
+			Date earliest = null;
+			for (Partition partition : partitions) {
+				if (partition.index == 0) {
+					Date dueDate = dao.getEarliestCompletionDueDate(partition.program);
+					if (dueDate != null && (earliest == null || dueDate.before(earliest))) {
+						earliest = dueDate;
+					}
+				}
+			}
+			return earliest;
+		});
+		schedule.scheduleNextRun(earliestDueDate, getMaxSleepMinutes(administrationService));
+		if (log.isDebugEnabled()) {
+			log.debug("Scheduled the next run of CompletePrograms Task at " + schedule.getNextRunAt());
+		}
+	}
+	
+	/**
+	 * Stops the run in progress once the chunks being processed are committed.
+	 */
 	@Override
 	public void shutdown() {
 		log.debug("Shutting down CompletePrograms Task");
+		cancelled = true;
+		if (dryRun != null) {
+			dryRun.cancel();
+		}
 		stopExecuting();
 	}
 	
-	private void completeProgramIfExists(ProgramWorkflowService service, String programUuid, int weeksThreshold) {
+	/**
+	 * Acquires the given lease for this node. A lease row that does not exist yet is created in a transaction of its own,
+	 * so that when another node creates it at the same time only that insert fails and this node does not get the lease
+	 * this time, as if the other one held it.
+	 * 
+	 * @return true if this node holds the lease
+	 */
+	static boolean acquireLease(final LampDao dao, TransactionTemplate transactionTemplate, final String lease) {
+		if (Boolean.TRUE.equals(transactionTemplate.execute(status -> dao
+		        .acquireLease(lease, LEASE_OWNER, LEASE_SECONDS)))) {
+			return true;
+		}
+		if (Boolean.TRUE.equals(transactionTemplate.execute(status -> dao.leaseExists(lease)))) {
+			return false;
+		}
+		
+		TransactionTemplate newTransactionTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+		newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		try {
+			newTransactionTemplate.execute(status -> {
+				dao.createLease(lease);
+				return null;
+			});
+		}
+		catch (RuntimeException e) {
+			if (!LampDao.isConstraintViolation(e)) {
+				throw e;
+			}
+			return false;
+		}
+		return Boolean.TRUE.equals(transactionTemplate.execute(status -> dao.acquireLease(lease, LEASE_OWNER,
+		    LEASE_SECONDS)));
+	}
+	
+	private void releaseLeases(final List<String> leases) {
+		if (leases.isEmpty()) {
+			return;
+		}
+		transactionTemplate.execute(status -> {
+			for (String lease : leases) {
+				dao.releaseLease(lease, LEASE_OWNER);
+			}
+			return null;
+		});
+	}
+	
+	private int getBatchSize(AdministrationService administrationService) {
+		Integer value = administrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_BATCH_SIZE,
+		    DEFAULT_BATCH_SIZE);
+		if (value == null || value < 1) {
+			return DEFAULT_BATCH_SIZE;
+		}
+		return value;
+	}
+	
+	private int getMaxSleepMinutes(AdministrationService administrationService) {
+		Integer value = administrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_MAX_SLEEP_MINUTES,
+		    DEFAULT_MAX_SLEEP_MINUTES);
+		if (value == null || value < 1) {
+			return DEFAULT_MAX_SLEEP_MINUTES;
+		}
+		return value;
+	}
+	
+	private int getParallelism(AdministrationService administrationService) {
+		Integer value = administrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_PARALLELISM, 1);
+		if (value == null || value < 1) {
+			return 1;
+		}
+		return value;
+	}
+	
+	/**
+	 * Adds the partitions of the enrollments of the program due for completion, after backfilling their due dates if
+	 * needed. The enrollments are split in as many partitions as the configured parallelism. Nothing is added when another
+	 * node holds the lease of the program.
+	 * 
+	 * @return false if the due enrollments of the program were left to another node
+	 */
+	private boolean addPartitionsIfProgramExists(List<Partition> partitions, List<String> leases,
+	        ProgramWorkflowService service, ProgramRule rule, boolean backfillDueDates, int parallelism) {
+		String programUuid = rule.getProgramUuid();
+		int weeksThreshold = rule.getCompletionWeeks();
 		Program program = service.getProgramByUuid(programUuid);
-		if (program != null) {
-			completeProgramsStartedBefore(service, program, getThresholdDateWeeksAgo(weeksThreshold));
+		if (program == null) {
+			return true;
+		}
+		
+		// Resolved once up front, the session is cleared between pages so the program must not be navigated afterwards
+		ProgramWorkflowState completionState = getCompletionState(program, rule);
+		if (completionState == null) {
+			return true;
+		}
+		
+		final String lease = LEASE_PREFIX + programUuid;
+		if (!acquireLease(dao, transactionTemplate, lease)) {
+			log.debug("Skipping " + program.getName() + " enrollments, another node holds the lease " + lease);
+			return false;
+		}
+		leases.add(lease);
+		
+		if (backfillDueDates && !backfillCompletionDueDates(program, weeksThreshold, lease)) {
+			return false;
+		}
+		for (int index = 0; index < parallelism; index++) {
+			partitions.add(new Partition(program, completionState, weeksThreshold, lease, index, parallelism));
 		}
+		return true;
 	}
 	
-	private Date getThresholdDateWeeksAgo(int weeks) {
+	/**
+	 * @return the state the enrollments in the program are completed with, null if the workflow or the state of the rule
+	 *         do not exist
+	 */
+	static ProgramWorkflowState getCompletionState(Program program, ProgramRule rule) {
+		ProgramWorkflow workflow = Utils.getWorkflowByUuid(program, rule.getWorkflowUuid());
+		if (workflow == null) {
+			return null;
+		}
+		return Utils.getStateByConcept(workflow,
+		    Context.getConceptService().getConceptByUuid(rule.getCompletionStateConceptUuid()));
+	}
+	
+	/**
+	 * @return the date before which enrollments are due for completion after the given number of weeks
+	 */
+	static Date getThresholdDateWeeksAgo(int weeks) {
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.WEEK_OF_YEAR, -weeks);
 		return cal.getTime();
 	}
 	
-	private void completeProgramsStartedBefore(ProgramWorkflowService service, Program program, Date thresholdDate) {
-		List<PatientProgram> patientPrograms = service.getPatientPrograms(null, program, null, null, null, null, false);
-		
-		for (PatientProgram pp : patientPrograms) {
-			if (pp == null || Boolean.TRUE.equals(pp.getVoided()) || pp.getDateCompleted() != null
-			        || pp.getDateEnrolled() == null) {
-				continue;
+	/**
+	 * Records the completion due date of the enrollments that were created before due dates were recorded, one chunk of
+	 * {@link #batchSize} at a time.
+	 * 
+	 * @return false if the lease of the program was lost before all the due dates were recorded
+	 */
+	private boolean backfillCompletionDueDates(final Program program, final int weeksThreshold, final String lease) {
+		Integer lastId = 0;
+		Map<Integer, Date> chunk;
+		do {
+			final Integer afterId = lastId;
+			chunk = transactionTemplate.execute(status -> {
+				if (!dao.renewLease(lease, LEASE_OWNER, LEASE_SECONDS)) {
+					return null;
+				}
+				Map<Integer, Date> enrollmentDates = dao.getIncompletePatientProgramEnrollmentDates(program, afterId,
+				    batchSize);
+				for (Map.Entry<Integer, Date> entry : enrollmentDates.entrySet()) {
+					if (entry.getValue() != null) {
+						dao.saveCompletionDue(entry.getKey(), program.getProgramId(),
+						    Utils.getCompletionDueDate(entry.getValue(), weeksThreshold));
+					}
+				}
+				return enrollmentDates;
+			});
+			if (chunk == null) {
+				log.warn("Lost the lease " + lease + " while recording the completion due dates of " + program.getName()
+				        + " enrollments");
+				return false;
 			}
-			
-			if (pp.getDateEnrolled().before(thresholdDate)) {
-				completePatientProgram(pp, program);
+			for (Integer id : chunk.keySet()) {
+				lastId = id;
 			}
-		}
+		} while (chunk.size() == batchSize);
+		
+		log.info("Recorded the completion due dates of " + program.getName() + " enrollments");
+		return true;
 	}
 	
-	private void completePatientProgram(PatientProgram pp, Program program) {
-		String programUuid = pp.getProgram().getUuid();
+	/**
+	 * Completes the enrollments of the partition that are due for completion one chunk of {@link #batchSize} at a time,
+	 * each chunk in its own transaction so that row locks on patient_program and patient_state are only held for the
+	 * duration of a chunk. The due dates of a chunk are removed as it is processed, so each run only reads the enrollments
+	 * actually expiring.
+	 */
+	private void completeDuePrograms(final Partition partition) {
+		final Program program = partition.program;
+		final String programName = program.getName();
+		final int weeksThreshold = partition.weeksThreshold;
+		final Date now = new Date();
+		final Date thresholdDate = getThresholdDateWeeksAgo(weeksThreshold);
+		long start = System.nanoTime();
+		List<Integer> chunk;
+		do {
+			chunk = transactionTemplate.execute(status -> {
+				if (!dao.renewLease(partition.lease, LEASE_OWNER, LEASE_SECONDS)) {
+					partition.leaseLost = true;
+					return Collections.<Integer> emptyList();
+				}
+				dao.setJdbcBatchSize(batchSize);
+				List<Integer> dueIds = dao.getDuePatientProgramIds(program, now, partition.index, partition.count,
+				    batchSize);
+				if (dueIds.isEmpty()) {
+					return dueIds;
+				}
+				dao.deleteCompletionDue(dueIds);
+				partition.rowsScanned += dueIds.size();
+				if (setBased) {
+					partition.enrollmentsCompleted += completeInBulk(partition, dueIds, thresholdDate);
+					return dueIds;
+				}
+				Date transitionDate = new Date();
+				List<PatientProgram> patientPrograms = dao.getPatientPrograms(dueIds);
+				Map<Integer, List<PatientState>> activeStates = getActiveStates(dueIds, partition.completionState,
+				    transitionDate);
+				for (PatientProgram pp : patientPrograms) {
+					if (pp.getVoided() || pp.getDateCompleted() != null || pp.getDateEnrolled() == null) {
+						continue;
+					}
+					if (!pp.getDateEnrolled().before(thresholdDate)) {
+						// The enrollment date was changed after the due date was recorded
+						dao.saveCompletionDue(pp.getPatientProgramId(), program.getProgramId(),
+						    Utils.getCompletionDueDate(pp.getDateEnrolled(), weeksThreshold));
+						continue;
+					}
+					transitionProgramState(pp, activeStates.get(pp.getPatientProgramId()), partition.completionState,
+					    transitionDate, programName);
+					partition.enrollmentsCompleted++;
+				}
+				Context.flushSession();
+				return dueIds;
+			});
+			
+			// Keep the session small regardless of how many enrollments are due
+			Context.clearSession();
+			if (log.isDebugEnabled()) {
+				log.debug("Progress of " + partition + ": " + partition.enrollmentsCompleted + " completed out of "
+				        + partition.rowsScanned + " due");
+			}
+		} while (chunk.size() == batchSize && !cancelled);
+		
+		if (partition.leaseLost) {
+			leaseLost = true;
+			log.warn("Stopped " + partition + ", the lease " + partition.lease + " was taken over by another node");
+		}
 		
-		if (LampConfig.PROGRAM_CHILD_NUTRITION_UUID.equals(programUuid)) {
-			transitionProgramState(pp, program, LampConfig.WORKFLOW_CHILD_NUTRITION_UUID,
-			    LampConfig.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM, pp.getProgram().getName());
-		} else if (LampConfig.PROGRAM_PRENATAL_UUID.equals(programUuid)) {
-			transitionProgramState(pp, program, LampConfig.WORKFLOW_PRENATAL_UUID,
-			    LampConfig.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM, pp.getProgram().getName());
+		rowsScanned.addAndGet(partition.rowsScanned);
+		enrollmentsCompleted.addAndGet(partition.enrollmentsCompleted);
+		if (partition.rowsScanned > 0 || cancelled) {
+			log.info((cancelled ? "Cancelled " : "Finished ") + partition + ": " + partition.enrollmentsCompleted
+			        + " completed out of " + partition.rowsScanned + " due in "
+			        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
 		}
 	}
 	
-	private void transitionProgramState(PatientProgram pp, Program program, String workflowUuid, String conceptUuid,
-	        String programName) {
-		ProgramWorkflow workflow = Utils.getWorkflowByUuid(program, workflowUuid);
-		if (workflow == null) {
-			return;
+	/**
+	 * Completes the due enrollments of a chunk with a few bulk statements instead of loading them, see
+	 * {@link LampDao#transitionPatientPrograms}.
+	 * 
+	 * @return the number of enrollments completed
+	 */
+	private int completeInBulk(Partition partition, List<Integer> dueIds, Date thresholdDate) {
+		// The enrollment dates changed after the due dates were recorded
+		for (Map.Entry<Integer, Date> entry : dao.getEnrollmentDatesNotBefore(dueIds, thresholdDate).entrySet()) {
+			dao.saveCompletionDue(entry.getKey(), partition.program.getProgramId(),
+			    Utils.getCompletionDueDate(entry.getValue(), partition.weeksThreshold));
 		}
-		
-		ProgramWorkflowState programWorkflowState = Utils.getStateByConcept(workflow, Context.getConceptService()
-		        .getConceptByUuid(conceptUuid));
-		if (programWorkflowState == null) {
-			return;
+		int completed = dao.transitionPatientPrograms(dueIds, partition.completionState, thresholdDate, new Date(),
+		    Context.getAuthenticatedUser());
+		log.info("Auto-completed " + completed + " " + partition.program.getName() + " programs");
+		return completed;
+	}
+	
+	/**
+	 * Queries the active states of the workflow of the completion state of a chunk of enrollments at once, so that the
+	 * state history of each enrollment and the workflow of each of its states are not loaded to find them.
+	 * 
+	 * @return the active states keyed by enrollment id
+	 */
+	private Map<Integer, List<PatientState>> getActiveStates(List<Integer> patientProgramIds,
+	        ProgramWorkflowState completionState, Date date) {
+		Map<Integer, List<PatientState>> activeStates = new HashMap<Integer, List<PatientState>>();
+		for (PatientState ps : dao.getActivePatientStates(patientProgramIds, completionState.getProgramWorkflow(), date)) {
+			Integer patientProgramId = ps.getPatientProgram().getPatientProgramId();
+			List<PatientState> states = activeStates.get(patientProgramId);
+			if (states == null) {
+				states = new ArrayList<PatientState>();
+				activeStates.put(patientProgramId, states);
+			}
+			states.add(ps);
 		}
-		for (PatientState ps : pp.getStates()) {
-			if (ps.getActive() && ps.getState().getProgramWorkflow().equals(programWorkflowState.getProgramWorkflow())) {
-				ps.setEndDate(new Date());
+		return activeStates;
+	}
+	
+	/**
+	 * Ends the given active states and adds the new state with {@link Utils#addState}, so that neither the states of the
+	 * enrollment nor the workflows of these states are loaded by the transition.
+	 */
+	private void transitionProgramState(PatientProgram pp, List<PatientState> activeStates,
+	        ProgramWorkflowState programWorkflowState, Date date, String programName) {
+		if (activeStates != null) {
+			for (PatientState ps : activeStates) {
+				ps.setEndDate(date);
 			}
 		}
 		
-		pp.transitionToState(programWorkflowState, new Date());
+		Utils.addState(pp, programWorkflowState, date, null);
+		if (Boolean.TRUE.equals(programWorkflowState.getTerminal())) {
+			pp.setDateCompleted(date);
+		}
 		
 		log.info("Auto-completed " + programName + " program");
 	}
+	
+	/**
+	 * A share of the enrollments of a program due for completion, processed sequentially within its own session.
+	 */
+	private class Partition implements Runnable {
+		
+		private final Program program;
+		
+		private final ProgramWorkflowState completionState;
+		
+		private final int weeksThreshold;
+		
+		private final String lease;
+		
+		private final int index;
+		
+		private final int count;
+		
+		private long rowsScanned;
+		
+		private long enrollmentsCompleted;
+		
+		private boolean leaseLost;
+		
+		Partition(Program program, ProgramWorkflowState completionState, int weeksThreshold, String lease, int index,
+		        int count) {
+			this.program = program;
+			this.completionState = completionState;
+			this.weeksThreshold = weeksThreshold;
+			this.lease = lease;
+			this.index = index;
+			this.count = count;
+		}
+		
+		@Override
+		public void run() {
+			completeDuePrograms(this);
+		}
+		
+		@Override
+		public String toString() {
+			return "partition " + (index + 1) + "/" + count + " of " + program.getName();
+		}
+	}
 }
@@ -0,0 +1,226 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.scheduler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Program;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.db.EnrollmentCursor;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Evaluates the completion thresholds of {@link CompleteProgramsTask} against every incomplete enrollment without
+ * changing any of them, and streams the enrollments that would be completed to a CSV file along with the number of
+ * enrollments scanned and the time taken per program. The enrollments are read through cursors that are reopened every
+ * {@link #CURSOR_WINDOW} rows, so the memory used does not grow with the number of enrollments. The thresholds can be
+ * overridden per program rule with the {@code completionWeeks.<rule name>} task properties, to size a change before it
+ * is made.
+ */
+class CompletionDryRun {
+	
+	private static final Log log = LogFactory.getLog(CompletionDryRun.class);
+	
+	static final String PROPERTY_DRY_RUN = "dryRun";
+	
+	/**
+	 * The path of the report, a timestamped file in the lamp directory of the application data directory by default
+	 */
+	static final String PROPERTY_REPORT_FILE = "reportFile";
+	
+	static final String PROPERTY_COMPLETION_WEEKS_PREFIX = "completionWeeks.";
+	
+	static final String HEADER = "program,patient_program_id,patient_id,date_enrolled,completion_weeks,would_be_state";
+	
+	static final int FETCH_SIZE = 1000;
+	
+	/**
+	 * The number of enrollments read through a cursor before it is opened again after the last one read
+	 */
+	static final int CURSOR_WINDOW = 100000;
+	
+	private static final AtomicBoolean RUNNING = new AtomicBoolean();
+	
+	private final Map<String, String> properties;
+	
+	private volatile boolean cancelled;
+	
+	CompletionDryRun(Map<String, String> properties) {
+		this.properties = properties == null ? new HashMap<String, String>() : properties;
+	}
+	
+	void run() {
+		if (!RUNNING.compareAndSet(false, true)) {
+			log.warn("Skipping the dry run of CompletePrograms Task, the previous dry run has not finished yet");
+			return;
+		}
+		try {
+			File reportFile = getReportFile();
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile),
+			        StandardCharsets.UTF_8))) {
+				report(writer, reportFile);
+			}
+			catch (IOException e) {
+				throw new APIException("Failed to write the dry run report " + reportFile, e);
+			}
+		}
+		finally {
+			RUNNING.set(false);
+		}
+	}
+	
+	/**
+	 * Stops the dry run after the enrollment being read, leaving the report written so far.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+	
+	private void report(Writer writer, File reportFile) throws IOException {
+		log.info("Starting the dry run of CompletePrograms Task, reporting to " + reportFile);
+		long start = System.nanoTime();
+		LampDao dao = Context.getRegisteredComponent("lamp.LampDao", LampDao.class);
+		writer.write(HEADER);
+		writer.write('\n');
+		
+		long rowsScanned = 0;
+		long wouldComplete = 0;
+		for (ProgramRule rule : Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)
+		        .getCompletionRules()) {
+			if (cancelled) {
+				break;
+			}
+			Program program = Context.getProgramWorkflowService().getProgramByUuid(rule.getProgramUuid());
+			if (program == null) {
+				continue;
+			}
+			if (CompleteProgramsTask.getCompletionState(program, rule) == null) {
+				continue;
+			}
+			
+			ProgramReport programReport = new ProgramReport(program, getCompletionWeeks(rule),
+			        rule.getCompletionStateConceptUuid());
+			long programStart = System.nanoTime();
+			reportProgram(dao, writer, programReport);
+			rowsScanned += programReport.rowsScanned;
+			wouldComplete += programReport.wouldComplete;
+			log.info((cancelled ? "Cancelled" : "Finished") + " the dry run of " + program.getName() + ": "
+			        + programReport.wouldComplete + " would be completed after " + programReport.completionWeeks
+			        + " weeks out of " + programReport.rowsScanned + " incomplete in "
+			        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - programStart) + " ms");
+		}
+		
+		log.info((cancelled ? "Cancelled" : "Finished") + " the dry run of CompletePrograms Task: " + wouldComplete
+		        + " enrollments would be completed out of " + rowsScanned + " incomplete in "
+		        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, reported to " + reportFile);
+	}
+	
+	private void reportProgram(LampDao dao, Writer writer, ProgramReport programReport) throws IOException {
+		Date thresholdDate = CompleteProgramsTask.getThresholdDateWeeksAgo(programReport.completionWeeks);
+		String programName = escape(programReport.program.getName());
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		Integer lastId = 0;
+		int read;
+		do {
+			read = 0;
+			try (EnrollmentCursor cursor = dao.openIncompleteEnrollmentCursor(programReport.program, lastId,
+			    CURSOR_WINDOW, FETCH_SIZE)) {
+				while (!cancelled && cursor.next()) {
+					read++;
+					lastId = cursor.getPatientProgramId();
+					Date dateEnrolled = cursor.getDateEnrolled();
+					if (dateEnrolled == null || !dateEnrolled.before(thresholdDate)) {
+						continue;
+					}
+					writer.write(programName + "," + lastId + "," + cursor.getPatientId() + ","
+					        + dateFormat.format(dateEnrolled) + "," + programReport.completionWeeks + ","
+					        + programReport.stateUuid + "\n");
+					programReport.wouldComplete++;
+				}
+			}
+			programReport.rowsScanned += read;
+			writer.flush();
+		} while (read == CURSOR_WINDOW && !cancelled);
+	}
+	
+	private int getCompletionWeeks(ProgramRule rule) {
+		String value = properties.get(PROPERTY_COMPLETION_WEEKS_PREFIX + rule.getName());
+		if (StringUtils.isBlank(value)) {
+			return rule.getCompletionWeeks();
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new APIException("Invalid " + PROPERTY_COMPLETION_WEEKS_PREFIX + rule.getName() + " task property: "
+			        + value, e);
+		}
+	}
+	
+	private File getReportFile() {
+		String path = properties.get(PROPERTY_REPORT_FILE);
+		if (StringUtils.isNotBlank(path)) {
+			return new File(path.trim());
+		}
+		return new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("lamp"), "complete-programs-dry-run-"
+		        + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv");
+	}
+	
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (StringUtils.containsAny(value, ',', '"', '\n', '\r')) {
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+		return value;
+	}
+	
+	/**
+	 * The threshold evaluated for a program and the counts of its enrollments.
+	 */
+	private static class ProgramReport {
+		
+		private final Program program;
+		
+		private final int completionWeeks;
+		
+		private final String stateUuid;
+		
+		private long rowsScanned;
+		
+		private long wouldComplete;
+		
+		ProgramReport(Program program, int completionWeeks, String stateUuid) {
+			this.program = program;
+			this.completionWeeks = completionWeeks;
+			this.stateUuid = stateUuid;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the partitions of a {@link CompleteProgramsTask} run on a bounded number of daemon threads, each with its own
+ * Hibernate session and running as the daemon user. The scheduler instantiates its tasks itself, so the daemon token of
+ * the module is held by this bean rather than by the task.
+ */
+@Component("lamp.CompletionPartitionRunner")
+public class CompletionPartitionRunner {
+	
+	private static final Log log = LogFactory.getLog(CompletionPartitionRunner.class);
+	
+	private volatile DaemonToken daemonToken;
+	
+	public void setDaemonToken(DaemonToken daemonToken) {
+		this.daemonToken = daemonToken;
+	}
+	
+	/**
+	 * @return true once the module has started and partitions can be run on daemon threads
+	 */
+	public boolean isAvailable() {
+		return daemonToken != null;
+	}
+	
+	/**
+	 * Runs the partitions on at most the given number of threads and waits for all of them to finish. A failing
+	 * partition is logged and does not stop the others.
+	 */
+	public void runAll(Collection<? extends Runnable> partitions, int threads) {
+		final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>(partitions);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < Math.min(threads, partitions.size()); i++) {
+			workers.add(Daemon.runInDaemonThread(() -> {
+				Runnable partition;
+				while ((partition = pending.poll()) != null) {
+					try {
+						partition.run();
+					}
+					catch (RuntimeException e) {
+						log.error("Failed to run " + partition, e);
+					}
+				}
+			}, daemonToken));
+		}
+		
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
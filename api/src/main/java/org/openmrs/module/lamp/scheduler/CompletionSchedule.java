@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.scheduler;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the time at which {@link CompleteProgramsTask} next has enrollments to complete. The scheduler still fires the
+ * task at its repeat interval, but the ticks before that time return without touching the database.
+ */
+@Component("lamp.CompletionSchedule")
+public class CompletionSchedule {
+	
+	private final AtomicLong nextRunAt = new AtomicLong();
+	
+	/**
+	 * @return true if the task has to run now
+	 */
+	public boolean isDue() {
+		return System.currentTimeMillis() >= nextRunAt.get();
+	}
+	
+	public Date getNextRunAt() {
+		return new Date(nextRunAt.get());
+	}
+	
+	/**
+	 * Holds off the next runs until the run in progress schedules the next one, while still recording the due dates that
+	 * are recorded in the meantime.
+	 */
+	public void beginRun() {
+		nextRunAt.set(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Schedules the next run at the earliest due date left, but no later than the given number of minutes from now so
+	 * that the due dates recorded by the other nodes of a cluster are picked up too. Due dates recorded since
+	 * {@link #beginRun()} are kept if they are earlier.
+	 * 
+	 * @param earliestDueDate the earliest due date left, null if none is
+	 */
+	public void scheduleNextRun(Date earliestDueDate, int maxSleepMinutes) {
+		long nextRun = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(maxSleepMinutes);
+		if (earliestDueDate != null) {
+			nextRun = Math.min(nextRun, earliestDueDate.getTime());
+		}
+		nextRunAt.accumulateAndGet(nextRun, Math::min);
+	}
+	
+	/**
+	 * Brings the next run forward to the given due date if it is earlier than the one scheduled.
+	 */
+	public void wakeUpBy(Date dueDate) {
+		nextRunAt.accumulateAndGet(dueDate.getTime(), Math::min);
+	}
+	
+	/**
+	 * Makes the next tick of the task run.
+	 */
+	public void wakeUp() {
+		nextRunAt.set(0);
+	}
+}
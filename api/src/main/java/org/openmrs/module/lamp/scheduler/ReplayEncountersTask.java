@@ -0,0 +1,300 @@
+package org.openmrs.module.lamp.scheduler;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.LampConfig;
+import org.openmrs.module.lamp.PatientLocks;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.async.EncounterEvent;
+import org.openmrs.module.lamp.db.EncounterCursor;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.db.ReplayCheckpoint;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replays the historic encounters of the types handled by the program rules through the
+ * {@link ProgramStrategyDispatcher}, so that the program states of the encounters recorded before the module was
+ * deployed are filled in. The encounters are streamed in encounter datetime order, which also replays the encounters of
+ * each patient in order, and processed one transaction per encounter. Each chunk records the position the task resumes
+ * from in the lamp_replay_checkpoint table, so the task can be stopped at any time and runs once to completion; delete the
+ * row of the checkpoint to replay the encounters again.
+ */
+@Component
+public class ReplayEncountersTask extends AbstractTask {
+	
+	private static final Log log = LogFactory.getLog(ReplayEncountersTask.class);
+	
+	static final int DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * The number of chunks read through a cursor before it is opened again from the checkpoint, so that neither the
+	 * cursor nor what the driver buffers of it grows with the number of encounters
+	 */
+	static final int CHUNKS_PER_CURSOR = 100;
+	
+	static final String CHECKPOINT = "replayEncounters";
+	
+	static final String LEASE = "replayEncounters";
+	
+	static final String REASON = "Replay of the historic encounters";
+	
+	private static final int MAX_ERROR_LENGTH = 1024;
+	
+	/**
+	 * The number of times an encounter is replayed when it conflicts with another update of its patient
+	 */
+	static final int MAX_ATTEMPTS = 3;
+	
+	private static final AtomicBoolean RUNNING = new AtomicBoolean();
+	
+	private LampDao dao;
+	
+	private TransactionTemplate transactionTemplate;
+	
+	private ProgramStrategyDispatcher dispatcher;
+	
+	private LampMetrics metrics;
+	
+	private volatile boolean cancelled;
+	
+	@Override
+	public void execute() {
+		if (!RUNNING.compareAndSet(false, true)) {
+			log.warn("Skipping ReplayEncounters Task, the previous run has not finished yet");
+			return;
+		}
+		try {
+			replayEncounters();
+		}
+		finally {
+			RUNNING.set(false);
+		}
+	}
+	
+	private void replayEncounters() {
+		cancelled = false;
+		dao = Context.getRegisteredComponent("lamp.LampDao", LampDao.class);
+		transactionTemplate = new TransactionTemplate(Context.getRegisteredComponent("transactionManager",
+		    PlatformTransactionManager.class));
+		dispatcher = Context.getRegisteredComponent("lamp.ProgramStrategyDispatcher", ProgramStrategyDispatcher.class);
+		metrics = Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class);
+		int batchSize = getBatchSize(Context.getAdministrationService());
+		
+		Set<String> encounterTypeUuids = new LinkedHashSet<String>();
+		for (ProgramRule rule : Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class).getRules()) {
+			encounterTypeUuids.addAll(rule.getEncounterTypeUuids());
+		}
+		if (encounterTypeUuids.isEmpty()) {
+			log.debug("Skipping ReplayEncounters Task, there are no program rules");
+			return;
+		}
+		
+		ReplayCheckpoint checkpoint = transactionTemplate.execute(status -> dao.getReplayCheckpoint(CHECKPOINT));
+		if (checkpoint == null) {
+			checkpoint = ReplayCheckpoint.start();
+		} else if (checkpoint.isCompleted()) {
+			log.debug("Skipping ReplayEncounters Task, the encounters were already replayed");
+			return;
+		}
+		
+		if (!CompleteProgramsTask.acquireLease(dao, transactionTemplate, LEASE)) {
+			log.info("Skipping ReplayEncounters Task, another node holds the lease " + LEASE);
+			return;
+		}
+		try {
+			replayFrom(checkpoint, encounterTypeUuids, batchSize);
+		}
+		finally {
+			transactionTemplate.execute(status -> {
+				dao.releaseLease(LEASE, CompleteProgramsTask.LEASE_OWNER);
+				return null;
+			});
+		}
+	}
+	
+	private void replayFrom(ReplayCheckpoint checkpoint, Set<String> encounterTypeUuids, int batchSize) {
+		long start = System.nanoTime();
+		long replayedBefore = checkpoint.getEncountersReplayed();
+		log.info("Replaying the encounters from " + checkpoint);
+		
+		int window = batchSize * CHUNKS_PER_CURSOR;
+		int read;
+		do {
+			read = 0;
+			List<Integer> encounterIds = new ArrayList<Integer>(batchSize);
+			Date lastDatetime = null;
+			Integer lastId = null;
+			try (EncounterCursor cursor = dao.openEncounterCursor(encounterTypeUuids, checkpoint, window, batchSize)) {
+				while (!cancelled && cursor.next()) {
+					read++;
+					lastId = cursor.getEncounterId();
+					lastDatetime = cursor.getEncounterDatetime();
+					encounterIds.add(lastId);
+					if (encounterIds.size() == batchSize) {
+						checkpoint = replayChunk(encounterIds, checkpoint, lastDatetime, lastId);
+						if (checkpoint == null) {
+							return;
+						}
+						encounterIds.clear();
+					}
+				}
+			}
+			if (!cancelled && !encounterIds.isEmpty()) {
+				checkpoint = replayChunk(encounterIds, checkpoint, lastDatetime, lastId);
+				if (checkpoint == null) {
+					return;
+				}
+			}
+			
+			long replayed = checkpoint.getEncountersReplayed() - replayedBefore;
+			long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			log.info("Replayed " + replayed + " encounters at " + (replayed * 1000 / elapsedMillis)
+			        + " encounters/s, up to " + checkpoint);
+		} while (read == window && !cancelled);
+		
+		if (cancelled) {
+			log.info("Cancelled ReplayEncounters Task at " + checkpoint);
+			return;
+		}
+		final ReplayCheckpoint completed = new ReplayCheckpoint(checkpoint.getEncounterDatetime(),
+		        checkpoint.getEncounterId(), checkpoint.getEncountersReplayed(), true);
+		transactionTemplate.execute(status -> {
+			dao.saveReplayCheckpoint(CHECKPOINT, completed);
+			return null;
+		});
+		log.info("Finished replaying the encounters, " + completed.getEncountersReplayed() + " replayed in total");
+	}
+	
+	/**
+	 * Replays the encounters of a chunk in the order they were read, each in its own transaction so that the lock of its
+	 * patient is released as soon as the encounter is committed rather than held against the encounters saved meanwhile
+	 * until the end of the chunk. Encounters failing on a concurrent update of their patient are retried, those that
+	 * still fail are recorded in the dead letter table so that a single faulty encounter does not stop the replay. The
+	 * new checkpoint is recorded once the whole chunk is replayed, the encounters replayed again after a crash being
+	 * skipped by their fingerprint.
+	 * 
+	 * @return the new checkpoint, or null if the lease was taken over by another node
+	 */
+	private ReplayCheckpoint replayChunk(final List<Integer> encounterIds, ReplayCheckpoint checkpoint, Date lastDatetime,
+	        Integer lastId) {
+		final ReplayCheckpoint next = new ReplayCheckpoint(lastDatetime, lastId, checkpoint.getEncountersReplayed()
+		        + encounterIds.size(), false);
+		final User user = Context.getAuthenticatedUser();
+		long start = System.nanoTime();
+		Boolean renewed = transactionTemplate.execute(status -> dao.renewLease(LEASE, CompleteProgramsTask.LEASE_OWNER,
+		    CompleteProgramsTask.LEASE_SECONDS));
+		if (Boolean.TRUE.equals(renewed)) {
+			for (Integer encounterId : encounterIds) {
+				replayEncounter(encounterId, user);
+			}
+			renewed = transactionTemplate.execute(status -> {
+				if (!dao.renewLease(LEASE, CompleteProgramsTask.LEASE_OWNER, CompleteProgramsTask.LEASE_SECONDS)) {
+					return false;
+				}
+				dao.saveReplayCheckpoint(CHECKPOINT, next);
+				return true;
+			});
+		}
+		if (!Boolean.TRUE.equals(renewed)) {
+			log.warn("Stopped ReplayEncounters Task, the lease " + LEASE + " was taken over by another node");
+			return null;
+		}
+		metrics.recordReplayChunk(encounterIds.size(), System.nanoTime() - start);
+		return next;
+	}
+	
+	private void replayEncounter(final Integer encounterId, final User user) {
+		RuntimeException lastError = null;
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			try {
+				transactionTemplate.execute(status -> {
+					for (Encounter encounter : getEncountersInOrder(Collections.singletonList(encounterId))) {
+						dispatcher.dispatch(encounter, user, new Date(), REASON);
+					}
+					return null;
+				});
+				return;
+			}
+			catch (RuntimeException e) {
+				lastError = e;
+				if (!PatientLocks.isConflict(e)) {
+					break;
+				}
+				log.warn("Attempt " + attempt + " of " + MAX_ATTEMPTS + " to replay the encounter " + encounterId
+				        + " conflicted with another update of its patient", e);
+			}
+			finally {
+				// Keep the session small regardless of how many encounters are replayed
+				Context.clearSession();
+			}
+		}
+		
+		log.error("Failed to replay the encounter " + encounterId, lastError);
+		final String error = StringUtils.abbreviate(String.valueOf(lastError), MAX_ERROR_LENGTH);
+		transactionTemplate.execute(status -> {
+			Encounter encounter = Context.getEncounterService().getEncounter(encounterId);
+			if (encounter != null) {
+				dao.saveDeadLetter(EncounterEvent.of(encounter), 1, error);
+			}
+			return null;
+		});
+		Context.clearSession();
+	}
+	
+	private List<Encounter> getEncountersInOrder(List<Integer> encounterIds) {
+		Map<Integer, Encounter> encountersById = new HashMap<Integer, Encounter>();
+		for (Encounter encounter : dao.getEncounters(encounterIds)) {
+			encountersById.put(encounter.getEncounterId(), encounter);
+		}
+		List<Encounter> encounters = new ArrayList<Encounter>(encounterIds.size());
+		for (Integer encounterId : encounterIds) {
+			Encounter encounter = encountersById.get(encounterId);
+			// Voided since the cursor read it
+			if (encounter != null && !encounter.getVoided()) {
+				encounters.add(encounter);
+			}
+		}
+		return encounters;
+	}
+	
+	/**
+	 * Stops the replay once the chunk being processed is committed, the next run resumes from its checkpoint.
+	 */
+	@Override
+	public void shutdown() {
+		log.debug("Shutting down ReplayEncounters Task");
+		cancelled = true;
+		stopExecuting();
+	}
+	
+	private int getBatchSize(AdministrationService administrationService) {
+		Integer value = administrationService.getGlobalPropertyValue(LampConfig.GP_REPLAY_ENCOUNTERS_BATCH_SIZE,
+		    DEFAULT_BATCH_SIZE);
+		if (value == null || value < 1) {
+			return DEFAULT_BATCH_SIZE;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,144 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class EnrollmentCacheTest {
+	
+	private Patient patient;
+	
+	private Program program;
+	
+	private PatientProgram enrollment;
+	
+	private AtomicInteger queries;
+	
+	private Supplier<PatientProgram> loader;
+	
+	@Before
+	public void setup() {
+		patient = new Patient(1);
+		program = new Program(2);
+		enrollment = new PatientProgram(3);
+		enrollment.setPatient(patient);
+		enrollment.setProgram(program);
+		queries = new AtomicInteger();
+		loader = () -> {
+			queries.incrementAndGet();
+			return enrollment;
+		};
+	}
+	
+	@After
+	public void tearDown() {
+		TransactionSynchronizationManager.unbindResourceIfPossible(EnrollmentCache.class);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+	@Test
+	public void shouldNotCacheOutsideOfATransaction() {
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		assertEquals(2, queries.get());
+	}
+	
+	@Test
+	public void shouldQueryTheActiveEnrollmentOncePerTransaction() {
+		TransactionSynchronizationManager.initSynchronization();
+		
+		assertSame(enrollment, EnrollmentCache.getActiveEnrollment(patient, program, loader));
+		assertSame(enrollment, EnrollmentCache.getActiveEnrollment(new Patient(1), new Program(2), loader));
+		EnrollmentCache.getActiveEnrollment(patient, new Program(4), loader);
+		
+		assertEquals(2, queries.get());
+	}
+	
+	@Test
+	public void shouldCacheTheAbsenceOfAnActiveEnrollmentUntilOneIsCreated() {
+		TransactionSynchronizationManager.initSynchronization();
+		Supplier<PatientProgram> none = () -> {
+			queries.incrementAndGet();
+			return null;
+		};
+		
+		assertNull(EnrollmentCache.getActiveEnrollment(patient, program, none));
+		assertNull(EnrollmentCache.getActiveEnrollment(patient, program, none));
+		EnrollmentCache.evict(enrollment);
+		EnrollmentCache.put(enrollment);
+		
+		assertSame(enrollment, EnrollmentCache.getActiveEnrollment(patient, program, none));
+		assertEquals(1, queries.get());
+	}
+	
+	@Test
+	public void shouldEvictAnEnrollmentSavedAsCompleted() {
+		TransactionSynchronizationManager.initSynchronization();
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		EnrollmentCache.evict(enrollment);
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		enrollment.setDateCompleted(new Date());
+		EnrollmentCache.evict(enrollment);
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		assertEquals(2, queries.get());
+	}
+	
+	@Test
+	public void shouldEvictTheActiveEnrollmentWhenAnotherEnrollmentOfTheProgramIsSaved() {
+		TransactionSynchronizationManager.initSynchronization();
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		PatientProgram other = new PatientProgram();
+		other.setPatient(patient);
+		other.setProgram(program);
+		
+		EnrollmentCache.evict(other);
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		assertEquals(2, queries.get());
+	}
+	
+	@Test
+	public void shouldDropTheCacheOnceTheTransactionCompletes() {
+		TransactionSynchronizationManager.initSynchronization();
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+		}
+		
+		assertFalse(TransactionSynchronizationManager.hasResource(EnrollmentCache.class));
+	}
+	
+	@Test
+	public void shouldNotUseTheCacheOfASuspendedTransaction() {
+		TransactionSynchronizationManager.initSynchronization();
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		// A new transaction suspends the synchronizations of the enclosing one
+		TransactionSynchronizationManager.clearSynchronization();
+		TransactionSynchronizationManager.initSynchronization();
+		
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		EnrollmentCache.getActiveEnrollment(patient, program, loader);
+		
+		assertEquals(3, queries.get());
+	}
+}
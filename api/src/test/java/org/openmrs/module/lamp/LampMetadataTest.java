@@ -0,0 +1,116 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Concept;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.ProgramWorkflowService;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class LampMetadataTest {
+	
+	@Mock
+	private ProgramWorkflowService mockProgramWorkflowService;
+	
+	@Mock
+	private ConceptService mockConceptService;
+	
+	@Test
+	public void shouldIndexProgramsWorkflowsStatesAndConcepts() {
+		Concept stateConcept = new Concept(1);
+		stateConcept.setUuid("state-concept-uuid");
+		ProgramWorkflowState state = new ProgramWorkflowState();
+		state.setConcept(stateConcept);
+		
+		ProgramWorkflow workflow = new ProgramWorkflow();
+		workflow.setUuid("workflow-uuid");
+		workflow.addState(state);
+		
+		Program program = new Program();
+		program.setUuid("program-uuid");
+		program.addWorkflow(workflow);
+		when(mockProgramWorkflowService.getProgramByUuid("program-uuid")).thenReturn(program);
+		
+		Concept questionConcept = new Concept(2);
+		questionConcept.setUuid("question-uuid");
+		when(mockConceptService.getConceptByUuid("question-uuid")).thenReturn(questionConcept);
+		
+		LampMetadata metadata = LampMetadata.build(mockProgramWorkflowService, mockConceptService,
+		    Arrays.asList("program-uuid", "missing-program-uuid"), Arrays.asList("question-uuid", "missing-concept-uuid"));
+		
+		assertSame(program, metadata.getProgram("program-uuid"));
+		assertNull(metadata.getProgram("missing-program-uuid"));
+		assertSame(workflow, metadata.getWorkflow("program-uuid", "workflow-uuid"));
+		assertNull(metadata.getWorkflow("program-uuid", "other-workflow-uuid"));
+		assertSame(state, metadata.getStateByConcept(workflow, stateConcept));
+		assertNull(metadata.getStateByConcept(workflow, questionConcept));
+		assertSame(questionConcept, metadata.getConcept("question-uuid"));
+		assertNull(metadata.getConcept("missing-concept-uuid"));
+		assertTrue(metadata.isTrackedConcept("question-uuid"));
+		assertTrue(metadata.isTrackedConcept("state-concept-uuid"));
+		assertFalse(metadata.isTrackedConcept("unrelated-uuid"));
+	}
+	
+	@Test
+	public void shouldReturnNothingForUnknownWorkflow() {
+		LampMetadata metadata = LampMetadata.build(mockProgramWorkflowService, mockConceptService,
+		    Collections.<String> emptyList(), Collections.<String> emptyList());
+		
+		ProgramWorkflow workflow = new ProgramWorkflow();
+		workflow.setUuid("workflow-uuid");
+		assertNull(metadata.getStateByConcept(workflow, new Concept(1)));
+	}
+	
+	@Test
+	public void shouldReportTheMissingMetadataOfARule() {
+		Concept stateConcept = new Concept(1);
+		stateConcept.setUuid("state-concept-uuid");
+		ProgramWorkflowState state = new ProgramWorkflowState();
+		state.setConcept(stateConcept);
+		ProgramWorkflow workflow = new ProgramWorkflow();
+		workflow.setUuid("workflow-uuid");
+		workflow.addState(state);
+		Program program = new Program();
+		program.setUuid("program-uuid");
+		program.addWorkflow(workflow);
+		when(mockProgramWorkflowService.getProgramByUuid("program-uuid")).thenReturn(program);
+		Concept otherConcept = new Concept(2);
+		otherConcept.setUuid("other-concept-uuid");
+		when(mockConceptService.getConceptByUuid("other-concept-uuid")).thenReturn(otherConcept);
+		when(mockConceptService.getConceptByUuid("state-concept-uuid")).thenReturn(stateConcept);
+		
+		LampMetadata metadata = LampMetadata.build(mockProgramWorkflowService, mockConceptService,
+		    Arrays.asList("program-uuid", "missing-program-uuid"),
+		    Arrays.asList("other-concept-uuid", "state-concept-uuid", "missing-concept-uuid"));
+		
+		assertEquals(Collections.emptyList(), metadata.getProblems(new ProgramRule("valid", "program-uuid",
+		        "workflow-uuid", Arrays.asList("type-uuid"), Arrays.asList("other-concept-uuid"), 18, "state-concept-uuid")));
+		assertEquals(Arrays.asList("program rule missing: the question concept missing-concept-uuid does not exist",
+		    "program rule missing: the program missing-program-uuid does not exist"), metadata.getProblems(new ProgramRule(
+		        "missing", "missing-program-uuid", "workflow-uuid", Arrays.asList("type-uuid"), Arrays
+		                .asList("missing-concept-uuid"), null, null)));
+		assertEquals(Arrays.asList("program rule workflow: the workflow other-workflow-uuid is not a workflow of the"
+		        + " program program-uuid"), metadata.getProblems(new ProgramRule("workflow", "program-uuid",
+		        "other-workflow-uuid", Arrays.asList("type-uuid"), Arrays.asList("other-concept-uuid"), null, null)));
+		assertEquals(Arrays.asList("program rule state: the completion state concept other-concept-uuid is not a state of"
+		        + " the workflow workflow-uuid"), metadata.getProblems(new ProgramRule("state", "program-uuid",
+		        "workflow-uuid", Arrays.asList("type-uuid"), Arrays.asList("other-concept-uuid"), 18, "other-concept-uuid")));
+	}
+}
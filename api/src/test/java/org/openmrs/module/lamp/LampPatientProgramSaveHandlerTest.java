@@ -0,0 +1,145 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class LampPatientProgramSaveHandlerTest {
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private CompletionSchedule mockCompletionSchedule;
+	
+	@Mock
+	private ProgramRules mockProgramRules;
+	
+	private LampPatientProgramSaveHandler handler;
+	
+	private Date dateEnrolled;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		when(Context.getRegisteredComponent("lamp.LampDao", LampDao.class)).thenReturn(mockDao);
+		when(Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class)).thenReturn(
+		    mockCompletionSchedule);
+		when(Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)).thenReturn(mockProgramRules);
+		when(mockProgramRules.getCompletionRule(TestMetadata.PROGRAM_PRENATAL_UUID)).thenReturn(
+		    new ProgramRule("prenatal", TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID, Collections
+		            .singleton(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID), Collections
+		            .singletonList(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID), 44,
+		            TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM));
+		handler = new LampPatientProgramSaveHandler();
+		dateEnrolled = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30));
+	}
+	
+	@After
+	public void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+	private PatientProgram buildEnrollment(Integer patientProgramId) {
+		Program program = new Program(1);
+		program.setUuid(TestMetadata.PROGRAM_PRENATAL_UUID);
+		PatientProgram patientProgram = new PatientProgram(patientProgramId);
+		patientProgram.setPatient(new Patient(123));
+		patientProgram.setProgram(program);
+		patientProgram.setDateEnrolled(dateEnrolled);
+		return patientProgram;
+	}
+	
+	private void commit() {
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		for (TransactionSynchronization synchronization : synchronizations) {
+			synchronization.beforeCommit(false);
+		}
+		for (TransactionSynchronization synchronization : synchronizations) {
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+		}
+		TransactionSynchronizationManager.clearSynchronization();
+	}
+	
+	@Test
+	public void shouldRecordTheCompletionDueDateOfAnEnrollmentCreatedOutsideOfTheModule() {
+		TransactionSynchronizationManager.initSynchronization();
+		PatientProgram patientProgram = buildEnrollment(null);
+		
+		handler.handle(patientProgram, null, new Date(), null);
+		// Assigned by the save that follows the handlers
+		patientProgram.setPatientProgramId(42);
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+		commit();
+		
+		Date dueDate = Utils.getCompletionDueDate(dateEnrolled, 44);
+		verify(mockDao).saveCompletionDue(42, 1, dueDate);
+		verify(mockCompletionSchedule).wakeUpBy(dueDate);
+	}
+	
+	@Test
+	public void shouldUpdateTheDueDateOfAnEnrollmentSavedSeveralTimesOnce() {
+		TransactionSynchronizationManager.initSynchronization();
+		PatientProgram patientProgram = buildEnrollment(42);
+		
+		handler.handle(patientProgram, null, new Date(), null);
+		handler.handle(patientProgram, null, new Date(), null);
+		commit();
+		
+		verify(mockDao, times(1)).getCompletionDueDate(42);
+		verify(mockDao, times(1)).saveCompletionDue(42, 1, Utils.getCompletionDueDate(dateEnrolled, 44));
+	}
+	
+	@Test
+	public void shouldRemoveTheDueDateOfAnEnrollmentCompletedOutsideOfTheModule() {
+		PatientProgram patientProgram = buildEnrollment(42);
+		patientProgram.setDateCompleted(new Date());
+		when(mockDao.getCompletionDueDate(42)).thenReturn(Utils.getCompletionDueDate(dateEnrolled, 44));
+		
+		handler.handle(patientProgram, null, new Date(), null);
+		
+		verify(mockDao).deleteCompletionDue(Collections.singleton(42));
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+	}
+	
+	@Test
+	public void shouldOnlyRegisterOneSynchronizationPerTransaction() {
+		TransactionSynchronizationManager.initSynchronization();
+		
+		handler.handle(buildEnrollment(42), null, new Date(), null);
+		handler.handle(buildEnrollment(43), null, new Date(), null);
+		
+		assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+	}
+}
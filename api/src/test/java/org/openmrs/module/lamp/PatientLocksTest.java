@@ -0,0 +1,122 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.hibernate.StaleStateException;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class PatientLocksTest {
+	
+	private PatientLocks patientLocks;
+	
+	private ExecutorService executor;
+	
+	@Before
+	public void setup() {
+		patientLocks = new PatientLocks();
+		executor = Executors.newSingleThreadExecutor();
+	}
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+	@Test
+	public void shouldNotLockAnUnsavedPatient() {
+		assertFalse(patientLocks.lock(new Patient()));
+		assertFalse(patientLocks.lock(null));
+	}
+	
+	@Test
+	public void shouldLeaveTheUnlockToTheCallerOutsideOfATransaction() {
+		Patient patient = new Patient(1);
+		
+		assertTrue(patientLocks.lock(patient));
+		assertTrue(patientLocks.isLocked(patient));
+		
+		patientLocks.unlock(patient);
+		assertFalse(patientLocks.isLocked(patient));
+	}
+	
+	@Test
+	public void shouldHoldTheLockUntilTheTransactionCompletes() {
+		Patient patient = new Patient(1);
+		TransactionSynchronizationManager.initSynchronization();
+		
+		assertFalse(patientLocks.lock(patient));
+		assertFalse(patientLocks.lock(patient));
+		assertTrue(patientLocks.isLocked(patient));
+		
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		assertEquals(1, synchronizations.size());
+		synchronizations.get(0).afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+		assertFalse(patientLocks.isLocked(patient));
+	}
+	
+	@Test
+	public void shouldMakeOtherEncountersOfThePatientWait() throws Exception {
+		final Patient patient = new Patient(1);
+		assertTrue(patientLocks.lock(patient));
+		
+		Future<Boolean> other = executor.submit(() -> {
+			boolean unlock = patientLocks.lock(new Patient(1));
+			patientLocks.unlock(patient);
+			return unlock;
+		});
+		try {
+			other.get(200, TimeUnit.MILLISECONDS);
+			throw new AssertionError("The other encounter of the patient should wait for the lock");
+		}
+		catch (TimeoutException e) {
+			// Expected
+		}
+		
+		patientLocks.unlock(patient);
+		assertTrue(other.get(5, TimeUnit.SECONDS));
+		assertFalse(patientLocks.isLocked(patient));
+	}
+	
+	@Test
+	public void shouldNotMakeTheEncountersOfAnotherPatientWait() throws Exception {
+		final Patient patient = new Patient(1);
+		final Patient otherPatient = new Patient(2);
+		assertTrue(patientLocks.lock(patient));
+		
+		Future<Boolean> other = executor.submit(() -> {
+			boolean unlock = patientLocks.lock(otherPatient);
+			patientLocks.unlock(otherPatient);
+			return unlock;
+		});
+		
+		assertTrue(other.get(5, TimeUnit.SECONDS));
+		patientLocks.unlock(patient);
+	}
+	
+	@Test
+	public void shouldTellTheConflictsWithAConcurrentUpdateOfThePatient() {
+		assertTrue(PatientLocks.isConflict(new PatientLockTimeoutException("timed out")));
+		assertTrue(PatientLocks.isConflict(new APIException(new StaleStateException("row was updated"))));
+		assertTrue(PatientLocks.isConflict(new CannotAcquireLockException("deadlock")));
+		assertFalse(PatientLocks.isConflict(new IllegalStateException("faulty")));
+	}
+}
@@ -0,0 +1,451 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.User;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, Utils.class })
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class ProgramRuleTest {
+	
+	@Mock
+	private ProgramWorkflowService mockProgramWorkflowService;
+	
+	@Mock
+	private LampMetadataCache mockMetadataCache;
+	
+	@Mock
+	private LampMetadata mockMetadata;
+	
+	private ProgramRule childNutritionRule;
+	
+	private ProgramRule prenatalRule;
+	
+	private Map<Integer, Concept> latestCodedValues;
+	
+	private Encounter buildEncounter(boolean childNutritionType) {
+		EncounterType type = new EncounterType();
+		type.setUuid(childNutritionType ? TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID : "some-other-type");
+		
+		Patient patient = new Patient(999);
+		Location location = new Location(7);
+		location.setName("Clinic");
+		
+		Encounter encounter = new Encounter();
+		encounter.setEncounterType(type);
+		encounter.setPatient(patient);
+		encounter.setEncounterDatetime(new Date());
+		encounter.setLocation(location);
+		return encounter;
+	}
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		PowerMockito.mockStatic(Utils.class);
+		
+		when(Context.getProgramWorkflowService()).thenReturn(mockProgramWorkflowService);
+		when(Context.getRegisteredComponent("lamp.LampMetadataCache", LampMetadataCache.class)).thenReturn(
+		    mockMetadataCache);
+		when(mockMetadataCache.getMetadata()).thenReturn(mockMetadata);
+		
+		childNutritionRule = new ProgramRule("childNutrition", TestMetadata.PROGRAM_CHILD_NUTRITION_UUID,
+		        TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		        Collections.singleton(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID),
+		        Arrays.asList(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID,
+		            TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID), 18,
+		        TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		prenatalRule = new ProgramRule("prenatal", TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		        Collections.singleton(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID),
+		        Collections.singletonList(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID), 44,
+		        TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM);
+		latestCodedValues = new HashMap<Integer, Concept>();
+	}
+	
+	@Test
+	public void shouldExitWhenProgramIsNull() {
+		Encounter encounter = buildEncounter(true);
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(null);
+		
+		assertEquals(StrategyOutcome.MISSING_PROGRAM,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockMetadata, times(1)).getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID);
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+		verify(mockMetadata, never()).getConcept(anyString());
+	}
+	
+	@Test
+	public void shouldExitWhenMalnutritionConceptIsNull() {
+		Encounter encounter = buildEncounter(true);
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(new Program());
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    null);
+		
+		assertEquals(StrategyOutcome.MISSING_CONCEPT,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldExitWhenReasonForDischargeConceptIsNull() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    new Concept(101));
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    null);
+		
+		assertEquals(StrategyOutcome.MISSING_CONCEPT,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldExitWhenBothValuesAreNull() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    reasonC);
+		
+		PatientProgram patientProgram = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(patientProgram);
+		
+		// no coded value recorded for either question
+		assertEquals(StrategyOutcome.NO_VALUE,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldExitWhenWorkflowIsNull() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    reasonC);
+		
+		PatientProgram patientProgram = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(patientProgram);
+		
+		latestCodedValues.put(malC.getConceptId(), new Concept(201));
+		
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID))
+		        .thenReturn(null);
+		
+		assertEquals(StrategyOutcome.MISSING_WORKFLOW,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldExitWhenTargetStateFromMalnutritionStatusIsNull() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    reasonC);
+		
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		
+		Concept malValue = new Concept(201);
+		latestCodedValues.put(malC.getConceptId(), malValue);
+		
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID))
+		        .thenReturn(wf);
+		
+		when(mockMetadata.getStateByConcept(wf, malValue)).thenReturn(null);
+		
+		assertEquals(StrategyOutcome.MISSING_STATE,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldExitWhenTargetStateFromReasonForDischargeValueIsNull() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    reasonC);
+		
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		
+		// malnutrition value null, reason value present
+		Concept reasonValue = new Concept(301);
+		latestCodedValues.put(reasonC.getConceptId(), reasonValue);
+		
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID))
+		        .thenReturn(wf);
+		
+		when(mockMetadata.getStateByConcept(wf, reasonValue)).thenReturn(null);
+		
+		assertEquals(StrategyOutcome.MISSING_STATE,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(any(PatientProgram.class));
+	}
+	
+	@Test
+	public void shouldSetDateCompletedWhenReachedTargetWeight() {
+		Encounter encounter = buildEncounter(true);
+		Date now = new Date();
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(
+		    reasonC);
+		
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		
+		// malnutrition null; reason == REACHED_TARGET_GOAL_WEIGHT
+		
+		Concept reasonValue = new Concept(301);
+		latestCodedValues.put(reasonC.getConceptId(), reasonValue);
+		
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID))
+		        .thenReturn(wf);
+		
+		ProgramWorkflowState state = new ProgramWorkflowState();
+		state.setConcept(reasonValue);
+		state.setTerminal(true);
+		when(mockMetadata.getStateByConcept(wf, reasonValue)).thenReturn(state);
+		
+		assertEquals(StrategyOutcome.TRANSITIONED,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), now, "reason"));
+		
+		// dateCompleted should NOT be set because it came from malnutrition path
+		assertNull(pp.getDateCompleted());
+		assertTrue(state.getTerminal());
+		
+		// transition & save
+		assertEquals(encounter.getLocation(), pp.getLocation());
+		verify(mockProgramWorkflowService, times(1)).savePatientProgram(pp);
+	}
+	
+	@Test
+	public void shouldTransitionToTheStateOfTheLastAnsweredQuestion() {
+		Encounter encounter = buildEncounter(true);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(program);
+		Concept malC = new Concept(101);
+		Concept reasonC = new Concept(102);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(malC);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID)).thenReturn(reasonC);
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		Concept malValue = new Concept(201);
+		Concept reasonValue = new Concept(301);
+		latestCodedValues.put(malC.getConceptId(), malValue);
+		latestCodedValues.put(reasonC.getConceptId(), reasonValue);
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID))
+		        .thenReturn(wf);
+		ProgramWorkflowState dischargedState = new ProgramWorkflowState();
+		dischargedState.setConcept(reasonValue);
+		when(mockMetadata.getStateByConcept(wf, reasonValue)).thenReturn(dischargedState);
+		
+		assertEquals(StrategyOutcome.TRANSITIONED,
+		    childNutritionRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		PowerMockito.verifyStatic(Utils.class);
+		Utils.updateProgram(pp, encounter, dischargedState);
+		verify(mockMetadata, never()).getStateByConcept(wf, malValue);
+	}
+	
+	@Test
+	public void shouldTransitionPrenatalEnrollmentToTheStateOfThePregnancyStatus() {
+		Encounter encounter = buildEncounter(false);
+		encounter.getEncounterType().setUuid(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_PRENATAL_UUID)).thenReturn(program);
+		Concept pregnancyStatusConcept = new Concept(1000);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID)).thenReturn(
+		    pregnancyStatusConcept);
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		Concept prenatalStatusValue = new Concept(2000);
+		latestCodedValues.put(pregnancyStatusConcept.getConceptId(), prenatalStatusValue);
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID))
+		        .thenReturn(wf);
+		ProgramWorkflowState targetState = new ProgramWorkflowState();
+		when(mockMetadata.getStateByConcept(wf, prenatalStatusValue)).thenReturn(targetState);
+		
+		assertEquals(StrategyOutcome.TRANSITIONED,
+		    prenatalRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		assertEquals(encounter.getLocation(), pp.getLocation());
+		verify(mockProgramWorkflowService, times(1)).savePatientProgram(pp);
+	}
+	
+	@Test
+	public void shouldNotTransitionWhenThePatientWasInTheStateAtTheEncounterDatetime() {
+		Encounter encounter = buildEncounter(false);
+		encounter.getEncounterType().setUuid(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		Program program = new Program();
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_PRENATAL_UUID)).thenReturn(program);
+		Concept pregnancyStatusConcept = new Concept(1000);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID)).thenReturn(
+		    pregnancyStatusConcept);
+		PatientProgram pp = new PatientProgram();
+		PowerMockito.when(
+		    Utils.getOrCreateActiveProgramEnrollment(eq(mockProgramWorkflowService), eq(encounter.getPatient()),
+		        eq(program), any(Date.class))).thenReturn(pp);
+		Concept prenatalStatusValue = new Concept(2000);
+		latestCodedValues.put(pregnancyStatusConcept.getConceptId(), prenatalStatusValue);
+		ProgramWorkflow wf = new ProgramWorkflow();
+		when(mockMetadata.getWorkflow(TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID))
+		        .thenReturn(wf);
+		ProgramWorkflowState targetState = new ProgramWorkflowState();
+		when(mockMetadata.getStateByConcept(wf, prenatalStatusValue)).thenReturn(targetState);
+		PatientState stateOn = new PatientState();
+		PowerMockito.when(Utils.getStateOn(pp, wf, encounter.getEncounterDatetime())).thenReturn(stateOn);
+		PowerMockito.when(Utils.isState(stateOn, targetState)).thenReturn(true);
+		
+		assertEquals(StrategyOutcome.UNCHANGED_STATE,
+		    prenatalRule.execute(encounter, latestCodedValues, new User(), new Date(), "reason"));
+		
+		verify(mockProgramWorkflowService, never()).savePatientProgram(pp);
+		PowerMockito.verifyStatic(Utils.class, never());
+		Utils.updateProgram(any(PatientProgram.class), any(Encounter.class), any(ProgramWorkflowState.class));
+	}
+	
+	@Test
+	public void parse_shouldReadTheSettingsOfTheRule() {
+		ProgramRule rule = ProgramRule.parse("childNutrition", " encounterTypes=type-1, type-2 ; questions=q-2,q-1;"
+		        + " program=program-1; workflow=workflow-1; completionWeeks=18; completionState=state-1;");
+		
+		assertEquals("childNutrition", rule.getName());
+		assertEquals("program-1", rule.getProgramUuid());
+		assertEquals("workflow-1", rule.getWorkflowUuid());
+		assertEquals(new HashSet<String>(Arrays.asList("type-1", "type-2")), rule.getEncounterTypeUuids());
+		assertEquals(Arrays.asList("q-2", "q-1"), new ArrayList<String>(rule.getQuestionConceptUuids()));
+		assertEquals(Integer.valueOf(18), rule.getCompletionWeeks());
+		assertEquals("state-1", rule.getCompletionStateConceptUuid());
+	}
+	
+	@Test
+	public void getDefinition_shouldReturnTheSettingsParseReads() {
+		String definition = "encounterTypes=type-1,type-2; questions=q-2,q-1; program=program-1; workflow=workflow-1;"
+		        + " completionWeeks=18; completionState=state-1";
+		
+		assertEquals(definition, ProgramRule.parse("childNutrition", definition).getDefinition());
+		assertEquals(definition, ProgramRule.parse("renamed", "questions=q-2,q-1;encounterTypes=type-1,type-2;"
+		        + "program=program-1;workflow=workflow-1;completionState=state-1;completionWeeks=18").getDefinition());
+	}
+	
+	@Test
+	public void parse_shouldAllowRulesThatDoNotCompleteEnrollments() {
+		ProgramRule rule = ProgramRule.parse("followUp", "encounterTypes=type-1; questions=q-1; program=program-1;"
+		        + " workflow=workflow-1");
+		
+		assertNull(rule.getCompletionWeeks());
+		assertNull(rule.getCompletionStateConceptUuid());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_shouldRejectAMissingSetting() {
+		ProgramRule.parse("broken", "encounterTypes=type-1; questions=q-1; workflow=workflow-1");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_shouldRejectAnUnknownSetting() {
+		ProgramRule.parse("broken", "encounterTypes=type-1; questions=q-1; program=program-1; workflow=workflow-1;"
+		        + " completionDays=12");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_shouldRejectCompletionWeeksWithoutCompletionState() {
+		ProgramRule.parse("broken", "encounterTypes=type-1; questions=q-1; program=program-1; workflow=workflow-1;"
+		        + " completionWeeks=18");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_shouldRejectInvalidCompletionWeeks() {
+		ProgramRule.parse("broken", "encounterTypes=type-1; questions=q-1; program=program-1; workflow=workflow-1;"
+		        + " completionWeeks=eighteen; completionState=state-1");
+	}
+}
@@ -0,0 +1,171 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class ProgramRulesTest {
+	
+	private static final String CHILD_NUTRITION_RULE = "encounterTypes=type-1; questions=q-1,q-2; program=program-1;"
+	        + " workflow=workflow-1; completionWeeks=18; completionState=state-1";
+	
+	private static final String PRENATAL_RULE = "encounterTypes=type-2; questions=q-3; program=program-2;"
+	        + " workflow=workflow-2; completionWeeks=44; completionState=state-2";
+	
+	@Mock
+	private AdministrationService mockAdministrationService;
+	
+	@Mock
+	private ProgramStrategyDispatcher mockDispatcher;
+	
+	@Mock
+	private LampMetadataCache mockMetadataCache;
+	
+	@Mock
+	private CompletionSchedule mockCompletionSchedule;
+	
+	private List<GlobalProperty> globalProperties;
+	
+	private ProgramRules programRules;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		when(Context.getAdministrationService()).thenReturn(mockAdministrationService);
+		when(Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class)).thenReturn(
+		    mockCompletionSchedule);
+		globalProperties = new ArrayList<GlobalProperty>();
+		when(mockAdministrationService.getGlobalPropertiesByPrefix(LampConfig.GP_PROGRAM_RULES_PREFIX)).thenReturn(
+		    globalProperties);
+		
+		programRules = new ProgramRules();
+		Whitebox.setInternalState(programRules, "dispatcher", mockDispatcher);
+		Whitebox.setInternalState(programRules, "metadataCache", mockMetadataCache);
+	}
+	
+	private void setRule(String name, String definition) {
+		for (GlobalProperty globalProperty : globalProperties) {
+			if (globalProperty.getProperty().equals(LampConfig.GP_PROGRAM_RULES_PREFIX + name)) {
+				globalProperty.setPropertyValue(definition);
+				return;
+			}
+		}
+		globalProperties.add(new GlobalProperty(LampConfig.GP_PROGRAM_RULES_PREFIX + name, definition));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void reload_shouldLoadTheRulesOfTheGlobalProperties() {
+		setRule("childNutrition", CHILD_NUTRITION_RULE);
+		setRule("prenatal", PRENATAL_RULE);
+		
+		programRules.reload();
+		
+		assertEquals(2, programRules.getRules().size());
+		assertEquals("childNutrition", programRules.getRules().get(0).getName());
+		assertEquals(Integer.valueOf(44), programRules.getCompletionRule("program-2").getCompletionWeeks());
+		assertNull(programRules.getCompletionRule("program-3"));
+		verify(mockMetadataCache).setRules(programRules.getRules());
+		ArgumentCaptor<List> strategies = ArgumentCaptor.forClass(List.class);
+		verify(mockDispatcher).setStrategies(strategies.capture());
+		assertEquals(programRules.getRules(), strategies.getValue());
+	}
+	
+	@Test
+	public void reload_shouldSkipBlankAndInvalidRules() {
+		setRule("childNutrition", CHILD_NUTRITION_RULE);
+		setRule("disabled", " ");
+		setRule("broken", "encounterTypes=type-3; questions=q-4; workflow=workflow-3");
+		
+		programRules.reload();
+		
+		assertEquals(1, programRules.getRules().size());
+		assertEquals("program-1", programRules.getRules().get(0).getProgramUuid());
+	}
+	
+	@Test
+	public void getCompletionRule_shouldReturnTheFirstRuleThatCompletesTheProgram() {
+		setRule("childNutritionFollowUp", "encounterTypes=type-3; questions=q-4; program=program-1; workflow=workflow-3");
+		setRule("childNutrition", CHILD_NUTRITION_RULE);
+		setRule("childNutritionLegacy", CHILD_NUTRITION_RULE.replace("completionWeeks=18", "completionWeeks=20"));
+		
+		programRules.reload();
+		
+		assertEquals("childNutrition", programRules.getCompletionRule("program-1").getName());
+		assertEquals(1, programRules.getCompletionRules().size());
+	}
+	
+	@Test
+	public void reload_shouldRecomputeTheDueDatesWhenTheCompletionWeeksChange() {
+		setRule("childNutrition", CHILD_NUTRITION_RULE);
+		programRules.reload();
+		verify(mockAdministrationService, never()).setGlobalProperty(anyString(), anyString());
+		
+		setRule("childNutrition", CHILD_NUTRITION_RULE.replace("completionWeeks=18", "completionWeeks=20"));
+		programRules.reload();
+		
+		verify(mockAdministrationService).setGlobalProperty(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED, "false");
+		verify(mockCompletionSchedule).wakeUp();
+	}
+	
+	@Test
+	public void reload_shouldKeepTheDueDatesWhenOnlyTheQuestionsChange() {
+		setRule("childNutrition", CHILD_NUTRITION_RULE);
+		programRules.reload();
+		
+		setRule("childNutrition", CHILD_NUTRITION_RULE.replace("questions=q-1,q-2", "questions=q-2"));
+		programRules.reload();
+		
+		assertEquals(Arrays.asList("q-2"), new ArrayList<String>(programRules.getRules().get(0).getQuestionConceptUuids()));
+		verify(mockAdministrationService, never()).setGlobalProperty(anyString(), anyString());
+		verify(mockCompletionSchedule, never()).wakeUp();
+	}
+	
+	@Test
+	public void shouldListenToTheProgramRuleGlobalPropertiesOnly() {
+		assertTrue(programRules.supportsPropertyName(LampConfig.GP_PROGRAM_RULES_PREFIX + "childNutrition"));
+		assertFalse(programRules.supportsPropertyName(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED));
+		assertFalse(programRules.supportsPropertyName(null));
+	}
+	
+	@Test
+	public void globalPropertyChanged_shouldReloadAndValidateTheRules() {
+		programRules.reload();
+		setRule("prenatal", PRENATAL_RULE);
+		
+		programRules.globalPropertyChanged(globalProperties.get(0));
+		
+		assertEquals("program-2", programRules.getRules().get(0).getProgramUuid());
+		verify(mockDispatcher, times(2)).setStrategies(anyList());
+		verify(mockMetadataCache).validate();
+	}
+}
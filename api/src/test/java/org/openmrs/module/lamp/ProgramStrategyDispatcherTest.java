@@ -0,0 +1,293 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Program;
+import org.openmrs.User;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class ProgramStrategyDispatcherTest {
+	
+	@Mock
+	private ProgramStrategy childNutritionStrategy;
+	
+	@Mock
+	private ProgramStrategy prenatalStrategy;
+	
+	@Mock
+	private LampMetadataCache mockMetadataCache;
+	
+	@Mock
+	private LampMetadata mockMetadata;
+	
+	@Mock
+	private LampDao mockDao;
+	
+	private ProgramStrategyDispatcher dispatcher;
+	
+	private LampMetrics metrics;
+	
+	private PatientLocks patientLocks;
+	
+	private Concept malnutritionStatusConcept;
+	
+	private Concept pregnancyStatusConcept;
+	
+	@Before
+	public void setup() {
+		malnutritionStatusConcept = new Concept(101);
+		pregnancyStatusConcept = new Concept(102);
+		when(mockMetadataCache.getMetadata()).thenReturn(mockMetadata);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID)).thenReturn(
+		    malnutritionStatusConcept);
+		when(mockMetadata.getConcept(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID)).thenReturn(
+		    pregnancyStatusConcept);
+		
+		when(childNutritionStrategy.getProgramUuid()).thenReturn(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID);
+		when(prenatalStrategy.getProgramUuid()).thenReturn(TestMetadata.PROGRAM_PRENATAL_UUID);
+		when(childNutritionStrategy.getEncounterTypeUuids()).thenReturn(
+		    Collections.singleton(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID));
+		when(childNutritionStrategy.getQuestionConceptUuids()).thenReturn(
+		    Collections.singleton(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID));
+		when(prenatalStrategy.getEncounterTypeUuids()).thenReturn(
+		    new HashSet<String>(Arrays.asList(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID,
+		        TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID)));
+		when(prenatalStrategy.getQuestionConceptUuids()).thenReturn(
+		    Collections.singleton(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID));
+		when(childNutritionStrategy.getDefinition()).thenReturn("childNutrition");
+		when(prenatalStrategy.getDefinition()).thenReturn("prenatal");
+		
+		dispatcher = new ProgramStrategyDispatcher();
+		metrics = new LampMetrics();
+		Whitebox.setInternalState(dispatcher, "metadataCache", mockMetadataCache);
+		Whitebox.setInternalState(dispatcher, "metrics", metrics);
+		patientLocks = new PatientLocks();
+		Whitebox.setInternalState(dispatcher, "patientLocks", patientLocks);
+		Whitebox.setInternalState(dispatcher, "dao", mockDao);
+		dispatcher.setStrategies(Arrays.asList(childNutritionStrategy, prenatalStrategy));
+	}
+	
+	private Encounter buildEncounter(String encounterTypeUuid) {
+		EncounterType encounterType = new EncounterType();
+		encounterType.setUuid(encounterTypeUuid);
+		Encounter encounter = new Encounter();
+		encounter.setEncounterType(encounterType);
+		return encounter;
+	}
+	
+	@Test
+	public void shouldNotRunAnyStrategyForUnrelatedEncounterType() {
+		Encounter encounter = buildEncounter("some-other-type");
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(childNutritionStrategy, never()).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+		verify(prenatalStrategy, never()).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+	}
+	
+	@Test
+	public void shouldNotRunAnyStrategyForEncounterWithoutType() {
+		Encounter encounter = new Encounter();
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		dispatcher.dispatch(null, new User(), new Date(), "reason");
+		
+		assertNull(dispatcher.getStrategies(encounter));
+		verify(childNutritionStrategy, never()).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+	}
+	
+	@Test
+	public void shouldRunOnlyStrategiesRegisteredForTheEncounterType() {
+		Encounter encounter = buildEncounter(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(prenatalStrategy, times(1)).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+		verify(childNutritionStrategy, never()).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+	}
+	
+	@Test
+	public void shouldRunEveryStrategyRegisteredForTheEncounterType() {
+		Encounter encounter = buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID);
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(childNutritionStrategy, times(1)).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+		verify(prenatalStrategy, times(1)).execute(any(Encounter.class), any(),
+		    any(User.class), any(Date.class), anyString());
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldExtractTheCodedValuesOnceForAllStrategiesOfTheEncounterType() {
+		Encounter encounter = buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID);
+		Concept malnourished = new Concept(201);
+		Concept pregnant = new Concept(202);
+		encounter.addObs(buildCodedObs(malnutritionStatusConcept, malnourished));
+		encounter.addObs(buildCodedObs(pregnancyStatusConcept, pregnant));
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		ArgumentCaptor<Map> childValues = ArgumentCaptor.forClass(Map.class);
+		ArgumentCaptor<Map> prenatalValues = ArgumentCaptor.forClass(Map.class);
+		verify(childNutritionStrategy).execute(eq(encounter), childValues.capture(), any(User.class), any(Date.class),
+		    anyString());
+		verify(prenatalStrategy).execute(eq(encounter), prenatalValues.capture(), any(User.class), any(Date.class),
+		    anyString());
+		assertSame(childValues.getValue(), prenatalValues.getValue());
+		assertEquals(2, childValues.getValue().size());
+		assertEquals(malnourished, childValues.getValue().get(101));
+		assertEquals(pregnant, childValues.getValue().get(102));
+	}
+	
+	@Test
+	public void shouldRecordTheOutcomeOfEachStrategyExecution() {
+		Program childNutrition = new Program();
+		childNutrition.setName("Child Nutrition");
+		when(mockMetadata.getProgram(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(childNutrition);
+		when(childNutritionStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.TRANSITIONED);
+		when(prenatalStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.UNCHANGED_STATE);
+		
+		dispatcher.dispatch(buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID), new User(), new Date(),
+		    "reason");
+		
+		assertEquals(1, metrics.getStrategyExecutions().get("Child Nutrition").getCount());
+		assertEquals(1, metrics.getStrategyExecutions().get(TestMetadata.PROGRAM_PRENATAL_UUID).getCount());
+		assertEquals(Long.valueOf(1), metrics.getTransitionsApplied().get("Child Nutrition"));
+		assertEquals(Long.valueOf(1), metrics.getShortCircuits().get(StrategyOutcome.UNCHANGED_STATE.name()));
+		assertEquals(1, metrics.getSaves());
+	}
+	
+	@Test
+	public void shouldHoldTheLockOfThePatientWhileRunningTheStrategies() {
+		final Patient patient = new Patient(7);
+		when(childNutritionStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenAnswer(invocation -> {
+			        assertTrue(patientLocks.isLocked(patient));
+			        return StrategyOutcome.TRANSITIONED;
+		        });
+		Encounter encounter = buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID);
+		encounter.setPatient(patient);
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(childNutritionStrategy).execute(eq(encounter), any(), any(User.class), any(Date.class), anyString());
+		assertFalse(patientLocks.isLocked(patient));
+	}
+	
+	@Test
+	public void shouldSkipAnEncounterUnchangedSinceItWasLastProcessed() {
+		when(childNutritionStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.TRANSITIONED);
+		when(prenatalStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.NO_VALUE);
+		Encounter encounter = buildSavedEncounter();
+		
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		ArgumentCaptor<String> fingerprint = ArgumentCaptor.forClass(String.class);
+		verify(mockDao).saveEncounterFingerprint(eq(5), fingerprint.capture());
+		when(mockDao.getEncounterFingerprint(5)).thenReturn(fingerprint.getValue());
+		encounter.setDateChanged(new Date());
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(childNutritionStrategy, times(1)).execute(eq(encounter), any(), any(User.class), any(Date.class),
+		    anyString());
+		verify(mockDao, times(1)).saveEncounterFingerprint(eq(5), anyString());
+		assertEquals(1, metrics.getUnchangedEncounters());
+		assertEquals(2, metrics.getSaves());
+	}
+	
+	@Test
+	public void shouldProcessAnEncounterAgainWhenTheValuesTheStrategiesReadChange() {
+		when(childNutritionStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.TRANSITIONED);
+		when(prenatalStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.NO_VALUE);
+		Encounter encounter = buildSavedEncounter();
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		ArgumentCaptor<String> fingerprint = ArgumentCaptor.forClass(String.class);
+		verify(mockDao).saveEncounterFingerprint(eq(5), fingerprint.capture());
+		when(mockDao.getEncounterFingerprint(5)).thenReturn(fingerprint.getValue());
+		
+		Obs malnutritionStatus = encounter.getObs().iterator().next();
+		malnutritionStatus.setValueCoded(new Concept(202));
+		dispatcher.dispatch(encounter, new User(), new Date(), "reason");
+		
+		verify(childNutritionStrategy, times(2)).execute(eq(encounter), any(), any(User.class), any(Date.class),
+		    anyString());
+		assertEquals(0, metrics.getUnchangedEncounters());
+	}
+	
+	@Test
+	public void shouldNotRecordTheFingerprintOfAnEncounterStoppedShortByMissingMetadata() {
+		when(childNutritionStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.MISSING_STATE);
+		when(prenatalStrategy.execute(any(Encounter.class), any(), any(User.class), any(Date.class), anyString()))
+		        .thenReturn(StrategyOutcome.NO_VALUE);
+		
+		dispatcher.dispatch(buildSavedEncounter(), new User(), new Date(), "reason");
+		
+		verify(mockDao).getEncounterFingerprint(5);
+		verify(mockDao, never()).saveEncounterFingerprint(any(), any());
+	}
+	
+	private Encounter buildSavedEncounter() {
+		Encounter encounter = buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID);
+		encounter.setEncounterId(5);
+		encounter.setPatient(new Patient(7));
+		encounter.setEncounterDatetime(new Date());
+		Concept malnourished = new Concept(201);
+		malnourished.setUuid("malnourished");
+		encounter.addObs(buildCodedObs(malnutritionStatusConcept, malnourished));
+		return encounter;
+	}
+	
+	private Obs buildCodedObs(Concept question, Concept answer) {
+		Obs obs = new Obs();
+		obs.setConcept(question);
+		obs.setValueCoded(answer);
+		obs.setObsDatetime(new Date());
+		return obs;
+	}
+}
@@ -0,0 +1,513 @@
+package org.openmrs.module.lamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Hibernate;
+import org.hibernate.collection.internal.PersistentSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class UtilsTest {
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private CompletionSchedule mockCompletionSchedule;
+	
+	@Mock
+	private ProgramRules mockProgramRules;
+	
+	private ProgramWorkflow workflow;
+	
+	private ProgramWorkflowState stateA;
+	
+	private ProgramWorkflowState stateB;
+	
+	private ProgramWorkflowState stateC;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		when(Context.getRegisteredComponent("lamp.LampDao", LampDao.class)).thenReturn(mockDao);
+		when(Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class)).thenReturn(
+		    mockCompletionSchedule);
+		when(Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)).thenReturn(mockProgramRules);
+		when(mockProgramRules.getCompletionRule(TestMetadata.PROGRAM_PRENATAL_UUID)).thenReturn(
+		    new ProgramRule("prenatal", TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID, Collections
+		            .singleton(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID), Collections
+		            .singletonList(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID), 44,
+		            TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM));
+		
+		workflow = new ProgramWorkflow();
+		stateA = buildState(workflow, "a");
+		stateB = buildState(workflow, "b");
+		stateC = buildState(workflow, "c");
+	}
+	
+	private ProgramWorkflowState buildState(ProgramWorkflow programWorkflow, String conceptUuid) {
+		Concept concept = new Concept();
+		concept.setUuid(conceptUuid);
+		ProgramWorkflowState state = new ProgramWorkflowState();
+		state.setConcept(concept);
+		state.setProgramWorkflow(programWorkflow);
+		state.setTerminal(false);
+		return state;
+	}
+	
+	private PatientState addState(PatientProgram patientProgram, ProgramWorkflowState state, Date startDate,
+	        Date endDate) {
+		PatientState patientState = new PatientState();
+		patientState.setPatientProgram(patientProgram);
+		patientState.setState(state);
+		patientState.setStartDate(startDate);
+		patientState.setEndDate(endDate);
+		patientProgram.getStates().add(patientState);
+		return patientState;
+	}
+	
+	private Encounter encounterOn(Date encounterDatetime) {
+		Encounter encounter = new Encounter();
+		encounter.setEncounterDatetime(encounterDatetime);
+		return encounter;
+	}
+	
+	private Date date(int day) {
+		return new Date(TimeUnit.DAYS.toMillis(1000 + day));
+	}
+	
+	/**
+	 * Asserts the non-voided states of the workflow, given as state, start date and end date triples in start date order
+	 */
+	private void assertTimeline(PatientProgram patientProgram, Object... expected) {
+		List<PatientState> states = new ArrayList<PatientState>();
+		for (PatientState patientState : patientProgram.getStates()) {
+			if (!patientState.getVoided() && workflow.equals(patientState.getState().getProgramWorkflow())) {
+				states.add(patientState);
+			}
+		}
+		states.sort(Comparator.comparing(PatientState::getStartDate));
+		assertEquals(expected.length / 3, states.size());
+		for (int i = 0; i < states.size(); i++) {
+			assertEquals(expected[3 * i], states.get(i).getState());
+			assertEquals(expected[3 * i + 1], states.get(i).getStartDate());
+			assertEquals(expected[3 * i + 2], states.get(i).getEndDate());
+		}
+	}
+	
+	private Obs buildCodedObs(Concept question, Concept answer, Date obsDatetime) {
+		Obs obs = new Obs();
+		obs.setConcept(question);
+		obs.setValueCoded(answer);
+		obs.setObsDatetime(obsDatetime);
+		return obs;
+	}
+	
+	@Test
+	public void findLatestCodedObsValues_shouldReturnTheLatestValueOfEachQuestion() {
+		Concept malnutritionStatus = new Concept(1);
+		Concept reasonForDischarge = new Concept(2);
+		Concept weight = new Concept(3);
+		Concept moderate = new Concept(11);
+		Concept severe = new Concept(12);
+		Concept cured = new Concept(13);
+		
+		Encounter encounter = new Encounter();
+		encounter.addObs(buildCodedObs(malnutritionStatus, moderate, new Date(1000)));
+		encounter.addObs(buildCodedObs(malnutritionStatus, severe, new Date(2000)));
+		encounter.addObs(buildCodedObs(reasonForDischarge, cured, new Date(1000)));
+		encounter.addObs(buildCodedObs(weight, moderate, new Date(3000)));
+		
+		Map<Integer, Concept> values = Utils.findLatestCodedObsValues(encounter,
+		    Arrays.asList(malnutritionStatus, reasonForDischarge));
+		
+		assertEquals(2, values.size());
+		assertEquals(severe, values.get(1));
+		assertEquals(cured, values.get(2));
+		assertFalse(values.containsKey(3));
+	}
+	
+	@Test
+	public void findLatestCodedObsValues_shouldIgnoreVoidedObs() {
+		Concept pregnancyStatus = new Concept(1);
+		Concept pregnant = new Concept(11);
+		Concept delivered = new Concept(12);
+		
+		Encounter encounter = new Encounter();
+		encounter.addObs(buildCodedObs(pregnancyStatus, pregnant, new Date(1000)));
+		Obs voided = buildCodedObs(pregnancyStatus, delivered, new Date(2000));
+		voided.setVoided(true);
+		encounter.addObs(voided);
+		
+		Map<Integer, Concept> values = Utils.findLatestCodedObsValues(encounter, Arrays.asList(pregnancyStatus));
+		
+		assertEquals(pregnant, values.get(1));
+	}
+	
+	@Test
+	public void findLatestCodedObsValues_shouldReturnNothingWithoutQuestions() {
+		Encounter encounter = new Encounter();
+		encounter.addObs(buildCodedObs(new Concept(1), new Concept(11), new Date()));
+		
+		assertTrue(Utils.findLatestCodedObsValues(encounter, Arrays.<Concept> asList()).isEmpty());
+	}
+	
+	@Test
+	public void getActiveProgramEnrollment_shouldLookUpTheActiveEnrollmentWithTheDao() {
+		Patient patient = new Patient(123);
+		Program program = new Program(1);
+		PatientProgram active = new PatientProgram();
+		when(mockDao.getActivePatientProgram(patient, program)).thenReturn(active);
+		
+		assertEquals(active, Utils.getActiveProgramEnrollment(patient, program));
+		verify(mockDao).getActivePatientProgram(patient, program);
+	}
+	
+	@Test
+	public void getActiveProgramEnrollment_shouldNotQueryForAnUnsavedPatient() {
+		assertNull(Utils.getActiveProgramEnrollment(new Patient(), new Program(1)));
+		verifyZeroInteractions(mockDao);
+	}
+	
+	@Test
+	public void getOrCreateActiveProgramEnrollment_shouldEnrollThePatient() {
+		Patient patient = new Patient(123);
+		Program program = new Program(1);
+		program.setUuid(TestMetadata.PROGRAM_PRENATAL_UUID);
+		Date enrolledOn = new Date();
+		ProgramWorkflowService mockProgramWorkflowService = mock(ProgramWorkflowService.class);
+		when(mockProgramWorkflowService.savePatientProgram(any(PatientProgram.class))).thenAnswer(invocation -> {
+			PatientProgram saved = invocation.getArgument(0);
+			saved.setPatientProgramId(42);
+			return saved;
+		});
+		
+		PatientProgram enrollment = Utils.getOrCreateActiveProgramEnrollment(mockProgramWorkflowService, patient, program,
+		    enrolledOn);
+		
+		assertEquals(Integer.valueOf(42), enrollment.getPatientProgramId());
+		assertEquals(patient, enrollment.getPatient());
+		assertEquals(enrolledOn, enrollment.getDateEnrolled());
+		verify(mockProgramWorkflowService).savePatientProgram(enrollment);
+	}
+	
+	@Test
+	public void updateCompletionDue_shouldRecordTheCompletionDueDateOfAnActiveEnrollment() {
+		PatientProgram enrollment = buildPrenatalEnrollment(42, date(3));
+		
+		Utils.updateCompletionDue(enrollment);
+		
+		Date dueDate = Utils.getCompletionDueDate(date(3), 44);
+		verify(mockDao).saveCompletionDue(42, 1, dueDate);
+		verify(mockCompletionSchedule).wakeUpBy(dueDate);
+	}
+	
+	@Test
+	public void updateCompletionDue_shouldNotRewriteAnUnchangedDueDate() {
+		PatientProgram enrollment = buildPrenatalEnrollment(42, date(3));
+		when(mockDao.getCompletionDueDate(42)).thenReturn(Utils.getCompletionDueDate(date(3), 44));
+		
+		Utils.updateCompletionDue(enrollment);
+		
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+		verify(mockDao, never()).deleteCompletionDue(any());
+	}
+	
+	@Test
+	public void updateCompletionDue_shouldRemoveTheDueDateOfACompletedOrVoidedEnrollment() {
+		PatientProgram completed = buildPrenatalEnrollment(42, date(3));
+		completed.setDateCompleted(date(5));
+		PatientProgram voided = buildPrenatalEnrollment(43, date(3));
+		voided.setVoided(true);
+		when(mockDao.getCompletionDueDate(42)).thenReturn(Utils.getCompletionDueDate(date(3), 44));
+		when(mockDao.getCompletionDueDate(43)).thenReturn(Utils.getCompletionDueDate(date(3), 44));
+		
+		Utils.updateCompletionDue(completed);
+		Utils.updateCompletionDue(voided);
+		
+		verify(mockDao).deleteCompletionDue(Collections.singleton(42));
+		verify(mockDao).deleteCompletionDue(Collections.singleton(43));
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+	}
+	
+	@Test
+	public void updateCompletionDue_shouldIgnoreTheEnrollmentsOfProgramsNotCompletedAutomatically() {
+		PatientProgram enrollment = buildPrenatalEnrollment(42, date(3));
+		enrollment.getProgram().setUuid("other-program");
+		
+		Utils.updateCompletionDue(enrollment);
+		
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+		verify(mockDao, never()).deleteCompletionDue(any());
+	}
+	
+	private PatientProgram buildPrenatalEnrollment(Integer patientProgramId, Date dateEnrolled) {
+		Program program = new Program(1);
+		program.setUuid(TestMetadata.PROGRAM_PRENATAL_UUID);
+		PatientProgram enrollment = new PatientProgram(patientProgramId);
+		enrollment.setPatient(new Patient(123));
+		enrollment.setProgram(program);
+		enrollment.setDateEnrolled(dateEnrolled);
+		return enrollment;
+	}
+	
+	@Test
+	public void getOrCreateActiveProgramEnrollment_shouldBackDateTheEnrollmentToAnEarlierEncounter() {
+		Patient patient = new Patient(123);
+		Program program = new Program(1);
+		program.setUuid(TestMetadata.PROGRAM_PRENATAL_UUID);
+		PatientProgram active = new PatientProgram(42);
+		active.setDateEnrolled(date(10));
+		when(mockDao.getActivePatientProgram(patient, program)).thenReturn(active);
+		ProgramWorkflowService mockProgramWorkflowService = mock(ProgramWorkflowService.class);
+		
+		assertEquals(active, Utils.getOrCreateActiveProgramEnrollment(mockProgramWorkflowService, patient, program,
+		    date(3)));
+		
+		assertEquals(date(3), active.getDateEnrolled());
+		verify(mockProgramWorkflowService).savePatientProgram(active);
+	}
+	
+	@Test
+	public void getOrCreateActiveProgramEnrollment_shouldLeaveTheEnrollmentOfALaterEncounterAlone() {
+		Patient patient = new Patient(123);
+		Program program = new Program(1);
+		PatientProgram active = new PatientProgram(42);
+		active.setDateEnrolled(date(10));
+		when(mockDao.getActivePatientProgram(patient, program)).thenReturn(active);
+		ProgramWorkflowService mockProgramWorkflowService = mock(ProgramWorkflowService.class);
+		
+		Utils.getOrCreateActiveProgramEnrollment(mockProgramWorkflowService, patient, program, date(12));
+		
+		assertEquals(date(10), active.getDateEnrolled());
+		verifyZeroInteractions(mockProgramWorkflowService);
+		verify(mockDao, never()).saveCompletionDue(any(), any(), any());
+	}
+	
+	@Test
+	public void updateProgram_shouldAppendTheStateOfTheLatestEncounter() {
+		PatientProgram patientProgram = new PatientProgram();
+		PatientState first = addState(patientProgram, stateA, date(1), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(5)), stateB);
+		
+		assertEquals(date(5), first.getEndDate());
+		assertTimeline(patientProgram, stateA, date(1), date(5), stateB, date(5), null);
+	}
+	
+	@Test
+	public void updateProgram_shouldInsertTheStateOfAnEarlierEncounterBeforeTheNextState() {
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(3)), stateC);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(3), stateC, date(3), date(5), stateB, date(5), null);
+	}
+	
+	@Test
+	public void updateProgram_shouldMoveTheNextStateBackWhenItIsTheTargetState() {
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(3)), stateB);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(3), stateB, date(3), null);
+	}
+	
+	@Test
+	public void updateProgram_shouldCorrectTheStateOfAnEncounterOfTheSameDatetime() {
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(1)), stateC);
+		
+		assertTimeline(patientProgram, stateC, date(1), date(5), stateB, date(5), null);
+	}
+	
+	@Test
+	public void updateProgram_shouldCompleteTheEnrollmentWhenAnEarlierEncounterMovesTheTerminalStateBack() {
+		ProgramWorkflowState terminal = buildState(workflow, "terminal");
+		terminal.setTerminal(true);
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, terminal, date(5), null);
+		patientProgram.setDateCompleted(date(5));
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(3)), terminal);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(3), terminal, date(3), null);
+		assertEquals(date(3), patientProgram.getDateCompleted());
+	}
+	
+	@Test
+	public void updateProgram_shouldNotCompleteTheEnrollmentWhenATerminalStateIsInsertedBeforeALaterState() {
+		ProgramWorkflowState terminal = buildState(workflow, "terminal");
+		terminal.setTerminal(true);
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(3)), terminal);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(3), terminal, date(3), date(5), stateB, date(5), null);
+		assertNull(patientProgram.getDateCompleted());
+	}
+	
+	@Test
+	public void updateProgram_shouldCompleteTheEnrollmentWhenTheLatestStateIsCorrectedToATerminalState() {
+		ProgramWorkflowState terminal = buildState(workflow, "terminal");
+		terminal.setTerminal(true);
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(5)), terminal);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(5), terminal, date(5), null);
+		assertEquals(date(5), patientProgram.getDateCompleted());
+	}
+	
+	@Test
+	public void updateProgram_shouldReopenTheEnrollmentWhenItsTerminalStateIsCorrectedByAnEncounterOfTheSameDatetime() {
+		ProgramWorkflowState terminal = buildState(workflow, "terminal");
+		terminal.setTerminal(true);
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, terminal, date(5), null);
+		patientProgram.setDateCompleted(date(5));
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(5)), stateB);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(5), stateB, date(5), null);
+		assertNull(patientProgram.getDateCompleted());
+	}
+	
+	@Test
+	public void updateProgram_shouldIgnoreVoidedStatesAndStatesOfOtherWorkflows() {
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), null);
+		addState(patientProgram, stateB, date(5), null).setVoided(true);
+		ProgramWorkflowState otherWorkflowState = buildState(new ProgramWorkflow(), "other");
+		addState(patientProgram, otherWorkflowState, date(6), null);
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(3)), stateC);
+		
+		assertTimeline(patientProgram, stateA, date(1), date(3), stateC, date(3), null);
+		assertEquals(otherWorkflowState, Utils.getStateOn(patientProgram, otherWorkflowState.getProgramWorkflow(), date(7))
+		        .getState());
+	}
+	
+	@Test
+	public void updateProgram_shouldSaveTheNewStateWithoutLoadingTheStatesOfTheEnrollment() {
+		PatientProgram patientProgram = new PatientProgram(1);
+		patientProgram.setStates(new PersistentSet());
+		PatientState active = new PatientState();
+		active.setPatientProgram(patientProgram);
+		active.setState(stateA);
+		active.setStartDate(date(1));
+		when(mockDao.getPatientStates(patientProgram, workflow)).thenReturn(Collections.singletonList(active));
+		
+		Utils.updateProgram(patientProgram, encounterOn(date(5)), stateB);
+		
+		assertEquals(date(5), active.getEndDate());
+		ArgumentCaptor<PatientState> saved = ArgumentCaptor.forClass(PatientState.class);
+		verify(mockDao).savePatientState(saved.capture());
+		assertEquals(patientProgram, saved.getValue().getPatientProgram());
+		assertEquals(stateB, saved.getValue().getState());
+		assertEquals(date(5), saved.getValue().getStartDate());
+		assertNull(saved.getValue().getEndDate());
+		assertFalse(Hibernate.isInitialized(patientProgram.getStates()));
+	}
+	
+	@Test
+	public void getStateOn_shouldReturnTheStateInEffectAtTheDate() {
+		PatientProgram patientProgram = new PatientProgram();
+		addState(patientProgram, stateA, date(1), date(5));
+		addState(patientProgram, stateB, date(5), date(8));
+		
+		assertNull(Utils.getStateOn(patientProgram, workflow, date(0)));
+		assertEquals(stateA, Utils.getStateOn(patientProgram, workflow, date(4)).getState());
+		assertEquals(stateB, Utils.getStateOn(patientProgram, workflow, date(5)).getState());
+		assertNull(Utils.getStateOn(patientProgram, workflow, date(8)));
+	}
+	
+	@Test
+	public void getStateOn_shouldQueryTheStatesOfTheWorkflowWhenTheStatesOfTheEnrollmentAreNotLoaded() {
+		PatientProgram patientProgram = new PatientProgram(1);
+		patientProgram.setStates(new PersistentSet());
+		PatientState patientState = new PatientState();
+		patientState.setState(stateA);
+		patientState.setStartDate(date(1));
+		when(mockDao.getPatientStates(patientProgram, workflow)).thenReturn(Collections.singletonList(patientState));
+		
+		assertEquals(patientState, Utils.getStateOn(patientProgram, workflow, date(4)));
+		assertFalse(Hibernate.isInitialized(patientProgram.getStates()));
+	}
+	
+	@Test
+	public void isState_shouldCompareSavedWorkflowStatesById() {
+		ProgramWorkflowState savedStateA = buildState(workflow, "a");
+		savedStateA.setProgramWorkflowStateId(1);
+		ProgramWorkflowState otherSessionStateA = buildState(workflow, "other-session-a");
+		otherSessionStateA.setProgramWorkflowStateId(1);
+		PatientState patientState = new PatientState();
+		patientState.setState(savedStateA);
+		
+		assertTrue(Utils.isState(patientState, otherSessionStateA));
+		assertTrue(Utils.isState(patientState, stateA));
+		assertFalse(Utils.isState(patientState, stateB));
+	}
+	
+	@Test
+	public void getCompletionWeeks_shouldReturnNullForProgramsThatAreNotAutomaticallyCompleted() {
+		Program program = new Program(3);
+		program.setUuid("some-other-program");
+		
+		assertNull(Utils.getCompletionWeeks(program));
+	}
+}
@@ -0,0 +1,136 @@
+package org.openmrs.module.lamp.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class EncounterEventCoalescerTest {
+	
+	@Mock
+	private ProgramStrategyDispatcher mockDispatcher;
+	
+	@Mock
+	private LampMetrics mockMetrics;
+	
+	private LocalEncounterEventBroker broker;
+	
+	private EncounterEventCoalescer coalescer;
+	
+	private Consumer<EncounterEvent> listener;
+	
+	@Before
+	public void setup() {
+		when(mockDispatcher.handles(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID)).thenReturn(true);
+		
+		broker = new LocalEncounterEventBroker();
+		coalescer = new EncounterEventCoalescer();
+		Whitebox.setInternalState(coalescer, "metrics", mockMetrics);
+		Whitebox.setInternalState(coalescer, "windowMillis", 60000L);
+		Whitebox.setInternalState(coalescer, "maxDelayMillis", 300000L);
+		listener = event -> coalescer.accept(event);
+		broker.subscribe(mockDispatcher::handles, listener);
+	}
+	
+	@Test
+	public void shouldCoalesceTheRepeatedSavesOfAnEncounterOfAPatient() {
+		Encounter first = buildEncounter(1, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		Encounter second = buildEncounter(1, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		Encounter otherPatient = buildEncounter(2, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		
+		broker.publishAfterCommit(first);
+		broker.publishAfterCommit(second);
+		broker.publishAfterCommit(otherPatient);
+		broker.publishAfterCommit(first);
+		
+		assertTrue(coalescer.takeDue(System.currentTimeMillis()).isEmpty());
+		assertEquals(Arrays.asList(second.getUuid(), first.getUuid(), otherPatient.getUuid()),
+		    getEncounterUuids(coalescer.takeDue(Long.MAX_VALUE)));
+		assertTrue(coalescer.takeDue(Long.MAX_VALUE).isEmpty());
+		verify(mockMetrics).recordCoalescedEncounterSave();
+	}
+	
+	@Test
+	public void shouldHoldTheEventsOfAPatientUntilTheyStopForTheWindow() {
+		Whitebox.setInternalState(coalescer, "windowMillis", 1000L);
+		EncounterEvent event = EncounterEvent.of(buildEncounter(1, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID));
+		
+		coalescer.accept(event, 0);
+		coalescer.accept(event, 800);
+		coalescer.accept(event, 1500);
+		
+		assertTrue(coalescer.takeDue(2499).isEmpty());
+		assertEquals(1, coalescer.takeDue(2500).size());
+		verify(mockMetrics, times(2)).recordCoalescedEncounterSave();
+	}
+	
+	@Test
+	public void shouldNotHoldTheEventsOfAPatientForLongerThanTheMaximumDelay() {
+		Whitebox.setInternalState(coalescer, "windowMillis", 1000L);
+		Whitebox.setInternalState(coalescer, "maxDelayMillis", 2000L);
+		EncounterEvent event = EncounterEvent.of(buildEncounter(1, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID));
+		
+		for (long now = 0; now < 2000; now += 500) {
+			coalescer.accept(event, now);
+		}
+		
+		assertTrue(coalescer.takeDue(1999).isEmpty());
+		assertEquals(1, coalescer.takeDue(2000).size());
+	}
+	
+	@Test
+	public void shouldOnlyDeliverTheEventsOfTheEncounterTypesOfTheSubscription() {
+		broker.publishAfterCommit(buildEncounter(1, "unrelated-encounter-type"));
+		
+		assertTrue(coalescer.takeDue(Long.MAX_VALUE).isEmpty());
+	}
+	
+	@Test
+	public void shouldStopDeliveringTheEventsOnceUnsubscribed() {
+		broker.unsubscribe(listener);
+		broker.publishAfterCommit(buildEncounter(1, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID));
+		
+		assertFalse(broker.hasSubscriptions());
+		assertTrue(coalescer.takeDue(Long.MAX_VALUE).isEmpty());
+	}
+	
+	private Encounter buildEncounter(int patientId, String encounterTypeUuid) {
+		EncounterType encounterType = new EncounterType();
+		encounterType.setUuid(encounterTypeUuid);
+		Encounter encounter = new Encounter();
+		encounter.setEncounterType(encounterType);
+		encounter.setPatient(new Patient(patientId));
+		return encounter;
+	}
+	
+	private static List<String> getEncounterUuids(List<EncounterEvent> events) {
+		List<String> uuids = new ArrayList<String>();
+		for (EncounterEvent event : events) {
+			uuids.add(event.getEncounterUuid());
+		}
+		return uuids;
+	}
+}
@@ -0,0 +1,98 @@
+package org.openmrs.module.lamp.async;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * An in-memory {@link EncounterEventBroker} standing in for the event module in the tests, whose events are published
+ * by the tests once the current transaction commits, and delivered on the committing thread.
+ */
+public class LocalEncounterEventBroker implements EncounterEventBroker {
+	
+	private static final Log log = LogFactory.getLog(LocalEncounterEventBroker.class);
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	
+	@Override
+	public void subscribe(Predicate<String> encounterTypeFilter, Consumer<EncounterEvent> listener) {
+		unsubscribe(listener);
+		subscriptions.add(new Subscription(encounterTypeFilter, listener));
+	}
+	
+	@Override
+	public void unsubscribe(Consumer<EncounterEvent> listener) {
+		subscriptions.removeIf(subscription -> subscription.listener == listener);
+	}
+	
+	public boolean hasSubscriptions() {
+		return !subscriptions.isEmpty();
+	}
+	
+	/**
+	 * Publishes the event of the encounter once the current transaction commits, or right away if there is no
+	 * transaction.
+	 */
+	public void publishAfterCommit(Encounter encounter) {
+		if (encounter.getEncounterType() == null || !isSubscribed(encounter.getEncounterType().getUuid())) {
+			return;
+		}
+		final EncounterEvent event = EncounterEvent.of(encounter);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			publish(event);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				publish(event);
+			}
+		});
+	}
+	
+	/**
+	 * Delivers the event to the listeners of the subscriptions accepting its encounter type.
+	 */
+	public void publish(EncounterEvent event) {
+		for (Subscription subscription : subscriptions) {
+			if (!subscription.encounterTypeFilter.test(event.getEncounterTypeUuid())) {
+				continue;
+			}
+			try {
+				subscription.listener.accept(event);
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to deliver " + event, e);
+			}
+		}
+	}
+	
+	private boolean isSubscribed(String encounterTypeUuid) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.encounterTypeFilter.test(encounterTypeUuid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static class Subscription {
+		
+		private final Predicate<String> encounterTypeFilter;
+		
+		private final Consumer<EncounterEvent> listener;
+		
+		Subscription(Predicate<String> encounterTypeFilter, Consumer<EncounterEvent> listener) {
+			this.encounterTypeFilter = encounterTypeFilter;
+			this.listener = listener;
+		}
+	}
+}
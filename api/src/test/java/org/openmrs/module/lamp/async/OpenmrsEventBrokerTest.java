@@ -0,0 +1,114 @@
+package org.openmrs.module.lamp.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+import javax.jms.MapMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Encounter;
+import org.openmrs.api.context.Context;
+import org.openmrs.event.Event;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.db.LampDao;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, Event.class })
+@SuppressStaticInitializationFor("org.openmrs.event.Event")
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class OpenmrsEventBrokerTest {
+	
+	private static final String ENCOUNTER_UUID = "1e4d1b3e-1a4b-4b52-9a57-3c3b8d6f2a01";
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private PlatformTransactionManager mockTransactionManager;
+	
+	@Mock
+	private MapMessage mockMessage;
+	
+	private OpenmrsEventBroker broker;
+	
+	private final List<EncounterEvent> received = new ArrayList<EncounterEvent>();
+	
+	private final Consumer<EncounterEvent> listener = received::add;
+	
+	@Before
+	public void setup() throws Exception {
+		PowerMockito.mockStatic(Context.class);
+		PowerMockito.mockStatic(Event.class);
+		broker = new OpenmrsEventBroker(mockDao, mockTransactionManager);
+		when(mockMessage.getString("uuid")).thenReturn(ENCOUNTER_UUID);
+	}
+	
+	@Test
+	public void shouldSubscribeToTheEncounterEventsOfTheEventModuleOnce() {
+		broker.subscribe(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID::equals, listener);
+		broker.subscribe(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID::equals, event -> {});
+		
+		PowerMockito.verifyStatic(Event.class, times(OpenmrsEventBroker.ACTIONS.length));
+		Event.subscribe(eq(Encounter.class), anyString(), eq(broker));
+	}
+	
+	@Test
+	public void shouldDeliverTheEventsOfTheEncounterTypesOfTheSubscription() {
+		broker.subscribe(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID::equals, listener);
+		when(mockDao.getEncounterEvent(ENCOUNTER_UUID)).thenReturn(
+		    new EncounterEvent(ENCOUNTER_UUID, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID, 7));
+		
+		broker.onMessage(mockMessage);
+		
+		assertEquals(1, received.size());
+		assertEquals(ENCOUNTER_UUID, received.get(0).getEncounterUuid());
+		assertEquals(Integer.valueOf(7), received.get(0).getPatientId());
+		PowerMockito.verifyStatic(Context.class);
+		Context.closeSession();
+	}
+	
+	@Test
+	public void shouldDropTheEventsOfTheOtherEncounterTypes() {
+		broker.subscribe(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID::equals, listener);
+		when(mockDao.getEncounterEvent(ENCOUNTER_UUID)).thenReturn(
+		    new EncounterEvent(ENCOUNTER_UUID, "unrelated-encounter-type", 7));
+		
+		broker.onMessage(mockMessage);
+		
+		assertTrue(received.isEmpty());
+	}
+	
+	@Test
+	public void shouldUnsubscribeFromTheEventModuleOnceNoListenerIsLeft() {
+		Consumer<EncounterEvent> other = event -> {};
+		broker.subscribe(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID::equals, listener);
+		broker.subscribe(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID::equals, other);
+		
+		broker.unsubscribe(listener);
+		PowerMockito.verifyStatic(Event.class, never());
+		Event.unsubscribe(eq(Encounter.class), any(Event.Action.class), eq(broker));
+		
+		broker.unsubscribe(other);
+		PowerMockito.verifyStatic(Event.class, times(OpenmrsEventBroker.ACTIONS.length));
+		Event.unsubscribe(eq(Encounter.class), any(Event.Action.class), eq(broker));
+	}
+}
@@ -0,0 +1,156 @@
+package org.openmrs.module.lamp.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.User;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.db.LampDao;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, Daemon.class })
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class ProgramStateQueueTest {
+	
+	@Mock
+	private ProgramStrategyDispatcher mockDispatcher;
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private PlatformTransactionManager mockTransactionManager;
+	
+	@Mock
+	private EncounterService mockEncounterService;
+	
+	private ProgramStateQueue queue;
+	
+	private Encounter encounter;
+	
+	private EncounterEvent event;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		when(Context.getEncounterService()).thenReturn(mockEncounterService);
+		
+		queue = new ProgramStateQueue();
+		Whitebox.setInternalState(queue, "dispatcher", mockDispatcher);
+		Whitebox.setInternalState(queue, "dao", mockDao);
+		Whitebox.setInternalState(queue, "transactionManager", mockTransactionManager);
+		
+		EncounterType encounterType = new EncounterType();
+		encounterType.setUuid(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID);
+		encounter = new Encounter();
+		encounter.setEncounterType(encounterType);
+		event = EncounterEvent.of(encounter);
+		when(mockEncounterService.getEncounterByUuid(encounter.getUuid())).thenReturn(encounter);
+	}
+	
+	@Test
+	public void shouldApplyStrategiesToTheSavedEncounter() {
+		Whitebox.setInternalState(queue, "maxAttempts", 3);
+		
+		queue.process(event);
+		
+		verify(mockDispatcher, times(1)).dispatch(eq(encounter), any(), any(Date.class), isNull());
+		verify(mockDao, never()).saveDeadLetter(any(EncounterEvent.class), anyInt(), any());
+	}
+	
+	@Test
+	public void shouldRetryAFailedAttempt() {
+		Whitebox.setInternalState(queue, "maxAttempts", 2);
+		doThrow(new RuntimeException("deadlock")).doNothing().when(mockDispatcher)
+		        .dispatch(eq(encounter), any(), any(Date.class), isNull());
+		
+		queue.process(event);
+		
+		verify(mockDispatcher, times(2)).dispatch(eq(encounter), any(), any(Date.class), isNull());
+		verify(mockDao, never()).saveDeadLetter(any(EncounterEvent.class), anyInt(), any());
+	}
+	
+	@Test
+	public void shouldRecordDeadLetterOnceAllAttemptsFailed() {
+		Whitebox.setInternalState(queue, "maxAttempts", 1);
+		doThrow(new RuntimeException("boom")).when(mockDispatcher).dispatch(eq(encounter), any(), any(Date.class),
+		    isNull());
+		
+		queue.process(event);
+		
+		verify(mockDao, times(1)).saveDeadLetter(eq(event), eq(1), contains("boom"));
+	}
+	
+	@Test
+	public void shouldParkTheRetryOfAnEncounterUntilTheSaveCommits() {
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			queue.retryAfterCommit(encounter);
+			
+			verify(mockDao, never()).saveDeadLetter(any(EncounterEvent.class), anyInt(), any());
+			List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+			assertEquals(1, synchronizations.size());
+			synchronizations.get(0).afterCommit();
+		}
+		finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		
+		// Neither the workers nor a daemon token to retry it with
+		verify(mockDao, times(1)).saveDeadLetter(eq(event), eq(0), isNull());
+		verify(mockDispatcher, never()).dispatch(any(Encounter.class), any(User.class), any(Date.class), any());
+	}
+	
+	@Test
+	public void start_shouldReplaceNonPositiveSettingsWithTheirDefaults() {
+		PowerMockito.mockStatic(Daemon.class);
+		
+		queue.start(null, 0, 0, 0);
+		
+		assertEquals(ProgramStateQueue.DEFAULT_WORKERS, ((List<?>) Whitebox.getInternalState(queue, "workers")).size());
+		assertEquals(ProgramStateQueue.DEFAULT_CAPACITY,
+		    ((BlockingQueue<?>) Whitebox.getInternalState(queue, "queue")).remainingCapacity());
+		assertEquals(ProgramStateQueue.DEFAULT_MAX_ATTEMPTS, (int) Whitebox.getInternalState(queue, "maxAttempts"));
+	}
+	
+	@Test
+	public void shouldIgnoreEncountersNoStrategyHandles() {
+		when(mockDispatcher.getStrategies(encounter)).thenReturn(null);
+		
+		queue.enqueueAfterCommit(encounter);
+		
+		verify(mockDao, never()).saveDeadLetter(any(EncounterEvent.class), anyInt(), any());
+		verify(mockDispatcher, never()).dispatch(any(Encounter.class), any(User.class), any(Date.class), any());
+	}
+}
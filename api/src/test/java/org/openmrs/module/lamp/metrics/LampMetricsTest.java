@@ -0,0 +1,110 @@
+package org.openmrs.module.lamp.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.openmrs.module.lamp.StrategyOutcome;
+
+public class LampMetricsTest {
+	
+	@Test
+	public void shouldCountTheDatabaseCallsOfEachSave() {
+		LampMetrics metrics = new LampMetrics();
+		
+		metrics.beginSave();
+		LampMetrics.recordDbCall();
+		LampMetrics.recordDbCall();
+		LampMetrics.recordDbCall();
+		metrics.endSave();
+		metrics.beginSave();
+		LampMetrics.recordDbCall();
+		metrics.endSave();
+		// Outside of a save
+		LampMetrics.recordDbCall();
+		
+		assertEquals(2, metrics.getSaves());
+		assertEquals(4, metrics.getDbCalls());
+		assertEquals(2.0, metrics.getMeanDbCallsPerSave(), 0);
+		assertEquals(3, metrics.getMaxDbCallsPerSave());
+	}
+	
+	@Test
+	public void shouldCountShortCircuitsByReasonAndTransitionsByProgram() {
+		LampMetrics metrics = new LampMetrics();
+		
+		metrics.recordStrategyExecution("Prenatal", StrategyOutcome.MISSING_WORKFLOW, 1000000);
+		metrics.recordStrategyExecution("Prenatal", StrategyOutcome.TRANSITIONED, 3000000);
+		metrics.recordStrategyExecution("Child Nutrition", StrategyOutcome.MISSING_WORKFLOW, 2000000);
+		
+		assertEquals(Long.valueOf(2), metrics.getShortCircuits().get("MISSING_WORKFLOW"));
+		assertEquals(Long.valueOf(1), metrics.getTransitionsApplied().get("Prenatal"));
+		TimerSnapshot prenatal = metrics.getStrategyExecutions().get("Prenatal");
+		assertEquals(2, prenatal.getCount());
+		assertEquals(2.0, prenatal.getMeanMillis(), 0.001);
+		assertEquals(3.0, prenatal.getMaxMillis(), 0.001);
+		
+		metrics.reset();
+		
+		assertTrue(metrics.getStrategyExecutions().isEmpty());
+		assertTrue(metrics.getShortCircuits().isEmpty());
+	}
+	
+	@Test
+	public void shouldReportTheThroughputOfTheReplay() {
+		LampMetrics metrics = new LampMetrics();
+		
+		metrics.recordReplayChunk(500, 250000000);
+		metrics.recordReplayChunk(300, 150000000);
+		
+		assertEquals(800, metrics.getEncountersReplayed());
+		assertEquals(2, metrics.getReplayChunks().getCount());
+		assertEquals(2000.0, metrics.getReplayedEncountersPerSecond(), 0.001);
+		
+		metrics.reset();
+		
+		assertEquals(0, metrics.getEncountersReplayed());
+		assertEquals(0.0, metrics.getReplayedEncountersPerSecond(), 0);
+	}
+	
+	@Test
+	public void shouldBeReadyOnceTheMetadataIsValidatedWithoutProblems() {
+		LampMetrics metrics = new LampMetrics();
+		assertFalse(metrics.isReady());
+		
+		metrics.recordMetadataValidation(Arrays.asList("program rule prenatal: the program program-2 does not exist"));
+		assertFalse(metrics.isReady());
+		assertEquals(1, metrics.getMetadataProblems().size());
+		
+		metrics.recordMetadataValidation(Collections.<String> emptyList());
+		metrics.reset();
+		assertTrue(metrics.isReady());
+		assertTrue(metrics.getMetadataProblems().isEmpty());
+	}
+	
+	@Test
+	public void shouldRegisterAsAPlatformMXBean() throws Exception {
+		LampMetrics metrics = new LampMetrics();
+		metrics.recordTaskRun(5000000, 10, 4);
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(LampMetrics.OBJECT_NAME);
+		
+		metrics.register();
+		try {
+			assertEquals(10L, mBeanServer.getAttribute(objectName, "TaskRowsScanned"));
+			assertEquals(4L, mBeanServer.getAttribute(objectName, "TaskEnrollmentsCompleted"));
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertFalse(mBeanServer.isRegistered(objectName));
+	}
+}
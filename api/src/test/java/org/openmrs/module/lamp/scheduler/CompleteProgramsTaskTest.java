@@ -1,148 +1,590 @@
 package org.openmrs.module.lamp.scheduler;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
-import static org.junit.Assert.assertNotNull;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import static org.mockito.Mockito.*;
 
 import java.util.Date;
 
+import org.hibernate.exception.ConstraintViolationException;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.openmrs.Concept;
-import org.openmrs.Patient;
 import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.lamp.LampConfig;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.TestMetadata;
 import org.openmrs.module.lamp.Utils;
-import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.module.lamp.db.EnrollmentCursor;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.openmrs.scheduler.TaskDefinition;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({ Context.class, Utils.class })
 @PowerMockIgnore({ "javax.management.*", "javax.script.*" })
 public class CompleteProgramsTaskTest {
 	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
 	@Mock
 	private ProgramWorkflowService mockProgramWorkflowService;
 	
 	@Mock
 	private ConceptService mockConceptService;
 	
+	@Mock
+	private AdministrationService mockAdministrationService;
+	
+	@Mock
+	private PlatformTransactionManager mockTransactionManager;
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private CompletionPartitionRunner mockPartitionRunner;
+	
+	@Mock
+	private ProgramRules mockProgramRules;
+	
+	private LampMetrics metrics;
+	
+	private CompletionSchedule schedule;
+	
 	@Before
 	public void setup() {
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(Utils.class);
 		when(Context.getProgramWorkflowService()).thenReturn(mockProgramWorkflowService);
 		when(Context.getConceptService()).thenReturn(mockConceptService);
+		when(Context.getAdministrationService()).thenReturn(mockAdministrationService);
+		when(Context.getRegisteredComponent("lamp.LampDao", LampDao.class)).thenReturn(mockDao);
+		metrics = new LampMetrics();
+		when(Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class)).thenReturn(metrics);
+		schedule = new CompletionSchedule();
+		when(Context.getRegisteredComponent("lamp.CompletionSchedule", CompletionSchedule.class)).thenReturn(schedule);
+		when(Context.getRegisteredComponent("lamp.CompletionPartitionRunner", CompletionPartitionRunner.class)).thenReturn(
+		    mockPartitionRunner);
+		when(Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class)).thenReturn(
+		    mockTransactionManager);
+		when(Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)).thenReturn(mockProgramRules);
+		when(mockProgramRules.getCompletionRules()).thenReturn(
+		    Arrays.asList(new ProgramRule("childNutrition", TestMetadata.PROGRAM_CHILD_NUTRITION_UUID,
+		            TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID, Collections.<String> emptySet(),
+		            Collections.<String> emptyList(), 18, TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM),
+		        new ProgramRule("prenatal", TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		            Collections.<String> emptySet(), Collections.<String> emptyList(), 44,
+		            TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM)));
+		when(mockDao.acquireLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt())).thenReturn(true);
+		when(mockDao.renewLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt())).thenReturn(true);
 	}
 	
-	@Test
-	public void shouldCompleteChildNutritionProgramsOlderThan18Weeks() {
-		Program childProgram = new Program();
-		childProgram.setUuid(LampConfig.PROGRAM_CHILD_NUTRITION_UUID);
-		childProgram.setName("Child Nutrition");
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(childProgram);
-		
-		Program prenatalProgram = new Program();
-		prenatalProgram.setUuid(LampConfig.PROGRAM_PRENATAL_UUID);
-		prenatalProgram.setName("Prenatal");
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_PRENATAL_UUID)).thenReturn(prenatalProgram);
-		
-		PatientProgram eligible = spy(new PatientProgram());
-		eligible.setProgram(childProgram);
-		eligible.setDateEnrolled(weeksAgo(30));
-		
-		PatientProgram ineligible = spy(new PatientProgram());
-		ineligible.setProgram(childProgram);
-		ineligible.setDateEnrolled(weeksAgo(5));
-		
-		List<PatientProgram> childPrograms = new ArrayList<PatientProgram>(Arrays.asList(eligible, ineligible));
-		when(mockProgramWorkflowService.getPatientPrograms(null, childProgram, null, null, null, null, false)).thenReturn(
-		    childPrograms);
-		when(mockProgramWorkflowService.getPatientPrograms(null, prenatalProgram, null, null, null, null, false))
-		        .thenReturn(new ArrayList<PatientProgram>());
-		
+	private Program mockProgram(int programId, String uuid, String name) {
+		Program program = new Program(programId);
+		program.setUuid(uuid);
+		program.setName(name);
+		when(mockProgramWorkflowService.getProgramByUuid(uuid)).thenReturn(program);
+		return program;
+	}
+	
+	private ProgramWorkflowState mockCompletionState(Program program, String workflowUuid, String conceptUuid) {
 		ProgramWorkflow mockWorkflow = Mockito.mock(ProgramWorkflow.class);
 		ProgramWorkflowState mockState = Mockito.mock(ProgramWorkflowState.class);
 		Concept mockConcept = new Concept();
-		when(mockConceptService.getConceptByUuid(LampConfig.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM)).thenReturn(
-		    mockConcept);
-		PowerMockito.when(Utils.getWorkflowByUuid(childProgram, LampConfig.WORKFLOW_CHILD_NUTRITION_UUID)).thenReturn(
-		    mockWorkflow);
+		when(mockConceptService.getConceptByUuid(conceptUuid)).thenReturn(mockConcept);
+		PowerMockito.when(Utils.getWorkflowByUuid(program, workflowUuid)).thenReturn(mockWorkflow);
 		PowerMockito.when(Utils.getStateByConcept(mockWorkflow, mockConcept)).thenReturn(mockState);
+		return mockState;
+	}
+	
+	private PatientProgram buildEnrollment(int patientProgramId, Program program, Date dateEnrolled) {
+		PatientProgram patientProgram = spy(new PatientProgram(patientProgramId));
+		patientProgram.setProgram(program);
+		patientProgram.setDateEnrolled(dateEnrolled);
+		return patientProgram;
+	}
+	
+	private void mockDueDatesBackfilled() {
+		when(mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED,
+		    Boolean.FALSE)).thenReturn(true);
+	}
+	
+	private void verifyTransitioned(PatientProgram patientProgram, ProgramWorkflowState state, int count) {
+		PowerMockito.verifyStatic(Utils.class, times(count));
+		Utils.addState(eq(patientProgram), eq(state), any(Date.class), isNull());
+	}
+	
+	@Test
+	public void shouldCompleteChildNutritionProgramsOlderThan18Weeks() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		ProgramWorkflowState mockState = mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
 		
-		AbstractTask task = new CompleteProgramsTask();
-		task.execute();
+		PatientProgram eligible = buildEnrollment(1, childProgram, weeksAgo(30));
+		PatientProgram notYetDue = buildEnrollment(2, childProgram, weeksAgo(10));
+		List<Integer> dueIds = Arrays.asList(1, 2);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt())).thenReturn(dueIds);
+		when(mockDao.getPatientPrograms(dueIds)).thenReturn(Arrays.asList(eligible, notYetDue));
+		Date rescheduledDueDate = new Date();
+		PowerMockito.when(Utils.getCompletionDueDate(notYetDue.getDateEnrolled(), 18)).thenReturn(rescheduledDueDate);
+		
+		new CompleteProgramsTask().execute();
 		
-		verify(eligible, times(1)).transitionToState(eq(mockState), any(Date.class));
-		verify(ineligible, never()).transitionToState(any(ProgramWorkflowState.class), any(Date.class));
+		verifyTransitioned(eligible, mockState, 1);
+		verifyTransitioned(notYetDue, mockState, 0);
+		verify(mockDao).deleteCompletionDue(dueIds);
+		verify(mockDao).saveCompletionDue(2, 1, rescheduledDueDate);
+		assertEquals(1, metrics.getTaskRuns().getCount());
+		assertEquals(2, metrics.getTaskRowsScanned());
+		assertEquals(1, metrics.getTaskEnrollmentsCompleted());
 	}
 	
 	@Test
 	public void shouldCompletePrenatalProgramsOlderThan44Weeks() {
-		Program prenatalProgram = new Program();
-		prenatalProgram.setUuid(LampConfig.PROGRAM_PRENATAL_UUID);
-		prenatalProgram.setName("Prenatal");
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_PRENATAL_UUID)).thenReturn(prenatalProgram);
-		
-		Program childProgram = new Program();
-		childProgram.setUuid(LampConfig.PROGRAM_CHILD_NUTRITION_UUID);
-		childProgram.setName("Child Nutrition");
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(childProgram);
-		when(mockProgramWorkflowService.getPatientPrograms(null, childProgram, null, null, null, null, false)).thenReturn(
-		    new ArrayList<PatientProgram>());
-		
-		PatientProgram eligible = spy(new PatientProgram());
-		eligible.setProgram(prenatalProgram);
-		eligible.setDateEnrolled(weeksAgo(60));
-		
-		PatientProgram ineligible = spy(new PatientProgram());
-		ineligible.setProgram(prenatalProgram);
-		ineligible.setDateEnrolled(weeksAgo(5));
-		
-		List<PatientProgram> prenatalPrograms = new ArrayList<PatientProgram>(Arrays.asList(eligible, ineligible));
-		when(mockProgramWorkflowService.getPatientPrograms(null, prenatalProgram, null, null, null, null, false))
-		        .thenReturn(prenatalPrograms);
+		mockDueDatesBackfilled();
+		mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		Program prenatalProgram = mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		ProgramWorkflowState mockState = mockCompletionState(prenatalProgram, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		    TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM);
 		
-		ProgramWorkflow mockWorkflow = Mockito.mock(ProgramWorkflow.class);
-		ProgramWorkflowState mockState = Mockito.mock(ProgramWorkflowState.class);
+		PatientProgram eligible = buildEnrollment(1, prenatalProgram, weeksAgo(60));
+		PatientProgram notYetDue = buildEnrollment(2, prenatalProgram, weeksAgo(40));
+		PatientProgram completed = buildEnrollment(3, prenatalProgram, weeksAgo(60));
+		completed.setDateCompleted(new Date());
+		List<Integer> dueIds = Arrays.asList(1, 2, 3);
+		when(mockDao.getDuePatientProgramIds(eq(prenatalProgram), any(Date.class), eq(0), eq(1), anyInt())).thenReturn(dueIds);
+		when(mockDao.getPatientPrograms(dueIds)).thenReturn(Arrays.asList(eligible, notYetDue, completed));
 		
-		Concept mockConcept = new Concept();
-		when(mockConceptService.getConceptByUuid(LampConfig.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM)).thenReturn(mockConcept);
-		PowerMockito.when(Utils.getWorkflowByUuid(prenatalProgram, LampConfig.WORKFLOW_PRENATAL_UUID)).thenReturn(
-		    mockWorkflow);
-		PowerMockito.when(Utils.getStateByConcept(mockWorkflow, mockConcept)).thenReturn(mockState);
+		new CompleteProgramsTask().execute();
+		
+		verifyTransitioned(eligible, mockState, 1);
+		verifyTransitioned(notYetDue, mockState, 0);
+		verifyTransitioned(completed, mockState, 0);
+		verify(mockDao).deleteCompletionDue(dueIds);
+		PowerMockito.verifyStatic(Utils.class);
+		Utils.getCompletionDueDate(notYetDue.getDateEnrolled(), 44);
+	}
+	
+	@Test
+	public void shouldEndTheActiveStatesQueriedForTheChunkBeforeTheTransition() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		ProgramWorkflowState mockState = mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		
+		PatientProgram eligible = buildEnrollment(1, childProgram, weeksAgo(30));
+		PatientState activeState = new PatientState();
+		activeState.setPatientProgram(eligible);
+		activeState.setStartDate(weeksAgo(30));
+		List<Integer> dueIds = Arrays.asList(1);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt())).thenReturn(dueIds);
+		when(mockDao.getPatientPrograms(dueIds)).thenReturn(Arrays.asList(eligible));
+		when(mockDao.getActivePatientStates(eq(dueIds), any(), any(Date.class))).thenReturn(Arrays.asList(activeState));
+		
+		new CompleteProgramsTask().execute();
+		
+		ArgumentCaptor<Date> transitionDate = ArgumentCaptor.forClass(Date.class);
+		PowerMockito.verifyStatic(Utils.class);
+		Utils.addState(eq(eligible), eq(mockState), transitionDate.capture(), isNull());
+		assertEquals(transitionDate.getValue(), activeState.getEndDate());
+		verify(eligible, never()).transitionToState(any(ProgramWorkflowState.class), any(Date.class));
+	}
+	
+	@Test
+	public void shouldCompleteTheDueEnrollmentsInBulkWhenSetBased() {
+		mockDueDatesBackfilled();
+		when(mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_SET_BASED, Boolean.FALSE))
+		        .thenReturn(true);
+		User user = new User(1);
+		when(Context.getAuthenticatedUser()).thenReturn(user);
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		ProgramWorkflowState mockState = mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		
+		List<Integer> dueIds = Arrays.asList(1, 2, 3);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt())).thenReturn(dueIds);
+		Date notYetDueDateEnrolled = weeksAgo(10);
+		when(mockDao.getEnrollmentDatesNotBefore(eq(dueIds), any(Date.class))).thenReturn(
+		    Collections.singletonMap(2, notYetDueDateEnrolled));
+		Date rescheduledDueDate = new Date();
+		PowerMockito.when(Utils.getCompletionDueDate(notYetDueDateEnrolled, 18)).thenReturn(rescheduledDueDate);
+		when(mockDao.transitionPatientPrograms(eq(dueIds), eq(mockState), any(Date.class), any(Date.class), eq(user)))
+		        .thenReturn(2);
+		
+		new CompleteProgramsTask().execute();
+		
+		ArgumentCaptor<Date> thresholdDate = ArgumentCaptor.forClass(Date.class);
+		verify(mockDao).transitionPatientPrograms(eq(dueIds), eq(mockState), thresholdDate.capture(), any(Date.class),
+		    eq(user));
+		assertTrue(Math.abs(thresholdDate.getValue().getTime() - weeksAgo(18).getTime()) < TimeUnit.MINUTES.toMillis(1));
+		verify(mockDao).getEnrollmentDatesNotBefore(dueIds, thresholdDate.getValue());
+		verify(mockDao).deleteCompletionDue(dueIds);
+		verify(mockDao).saveCompletionDue(2, 1, rescheduledDueDate);
+		verify(mockDao, never()).getPatientPrograms(anyCollection());
+		assertEquals(3, metrics.getTaskRowsScanned());
+		assertEquals(2, metrics.getTaskEnrollmentsCompleted());
+	}
+	
+	@Test
+	public void shouldCommitEachChunkSeparatelyAndClearSessionBetweenChunks() {
+		mockDueDatesBackfilled();
+		when(
+		    mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_BATCH_SIZE,
+		        CompleteProgramsTask.DEFAULT_BATCH_SIZE)).thenReturn(2);
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		ProgramWorkflowState mockState = mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		
+		PatientProgram first = buildEnrollment(1, childProgram, weeksAgo(30));
+		PatientProgram second = buildEnrollment(2, childProgram, weeksAgo(30));
+		PatientProgram third = buildEnrollment(5, childProgram, weeksAgo(30));
+		List<Integer> firstChunk = Arrays.asList(1, 2);
+		List<Integer> secondChunk = Arrays.asList(5);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), eq(2))).thenReturn(firstChunk,
+		    secondChunk);
+		when(mockDao.getPatientPrograms(firstChunk)).thenReturn(Arrays.asList(first, second));
+		when(mockDao.getPatientPrograms(secondChunk)).thenReturn(Arrays.asList(third));
+		
+		new CompleteProgramsTask().execute();
+		
+		verifyTransitioned(first, mockState, 1);
+		verifyTransitioned(second, mockState, 1);
+		verifyTransitioned(third, mockState, 1);
+		verify(mockDao, times(2)).getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), eq(2));
+		verify(mockDao, times(2)).setJdbcBatchSize(2);
+		// The two chunks, plus acquiring the lease, looking up the next due date and releasing the lease
+		verify(mockTransactionManager, times(5)).commit(any());
+		PowerMockito.verifyStatic(Context.class, times(2));
+		Context.clearSession();
+	}
+	
+	@Test
+	public void shouldBackfillTheDueDatesOfExistingEnrollmentsOnce() {
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		
+		Date dateEnrolled = weeksAgo(3);
+		Map<Integer, Date> enrollmentDates = new LinkedHashMap<Integer, Date>();
+		enrollmentDates.put(7, dateEnrolled);
+		when(mockDao.getIncompletePatientProgramEnrollmentDates(childProgram, 0, CompleteProgramsTask.DEFAULT_BATCH_SIZE))
+		        .thenReturn(enrollmentDates);
+		Date dueDate = new Date();
+		PowerMockito.when(Utils.getCompletionDueDate(dateEnrolled, 18)).thenReturn(dueDate);
+		
+		new CompleteProgramsTask().execute();
+		
+		verify(mockDao).saveCompletionDue(7, 1, dueDate);
+		verify(mockAdministrationService).setGlobalProperty(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED, "true");
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldSplitTheDueEnrollmentsOfEachProgramIntoPartitionsInParallelMode() {
+		mockDueDatesBackfilled();
+		when(mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_PARALLELISM, 1)).thenReturn(2);
+		when(mockPartitionRunner.isAvailable()).thenReturn(true);
+		doAnswer(invocation -> {
+			for (Runnable partition : (Collection<Runnable>) invocation.getArgument(0)) {
+				partition.run();
+			}
+			return null;
+		}).when(mockPartitionRunner).runAll(anyCollection(), eq(2));
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		Program prenatalProgram = mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		mockCompletionState(prenatalProgram, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		    TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM);
+		
+		new CompleteProgramsTask().execute();
+		
+		ArgumentCaptor<Collection> partitions = ArgumentCaptor.forClass(Collection.class);
+		verify(mockPartitionRunner).runAll(partitions.capture(), eq(2));
+		assertEquals(4, partitions.getValue().size());
+		for (Program program : Arrays.asList(childProgram, prenatalProgram)) {
+			verify(mockDao).getDuePatientProgramIds(eq(program), any(Date.class), eq(0), eq(2), anyInt());
+			verify(mockDao).getDuePatientProgramIds(eq(program), any(Date.class), eq(1), eq(2), anyInt());
+		}
+	}
+	
+	@Test
+	public void shouldStopAfterTheCurrentChunkWhenShutDown() {
+		mockDueDatesBackfilled();
+		when(
+		    mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_BATCH_SIZE,
+		        CompleteProgramsTask.DEFAULT_BATCH_SIZE)).thenReturn(1);
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), eq(1))).thenReturn(
+		    Arrays.asList(1), Arrays.asList(2));
+		final CompleteProgramsTask task = new CompleteProgramsTask();
+		when(mockDao.getPatientPrograms(anyCollection())).thenAnswer(invocation -> {
+			task.shutdown();
+			return Arrays.asList(buildEnrollment(1, childProgram, weeksAgo(30)));
+		});
 		
-		AbstractTask task = new CompleteProgramsTask();
 		task.execute();
 		
-		verify(eligible, times(1)).transitionToState(eq(mockState), any(Date.class));
-		verify(ineligible, never()).transitionToState(any(ProgramWorkflowState.class), any(Date.class));
+		verify(mockDao, times(1)).getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), eq(1));
+		assertEquals(1, metrics.getTaskEnrollmentsCompleted());
+	}
+	
+	@Test
+	public void shouldSkipProgramsWhoseLeaseIsHeldByAnotherNode() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		Program prenatalProgram = mockProgram(2, TestMetadata.PROGRAM_PRENATAL_UUID, "Prenatal");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		mockCompletionState(prenatalProgram, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		    TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM);
+		String childLease = CompleteProgramsTask.LEASE_PREFIX + TestMetadata.PROGRAM_CHILD_NUTRITION_UUID;
+		String prenatalLease = CompleteProgramsTask.LEASE_PREFIX + TestMetadata.PROGRAM_PRENATAL_UUID;
+		when(mockDao.acquireLease(eq(childLease), eq(CompleteProgramsTask.LEASE_OWNER), anyInt())).thenReturn(false);
+		
+		new CompleteProgramsTask().execute();
+		
+		verify(mockDao, never()).getDuePatientProgramIds(eq(childProgram), any(Date.class), anyInt(), anyInt(), anyInt());
+		verify(mockDao).getDuePatientProgramIds(eq(prenatalProgram), any(Date.class), eq(0), eq(1), anyInt());
+		verify(mockDao, never()).releaseLease(childLease, CompleteProgramsTask.LEASE_OWNER);
+		verify(mockDao).releaseLease(prenatalLease, CompleteProgramsTask.LEASE_OWNER);
+	}
+	
+	@Test
+	public void shouldStopWhenTheLeaseIsTakenOverByAnotherNode() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		when(mockDao.renewLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt())).thenReturn(false);
+		
+		new CompleteProgramsTask().execute();
+		
+		verify(mockDao, never()).getDuePatientProgramIds(any(Program.class), any(Date.class), anyInt(), anyInt(),
+		    anyInt());
+	}
+	
+	@Test
+	public void shouldNotOverlapARunStillInProgress() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		when(mockDao.getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt())).thenAnswer(
+		    invocation -> {
+			    // The next tick fires while this run is still going
+			    new CompleteProgramsTask().execute();
+			    return Collections.emptyList();
+		    });
+		
+		new CompleteProgramsTask().execute();
+		schedule.wakeUp();
+		new CompleteProgramsTask().execute();
+		
+		verify(mockDao, times(2)).getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt());
+		verify(mockDao, times(2)).acquireLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt());
+	}
+	
+	@Test
+	public void shouldSkipTheTicksBeforeTheEarliestDueDate() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		Date earliestDueDate = new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+		when(mockDao.getEarliestCompletionDueDate(childProgram)).thenReturn(earliestDueDate);
+		
+		new CompleteProgramsTask().execute();
+		new CompleteProgramsTask().execute();
+		
+		assertEquals(earliestDueDate, schedule.getNextRunAt());
+		verify(mockDao, times(1)).acquireLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt());
+		verify(mockDao, times(1)).getDuePatientProgramIds(eq(childProgram), any(Date.class), eq(0), eq(1), anyInt());
+	}
+	
+	@Test
+	public void shouldSleepNoLongerThanTheMaximumWhenNothingIsDue() {
+		mockDueDatesBackfilled();
+		when(mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_COMPLETE_PROGRAMS_MAX_SLEEP_MINUTES,
+		    CompleteProgramsTask.DEFAULT_MAX_SLEEP_MINUTES)).thenReturn(5);
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		long before = System.currentTimeMillis();
+		
+		new CompleteProgramsTask().execute();
+		
+		long sleep = schedule.getNextRunAt().getTime() - before;
+		assertTrue(sleep >= TimeUnit.MINUTES.toMillis(5) && sleep < TimeUnit.MINUTES.toMillis(6));
+	}
+	
+	@Test
+	public void shouldRunOnTheNextTickWhenAProgramWasLeftToAnotherNode() {
+		mockDueDatesBackfilled();
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		when(mockDao.acquireLease(anyString(), eq(CompleteProgramsTask.LEASE_OWNER), anyInt())).thenReturn(false);
+		
+		new CompleteProgramsTask().execute();
+		
+		assertTrue(schedule.isDue());
+	}
+	
+	@Test
+	public void acquireLease_shouldCreateAMissingLeaseInATransactionOfItsOwn() {
+		String lease = CompleteProgramsTask.LEASE_PREFIX + TestMetadata.PROGRAM_CHILD_NUTRITION_UUID;
+		when(mockDao.acquireLease(lease, CompleteProgramsTask.LEASE_OWNER, CompleteProgramsTask.LEASE_SECONDS)).thenReturn(
+		    false, true);
+		
+		assertTrue(CompleteProgramsTask.acquireLease(mockDao, new TransactionTemplate(mockTransactionManager), lease));
+		
+		verify(mockDao).createLease(lease);
+		verify(mockTransactionManager).getTransaction(
+		    argThat(definition -> definition.getPropagationBehavior() == TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+	}
+	
+	@Test
+	public void acquireLease_shouldLeaveTheLeaseToTheNodeCreatingItAtTheSameTime() {
+		String lease = CompleteProgramsTask.LEASE_PREFIX + TestMetadata.PROGRAM_CHILD_NUTRITION_UUID;
+		when(mockDao.acquireLease(lease, CompleteProgramsTask.LEASE_OWNER, CompleteProgramsTask.LEASE_SECONDS)).thenReturn(
+		    false);
+		doThrow(new ConstraintViolationException("Duplicate entry", null, "PRIMARY")).when(mockDao).createLease(lease);
+		
+		assertFalse(CompleteProgramsTask.acquireLease(mockDao, new TransactionTemplate(mockTransactionManager), lease));
+		
+		verify(mockDao, times(1)).acquireLease(lease, CompleteProgramsTask.LEASE_OWNER, CompleteProgramsTask.LEASE_SECONDS);
+		verify(mockTransactionManager).rollback(any());
 	}
 	
 	@Test
 	public void shouldNotFailWhenProgramMissing() {
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(null);
-		when(mockProgramWorkflowService.getProgramByUuid(LampConfig.PROGRAM_PRENATAL_UUID)).thenReturn(null);
+		mockDueDatesBackfilled();
+		when(mockProgramWorkflowService.getProgramByUuid(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID)).thenReturn(null);
+		when(mockProgramWorkflowService.getProgramByUuid(TestMetadata.PROGRAM_PRENATAL_UUID)).thenReturn(null);
 		
 		new CompleteProgramsTask().execute();
 		
-		verify(mockProgramWorkflowService, never()).getPatientPrograms(any(Patient.class), any(Program.class),
-		    any(Date.class), any(Date.class), any(Date.class), any(Date.class), any(Boolean.class));
+		verify(mockDao, never()).getDuePatientProgramIds(any(Program.class), any(Date.class), anyInt(), anyInt(),
+		    anyInt());
+	}
+	
+	private File startDryRun(Map<String, String> properties) throws Exception {
+		File reportFile = temporaryFolder.newFile("dry-run.csv");
+		Map<String, String> taskProperties = new LinkedHashMap<String, String>(properties);
+		taskProperties.put(CompletionDryRun.PROPERTY_DRY_RUN, "true");
+		taskProperties.put(CompletionDryRun.PROPERTY_REPORT_FILE, reportFile.getPath());
+		TaskDefinition taskDefinition = new TaskDefinition();
+		taskDefinition.setProperties(taskProperties);
+		CompleteProgramsTask task = new CompleteProgramsTask();
+		task.initialize(taskDefinition);
+		task.execute();
+		return reportFile;
+	}
+	
+	private void mockIncompleteEnrollments(Program program, Object[]... rows) {
+		EnrollmentCursor cursor = mock(EnrollmentCursor.class);
+		Boolean[] next = new Boolean[rows.length + 1];
+		Integer[] patientProgramIds = new Integer[rows.length];
+		Integer[] patientIds = new Integer[rows.length];
+		Date[] datesEnrolled = new Date[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			next[i + 1] = i + 1 < rows.length;
+			patientProgramIds[i] = (Integer) rows[i][0];
+			patientIds[i] = (Integer) rows[i][1];
+			datesEnrolled[i] = (Date) rows[i][2];
+		}
+		when(cursor.next()).thenReturn(true, Arrays.copyOfRange(next, 1, rows.length + 1));
+		when(cursor.getPatientProgramId()).thenReturn(patientProgramIds[0],
+		    Arrays.copyOfRange(patientProgramIds, 1, rows.length));
+		when(cursor.getPatientId()).thenReturn(patientIds[0], Arrays.copyOfRange(patientIds, 1, rows.length));
+		when(cursor.getDateEnrolled()).thenReturn(datesEnrolled[0], Arrays.copyOfRange(datesEnrolled, 1, rows.length));
+		when(mockDao.openIncompleteEnrollmentCursor(eq(program), eq(0), anyInt(), anyInt())).thenReturn(cursor);
+	}
+	
+	@Test
+	public void shouldReportTheEnrollmentsDueWithoutCompletingThemInDryRun() throws Exception {
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		Date dateEnrolled = weeksAgo(30);
+		mockIncompleteEnrollments(childProgram, new Object[] { 1, 10, dateEnrolled }, new Object[] { 2, 11, weeksAgo(10) },
+		    new Object[] { 3, 12, null });
+		
+		File reportFile = startDryRun(Collections.<String, String> emptyMap());
+		
+		List<String> lines = Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList(CompletionDryRun.HEADER, "Child Nutrition,1,10,"
+		        + new SimpleDateFormat("yyyy-MM-dd").format(dateEnrolled) + ",18,"
+		        + TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM), lines);
+		verify(mockDao, never()).acquireLease(anyString(), anyString(), anyInt());
+		verify(mockDao, never()).getDuePatientProgramIds(any(Program.class), any(Date.class), anyInt(), anyInt(), anyInt());
+		verify(mockDao, never()).getPatientPrograms(anyCollection());
+		verify(mockAdministrationService, never()).setGlobalProperty(anyString(), anyString());
+		assertEquals(0, metrics.getTaskRuns().getCount());
+	}
+	
+	@Test
+	public void shouldEvaluateTheOverriddenCompletionWeeksInDryRun() throws Exception {
+		Program childProgram = mockProgram(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, "Child Nutrition");
+		mockCompletionState(childProgram, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM);
+		mockIncompleteEnrollments(childProgram, new Object[] { 1, 10, weeksAgo(30) }, new Object[] { 2, 11, weeksAgo(10) });
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		properties.put(CompletionDryRun.PROPERTY_COMPLETION_WEEKS_PREFIX + "childNutrition", "8");
+		
+		File reportFile = startDryRun(properties);
+		
+		List<String> lines = Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(1).startsWith("Child Nutrition,1,10,"));
+		assertTrue(lines.get(1).endsWith(",8," + TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM));
+		assertTrue(lines.get(2).startsWith("Child Nutrition,2,11,"));
 	}
 	
 	private static Date weeksAgo(int weeks) {
@@ -0,0 +1,56 @@
+package org.openmrs.module.lamp.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CompletionScheduleTest {
+	
+	@Test
+	public void shouldBeDueUntilTheFirstRunIsScheduled() {
+		assertTrue(new CompletionSchedule().isDue());
+	}
+	
+	@Test
+	public void shouldHoldOffTheTicksUntilTheEarliestDueDate() {
+		CompletionSchedule schedule = new CompletionSchedule();
+		Date earliestDueDate = new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+		
+		schedule.beginRun();
+		schedule.scheduleNextRun(earliestDueDate, 60);
+		
+		assertFalse(schedule.isDue());
+		assertEquals(earliestDueDate, schedule.getNextRunAt());
+	}
+	
+	@Test
+	public void shouldKeepTheDueDatesRecordedDuringARun() {
+		CompletionSchedule schedule = new CompletionSchedule();
+		Date recordedDuringTheRun = new Date(System.currentTimeMillis() - 1000);
+		
+		schedule.beginRun();
+		assertFalse(schedule.isDue());
+		schedule.wakeUpBy(recordedDuringTheRun);
+		schedule.scheduleNextRun(null, 60);
+		
+		assertTrue(schedule.isDue());
+		assertEquals(recordedDuringTheRun, schedule.getNextRunAt());
+	}
+	
+	@Test
+	public void shouldNotPostponeTheNextRunForALaterDueDate() {
+		CompletionSchedule schedule = new CompletionSchedule();
+		Date earliestDueDate = new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+		schedule.beginRun();
+		schedule.scheduleNextRun(earliestDueDate, 60);
+		
+		schedule.wakeUpBy(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(7 * 18)));
+		
+		assertEquals(earliestDueDate, schedule.getNextRunAt());
+	}
+}
@@ -0,0 +1,311 @@
+package org.openmrs.module.lamp.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.LampConfig;
+import org.openmrs.module.lamp.PatientLockTimeoutException;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.async.EncounterEvent;
+import org.openmrs.module.lamp.db.EncounterCursor;
+import org.openmrs.module.lamp.db.LampDao;
+import org.openmrs.module.lamp.db.ReplayCheckpoint;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class ReplayEncountersTaskTest {
+	
+	@Mock
+	private AdministrationService mockAdministrationService;
+	
+	@Mock
+	private EncounterService mockEncounterService;
+	
+	@Mock
+	private PlatformTransactionManager mockTransactionManager;
+	
+	@Mock
+	private LampDao mockDao;
+	
+	@Mock
+	private ProgramStrategyDispatcher mockDispatcher;
+	
+	@Mock
+	private ProgramRules mockProgramRules;
+	
+	@Mock
+	private EncounterCursor mockCursor;
+	
+	private LampMetrics metrics;
+	
+	private User user;
+	
+	@Before
+	public void setup() {
+		PowerMockito.mockStatic(Context.class);
+		user = new User(1);
+		when(Context.getAuthenticatedUser()).thenReturn(user);
+		when(Context.getAdministrationService()).thenReturn(mockAdministrationService);
+		when(Context.getEncounterService()).thenReturn(mockEncounterService);
+		when(Context.getRegisteredComponent("lamp.LampDao", LampDao.class)).thenReturn(mockDao);
+		when(Context.getRegisteredComponent("lamp.ProgramStrategyDispatcher", ProgramStrategyDispatcher.class))
+		        .thenReturn(mockDispatcher);
+		when(Context.getRegisteredComponent("lamp.ProgramRules", ProgramRules.class)).thenReturn(mockProgramRules);
+		metrics = new LampMetrics();
+		when(Context.getRegisteredComponent("lamp.LampMetrics", LampMetrics.class)).thenReturn(metrics);
+		when(Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class)).thenReturn(
+		    mockTransactionManager);
+		when(mockAdministrationService.getGlobalPropertyValue(LampConfig.GP_REPLAY_ENCOUNTERS_BATCH_SIZE,
+		    ReplayEncountersTask.DEFAULT_BATCH_SIZE)).thenReturn(2);
+		when(mockProgramRules.getRules()).thenReturn(
+		    Arrays.asList(new ProgramRule("childNutrition", TestMetadata.PROGRAM_CHILD_NUTRITION_UUID,
+		            TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID, Collections
+		                    .singleton(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID), Collections
+		                    .singletonList(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID), null, null),
+		        new ProgramRule("prenatal", TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		                Collections.singleton(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID), Collections
+		                .singletonList(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID), null, null)));
+		when(mockDao.acquireLease(eq(ReplayEncountersTask.LEASE), eq(CompleteProgramsTask.LEASE_OWNER), anyInt()))
+		        .thenReturn(true);
+		when(mockDao.renewLease(eq(ReplayEncountersTask.LEASE), eq(CompleteProgramsTask.LEASE_OWNER), anyInt()))
+		        .thenReturn(true);
+		when(mockDao.openEncounterCursor(anyCollection(), any(ReplayCheckpoint.class), anyInt(), anyInt())).thenReturn(
+		    mockCursor);
+	}
+	
+	private Encounter buildEncounter(int encounterId) {
+		EncounterType encounterType = new EncounterType();
+		encounterType.setUuid(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID);
+		Encounter encounter = new Encounter(encounterId);
+		encounter.setEncounterType(encounterType);
+		encounter.setEncounterDatetime(new Date(encounterId * 1000L));
+		return encounter;
+	}
+	
+	/**
+	 * Makes the cursor read the given encounters, which the dao loads in the reverse order
+	 */
+	private void mockEncounters(final Encounter... encounters) {
+		final int[] position = { -1 };
+		when(mockCursor.next()).thenAnswer(invocation -> ++position[0] < encounters.length);
+		when(mockCursor.getEncounterId()).thenAnswer(invocation -> encounters[position[0]].getEncounterId());
+		when(mockCursor.getEncounterDatetime()).thenAnswer(invocation -> encounters[position[0]].getEncounterDatetime());
+		when(mockDao.getEncounters(anyCollection())).thenAnswer(invocation -> {
+			Collection<Integer> requested = invocation.getArgument(0);
+			List<Encounter> found = new ArrayList<Encounter>();
+			for (int i = encounters.length - 1; i >= 0; i--) {
+				if (requested.contains(encounters[i].getEncounterId())) {
+					found.add(encounters[i]);
+				}
+			}
+			return found;
+		});
+	}
+	
+	private List<ReplayCheckpoint> captureCheckpoints(int count) {
+		ArgumentCaptor<ReplayCheckpoint> checkpoints = ArgumentCaptor.forClass(ReplayCheckpoint.class);
+		verify(mockDao, times(count)).saveReplayCheckpoint(eq(ReplayEncountersTask.CHECKPOINT), checkpoints.capture());
+		return checkpoints.getAllValues();
+	}
+	
+	@Test
+	public void shouldReplayTheEncountersInOrderOneChunkPerCheckpoint() {
+		Encounter first = buildEncounter(1);
+		Encounter second = buildEncounter(2);
+		Encounter third = buildEncounter(3);
+		mockEncounters(first, second, third);
+		
+		new ReplayEncountersTask().execute();
+		
+		InOrder inOrder = inOrder(mockDispatcher);
+		inOrder.verify(mockDispatcher).dispatch(eq(first), eq(user), any(Date.class), eq(ReplayEncountersTask.REASON));
+		inOrder.verify(mockDispatcher).dispatch(eq(second), eq(user), any(Date.class), eq(ReplayEncountersTask.REASON));
+		inOrder.verify(mockDispatcher).dispatch(eq(third), eq(user), any(Date.class), eq(ReplayEncountersTask.REASON));
+		List<ReplayCheckpoint> checkpoints = captureCheckpoints(3);
+		assertEquals(Integer.valueOf(2), checkpoints.get(0).getEncounterId());
+		assertEquals(second.getEncounterDatetime(), checkpoints.get(0).getEncounterDatetime());
+		assertEquals(2, checkpoints.get(0).getEncountersReplayed());
+		assertFalse(checkpoints.get(0).isCompleted());
+		assertEquals(Integer.valueOf(3), checkpoints.get(1).getEncounterId());
+		assertEquals(3, checkpoints.get(1).getEncountersReplayed());
+		assertTrue(checkpoints.get(2).isCompleted());
+		assertEquals(3, metrics.getEncountersReplayed());
+		assertEquals(2, metrics.getReplayChunks().getCount());
+		verify(mockDao).releaseLease(ReplayEncountersTask.LEASE, CompleteProgramsTask.LEASE_OWNER);
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldStreamOnlyTheEncounterTypesOfTheProgramRules() {
+		mockEncounters();
+		
+		new ReplayEncountersTask().execute();
+		
+		ArgumentCaptor<Collection> encounterTypeUuids = ArgumentCaptor.forClass(Collection.class);
+		verify(mockDao).openEncounterCursor(encounterTypeUuids.capture(), any(ReplayCheckpoint.class),
+		    eq(2 * ReplayEncountersTask.CHUNKS_PER_CURSOR), eq(2));
+		assertEquals(
+		    Arrays.asList(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID, TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID),
+		    new ArrayList<String>(encounterTypeUuids.getValue()));
+		verify(mockCursor).close();
+	}
+	
+	@Test
+	public void shouldResumeFromTheCheckpoint() {
+		ReplayCheckpoint checkpoint = new ReplayCheckpoint(new Date(2000), 2, 2, false);
+		when(mockDao.getReplayCheckpoint(ReplayEncountersTask.CHECKPOINT)).thenReturn(checkpoint);
+		Encounter third = buildEncounter(3);
+		mockEncounters(third);
+		
+		new ReplayEncountersTask().execute();
+		
+		verify(mockDao).openEncounterCursor(anyCollection(), eq(checkpoint), anyInt(), anyInt());
+		verify(mockDispatcher, times(1)).dispatch(any(Encounter.class), any(User.class), any(Date.class), anyString());
+		List<ReplayCheckpoint> checkpoints = captureCheckpoints(2);
+		assertEquals(3, checkpoints.get(0).getEncountersReplayed());
+		assertEquals(Integer.valueOf(3), checkpoints.get(1).getEncounterId());
+		assertTrue(checkpoints.get(1).isCompleted());
+	}
+	
+	@Test
+	public void shouldNotRunAgainOnceCompleted() {
+		when(mockDao.getReplayCheckpoint(ReplayEncountersTask.CHECKPOINT)).thenReturn(
+		    new ReplayCheckpoint(new Date(3000), 3, 3, true));
+		
+		new ReplayEncountersTask().execute();
+		
+		verify(mockDao, never()).acquireLease(anyString(), anyString(), anyInt());
+		verify(mockDao, never()).openEncounterCursor(anyCollection(), any(ReplayCheckpoint.class), anyInt(), anyInt());
+	}
+	
+	@Test
+	public void shouldSkipWhenAnotherNodeHoldsTheLease() {
+		when(mockDao.acquireLease(eq(ReplayEncountersTask.LEASE), eq(CompleteProgramsTask.LEASE_OWNER), anyInt()))
+		        .thenReturn(false);
+		
+		new ReplayEncountersTask().execute();
+		
+		verify(mockDao, never()).openEncounterCursor(anyCollection(), any(ReplayCheckpoint.class), anyInt(), anyInt());
+		verify(mockDao, never()).releaseLease(anyString(), anyString());
+	}
+	
+	@Test
+	public void shouldStopWhenTheLeaseIsLost() {
+		mockEncounters(buildEncounter(1), buildEncounter(2), buildEncounter(3));
+		when(mockDao.renewLease(eq(ReplayEncountersTask.LEASE), eq(CompleteProgramsTask.LEASE_OWNER), anyInt()))
+		        .thenReturn(false);
+		
+		new ReplayEncountersTask().execute();
+		
+		verify(mockDispatcher, never()).dispatch(any(Encounter.class), any(User.class), any(Date.class), anyString());
+		verify(mockDao, never()).saveReplayCheckpoint(anyString(), any(ReplayCheckpoint.class));
+		verify(mockCursor).close();
+	}
+	
+	@Test
+	public void shouldRecordTheEncountersThatFailInTheDeadLetterTableAndCarryOn() {
+		Encounter first = buildEncounter(1);
+		Encounter faulty = buildEncounter(2);
+		mockEncounters(first, faulty);
+		when(mockEncounterService.getEncounter(2)).thenReturn(faulty);
+		doThrow(new IllegalStateException("faulty")).when(mockDispatcher).dispatch(eq(faulty), any(User.class),
+		    any(Date.class), anyString());
+		
+		new ReplayEncountersTask().execute();
+		
+		ArgumentCaptor<EncounterEvent> event = ArgumentCaptor.forClass(EncounterEvent.class);
+		verify(mockDao).saveDeadLetter(event.capture(), eq(1), anyString());
+		assertEquals(faulty.getUuid(), event.getValue().getEncounterUuid());
+		// Not a conflict, so not retried
+		verify(mockDispatcher, times(1)).dispatch(eq(faulty), any(User.class), any(Date.class), anyString());
+		verify(mockDispatcher, times(1)).dispatch(eq(first), any(User.class), any(Date.class), anyString());
+		List<ReplayCheckpoint> checkpoints = captureCheckpoints(2);
+		assertEquals(Integer.valueOf(2), checkpoints.get(0).getEncounterId());
+		assertTrue(checkpoints.get(1).isCompleted());
+	}
+	
+	@Test
+	public void shouldRetryTheEncountersThatConflictWithAnotherUpdateOfTheirPatient() {
+		Encounter encounter = buildEncounter(1);
+		mockEncounters(encounter);
+		doThrow(new PatientLockTimeoutException("timed out")).doNothing().when(mockDispatcher).dispatch(eq(encounter),
+		    any(User.class), any(Date.class), anyString());
+		
+		new ReplayEncountersTask().execute();
+		
+		verify(mockDispatcher, times(2)).dispatch(eq(encounter), any(User.class), any(Date.class), anyString());
+		verify(mockDao, never()).saveDeadLetter(any(EncounterEvent.class), anyInt(), anyString());
+		assertTrue(captureCheckpoints(2).get(1).isCompleted());
+	}
+	
+	@Test
+	public void shouldReplayEachEncounterInItsOwnTransaction() {
+		mockEncounters(buildEncounter(1), buildEncounter(2));
+		
+		new ReplayEncountersTask().execute();
+		
+		// Reading the checkpoint, taking the lease, renewing it, one per encounter, the checkpoint of the chunk, the
+		// completed checkpoint and releasing the lease
+		verify(mockTransactionManager, times(8)).getTransaction(any());
+	}
+	
+	@Test
+	public void shouldStopAfterTheCurrentChunkWhenShutDown() {
+		final ReplayEncountersTask task = new ReplayEncountersTask();
+		Encounter first = buildEncounter(1);
+		mockEncounters(first, buildEncounter(2), buildEncounter(3), buildEncounter(4));
+		doAnswer(invocation -> {
+			task.shutdown();
+			return null;
+		}).when(mockDispatcher).dispatch(eq(first), any(User.class), any(Date.class), anyString());
+		
+		task.execute();
+		
+		verify(mockDispatcher, times(2)).dispatch(any(Encounter.class), any(User.class), any(Date.class), anyString());
+		List<ReplayCheckpoint> checkpoints = captureCheckpoints(1);
+		assertEquals(Integer.valueOf(2), checkpoints.get(0).getEncounterId());
+		assertFalse(checkpoints.get(0).isCompleted());
+	}
+}
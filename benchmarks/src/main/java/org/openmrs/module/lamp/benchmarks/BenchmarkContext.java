@@ -0,0 +1,60 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.ServiceContext;
+import org.openmrs.api.db.ContextDAO;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * Installs stub services and the given module beans behind the static {@link Context}, so that the module code runs
+ * unchanged outside of OpenMRS.
+ */
+public class BenchmarkContext {
+	
+	private BenchmarkContext() {
+	}
+	
+	public static void install(SyntheticData data, Map<String, Object> beans, Map<String, Object> globalProperties) {
+		Map<String, Function<Object[], Object>> programWorkflowAnswers = new HashMap<String, Function<Object[], Object>>();
+		programWorkflowAnswers.put("getProgramByUuid", args -> data.getProgram((String) args[0]));
+		programWorkflowAnswers.put("savePatientProgram", args -> args[0]);
+		
+		Map<String, Function<Object[], Object>> conceptAnswers = new HashMap<String, Function<Object[], Object>>();
+		conceptAnswers.put("getConceptByUuid", args -> data.getConcept((String) args[0]));
+		
+		Map<String, Function<Object[], Object>> administrationAnswers = new HashMap<String, Function<Object[], Object>>();
+		administrationAnswers.put("getGlobalPropertyValue", args -> {
+			Object value = globalProperties.get(args[0]);
+			return value != null ? value : args[1];
+		});
+		
+		ServiceContext serviceContext = ServiceContext.getInstance();
+		serviceContext.setProgramWorkflowService(Stubs.of(ProgramWorkflowService.class, programWorkflowAnswers));
+		serviceContext.setConceptService(Stubs.of(ConceptService.class, conceptAnswers));
+		serviceContext.setAdministrationService(Stubs.of(AdministrationService.class, administrationAnswers));
+		new Context().setContextDAO(Stubs.of(ContextDAO.class));
+		
+		StaticApplicationContext applicationContext = new StaticApplicationContext();
+		for (Map.Entry<String, Object> bean : beans.entrySet()) {
+			applicationContext.getBeanFactory().registerSingleton(bean.getKey(), bean.getValue());
+		}
+		applicationContext.refresh();
+		serviceContext.setApplicationContext(applicationContext);
+	}
+}
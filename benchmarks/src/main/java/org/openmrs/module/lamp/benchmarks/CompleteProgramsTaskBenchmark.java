@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.lamp.LampConfig;
+import org.openmrs.module.lamp.LampMetadataCache;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+import org.openmrs.module.lamp.scheduler.CompleteProgramsTask;
+import org.openmrs.module.lamp.scheduler.CompletionPartitionRunner;
+import org.openmrs.module.lamp.scheduler.CompletionSchedule;
+
+/**
+ * A run of the completion task when the given number of Child Nutrition enrollments are due, measuring the cost of the
+ * module itself: chunking, transaction handling, enrollment hydration and state transitions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompleteProgramsTaskBenchmark {
+	
+	@Param({ "10000", "100000", "1000000" })
+	public int dueEnrollments;
+	
+	@Param({ "200" })
+	public int batchSize;
+	
+	private SyntheticLampDao dao;
+	
+	private final CompletionSchedule schedule = new CompletionSchedule();
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		final SyntheticData data = new SyntheticData(10);
+		dao = new SyntheticLampDao(id -> data.buildEnrollment(id, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, data
+		        .getMalnutritionStatusAnswers().get(0), 30));
+		
+		Map<String, Object> beans = new HashMap<String, Object>();
+		beans.put("lamp.LampDao", dao);
+		beans.put("transactionManager", new NoOpTransactionManager());
+		beans.put("lamp.LampMetrics", new LampMetrics());
+		beans.put("lamp.CompletionPartitionRunner", new CompletionPartitionRunner());
+		beans.put("lamp.CompletionSchedule", schedule);
+		ProgramRules programRules = new ProgramRules();
+		Stubs.setField(programRules, "dispatcher", new ProgramStrategyDispatcher());
+		Stubs.setField(programRules, "metadataCache", new LampMetadataCache());
+		programRules.setRules(data.getProgramRules());
+		beans.put("lamp.ProgramRules", programRules);
+		Map<String, Object> globalProperties = new HashMap<String, Object>();
+		globalProperties.put(LampConfig.GP_COMPLETE_PROGRAMS_BATCH_SIZE, batchSize);
+		globalProperties.put(LampConfig.GP_COMPLETE_PROGRAMS_DUE_DATES_BACKFILLED, true);
+		BenchmarkContext.install(data, beans, globalProperties);
+	}
+	
+	@Setup(Level.Invocation)
+	public void makeEnrollmentsDue() {
+		dao.resetDue(dueEnrollments);
+		schedule.wakeUp();
+	}
+	
+	@Benchmark
+	public void execute() {
+		new CompleteProgramsTask().execute();
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.User;
+import org.openmrs.module.lamp.LampEncounterSaveHandler;
+import org.openmrs.module.lamp.LampMetadataCache;
+import org.openmrs.module.lamp.PatientLocks;
+import org.openmrs.module.lamp.ProgramRules;
+import org.openmrs.module.lamp.ProgramStrategyDispatcher;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.async.EncounterEventCoalescer;
+import org.openmrs.module.lamp.async.ProgramStateQueue;
+import org.openmrs.module.lamp.metrics.LampMetrics;
+
+/**
+ * The encounter save hook as it runs synchronously within the save of a Child Nutrition encounter, with the enrollment
+ * of the patient either moving to a new state or already in the recorded state, for an edit of an encounter that leaves
+ * the values the rules read unchanged, and for an encounter of an unrelated type. The database is replaced by
+ * {@link SyntheticLampDao} and stub services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncounterSaveBenchmark {
+	
+	@Param({ "20", "100" })
+	public int obsCount;
+	
+	@Param({ "true", "false" })
+	public boolean transition;
+	
+	private LampEncounterSaveHandler handler;
+	
+	private Encounter encounter;
+	
+	private Encounter editedEncounter;
+	
+	private Encounter unrelatedEncounter;
+	
+	private final User user = new User(1);
+	
+	@Setup
+	public void setup() {
+		final SyntheticData data = new SyntheticData(10);
+		Concept question = data.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID);
+		Concept answer = data.getMalnutritionStatusAnswers().get(0);
+		final Concept currentState = transition ? data.getMalnutritionStatusAnswers().get(1) : answer;
+		
+		LampMetadataCache metadataCache = new LampMetadataCache();
+		ProgramStrategyDispatcher dispatcher = new ProgramStrategyDispatcher();
+		Stubs.setField(dispatcher, "metadataCache", metadataCache);
+		Stubs.setField(dispatcher, "metrics", new LampMetrics());
+		Stubs.setField(dispatcher, "patientLocks", new PatientLocks());
+		SyntheticLampDao dao = new SyntheticLampDao(id -> data.buildEnrollment(id, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID,
+		    currentState, 4));
+		Stubs.setField(dispatcher, "dao", dao);
+		ProgramRules programRules = new ProgramRules();
+		Stubs.setField(programRules, "dispatcher", dispatcher);
+		Stubs.setField(programRules, "metadataCache", metadataCache);
+		programRules.setRules(data.getProgramRules());
+		
+		Map<String, Object> beans = new HashMap<String, Object>();
+		beans.put("lamp.LampMetadataCache", metadataCache);
+		beans.put("lamp.ProgramRules", programRules);
+		beans.put("lamp.LampDao", dao);
+		BenchmarkContext.install(data, beans, Collections.<String, Object> emptyMap());
+		metadataCache.refresh();
+		
+		handler = new LampEncounterSaveHandler();
+		Stubs.setField(handler, "dispatcher", dispatcher);
+		Stubs.setField(handler, "programStateQueue", new ProgramStateQueue());
+		Stubs.setField(handler, "eventCoalescer", new EncounterEventCoalescer());
+		
+		encounter = data.buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID, question, answer, obsCount);
+		editedEncounter = data.buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID, question, answer, obsCount);
+		editedEncounter.setEncounterId(1);
+		unrelatedEncounter = data.buildEncounter("unrelated-encounter-type", question, answer, obsCount);
+	}
+	
+	@Benchmark
+	public Encounter handle() {
+		handler.handle(encounter, user, new Date(), null);
+		return encounter;
+	}
+	
+	@Benchmark
+	public Encounter handleUnchangedEdit() {
+		handler.handle(editedEncounter, user, new Date(), null);
+		return editedEncounter;
+	}
+	
+	@Benchmark
+	public Encounter handleUnrelatedEncounter() {
+		handler.handle(unrelatedEncounter, user, new Date(), null);
+		return unrelatedEncounter;
+	}
+}
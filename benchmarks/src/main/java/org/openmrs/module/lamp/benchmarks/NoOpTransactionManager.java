@@ -0,0 +1,38 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Runs the transaction templates of the module without a database, so that only the Spring transaction handling
+ * overhead is measured.
+ */
+public class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+	
+	@Override
+	protected Object doGetTransaction() {
+		return new Object();
+	}
+	
+	@Override
+	protected void doBegin(Object transaction, TransactionDefinition definition) {
+	}
+	
+	@Override
+	protected void doCommit(DefaultTransactionStatus status) {
+	}
+	
+	@Override
+	protected void doRollback(DefaultTransactionStatus status) {
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.Utils;
+
+/**
+ * Extraction of the coded values the strategies read from encounters of increasing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObsExtractionBenchmark {
+	
+	@Param({ "20", "100", "500" })
+	public int obsCount;
+	
+	private Encounter encounter;
+	
+	private Concept malnutritionStatus;
+	
+	private List<Concept> questions;
+	
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(10);
+		malnutritionStatus = data.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID);
+		questions = Arrays.asList(malnutritionStatus,
+		    data.getConcept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID));
+		encounter = data.buildEncounter(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID, malnutritionStatus, data
+		        .getMalnutritionStatusAnswers().get(0), obsCount);
+	}
+	
+	@Benchmark
+	public Concept findLatestCodedObsValue() {
+		return Utils.findLatestCodedObsValue(encounter, malnutritionStatus);
+	}
+	
+	@Benchmark
+	public Map<Integer, Concept> findLatestCodedObsValues() {
+		return Utils.findLatestCodedObsValues(encounter, questions);
+	}
+}
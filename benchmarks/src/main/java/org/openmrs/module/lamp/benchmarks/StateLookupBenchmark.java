@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Concept;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.lamp.LampMetadata;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.Utils;
+
+/**
+ * Resolution of the target state of a coded answer, by scanning the workflow and from the metadata snapshot. The last
+ * state of the workflow is looked up, which is the worst case of the scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateLookupBenchmark {
+	
+	@Param({ "5", "20", "100" })
+	public int statesPerWorkflow;
+	
+	private ProgramWorkflow workflow;
+	
+	private Concept answer;
+	
+	private LampMetadata metadata;
+	
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(statesPerWorkflow);
+		workflow = data.getWorkflow(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID);
+		List<Concept> answers = data.getMalnutritionStatusAnswers();
+		answer = answers.get(answers.size() - 1);
+		
+		BenchmarkContext.install(data, Collections.<String, Object> emptyMap(), Collections.<String, Object> emptyMap());
+		metadata = LampMetadata.build(Context.getProgramWorkflowService(), Context.getConceptService(),
+		    Arrays.asList(TestMetadata.PROGRAM_CHILD_NUTRITION_UUID),
+		    Arrays.asList(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID));
+	}
+	
+	@Benchmark
+	public ProgramWorkflowState scanWorkflow() {
+		return Utils.getStateByConcept(workflow, answer);
+	}
+	
+	@Benchmark
+	public ProgramWorkflowState lookUpMetadata() {
+		return metadata.getStateByConcept(workflow, answer);
+	}
+}
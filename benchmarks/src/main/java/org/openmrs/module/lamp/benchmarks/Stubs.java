@@ -0,0 +1,97 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Allocation free stand-ins for the OpenMRS services. Mocking frameworks record every invocation, which would skew the
+ * allocation rate and grow the heap over the millions of invocations of a benchmark run.
+ */
+public class Stubs {
+	
+	private Stubs() {
+	}
+	
+	/**
+	 * Returns an implementation of the interface answering the given methods by name, the other methods return null,
+	 * false or zero.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T of(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+		final Map<String, Function<Object[], Object>> byName = new HashMap<String, Function<Object[], Object>>(answers);
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			Function<Object[], Object> answer = byName.get(method.getName());
+			if (answer != null) {
+				return answer.apply(args);
+			}
+			switch (method.getName()) {
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return type.getSimpleName() + " stub";
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		});
+	}
+	
+	public static <T> T of(Class<T> type) {
+		return of(type, new HashMap<String, Function<Object[], Object>>());
+	}
+	
+	private static Object defaultValue(Class<?> returnType) {
+		if (!returnType.isPrimitive() || returnType == void.class) {
+			return null;
+		}
+		if (returnType == boolean.class) {
+			return false;
+		}
+		if (returnType == char.class) {
+			return '\0';
+		}
+		if (returnType == long.class) {
+			return 0L;
+		}
+		if (returnType == float.class) {
+			return 0F;
+		}
+		if (returnType == double.class) {
+			return 0D;
+		}
+		if (returnType == byte.class) {
+			return (byte) 0;
+		}
+		if (returnType == short.class) {
+			return (short) 0;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Sets a field the way Spring injects the {@code @Autowired} fields of the module beans.
+	 */
+	public static void setField(Object target, String name, Object value) {
+		try {
+			Field field = target.getClass().getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(target, value);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot set " + name + " on " + target.getClass().getName(), e);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.module.lamp.ProgramRule;
+import org.openmrs.module.lamp.TestMetadata;
+import org.openmrs.module.lamp.Utils;
+
+/**
+ * Builds the LAMP programs, workflows, states and concepts in memory, with the uuids of {@link TestMetadata}, along with
+ * encounters and enrollments shaped like the production ones.
+ */
+public class SyntheticData {
+	
+	private final Map<String, Concept> conceptsByUuid = new HashMap<String, Concept>();
+	
+	private final Map<String, Program> programsByUuid = new HashMap<String, Program>();
+	
+	private final List<Concept> malnutritionStatusAnswers = new ArrayList<Concept>();
+	
+	private final List<Concept> pregnancyStatusAnswers = new ArrayList<Concept>();
+	
+	private final Concept numericQuestion;
+	
+	private int nextConceptId = 1;
+	
+	/**
+	 * @param statesPerWorkflow the number of states of each workflow, besides the completion state
+	 */
+	public SyntheticData(int statesPerWorkflow) {
+		concept(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID);
+		concept(TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID);
+		concept(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID);
+		numericQuestion = concept(UUID.randomUUID().toString());
+		
+		for (int i = 0; i < statesPerWorkflow; i++) {
+			malnutritionStatusAnswers.add(concept(UUID.randomUUID().toString()));
+			pregnancyStatusAnswers.add(concept(UUID.randomUUID().toString()));
+		}
+		
+		List<Concept> childNutritionStates = new ArrayList<Concept>(malnutritionStatusAnswers);
+		childNutritionStates.add(concept(TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM));
+		program(1, TestMetadata.PROGRAM_CHILD_NUTRITION_UUID, TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		    childNutritionStates);
+		
+		List<Concept> prenatalStates = new ArrayList<Concept>(pregnancyStatusAnswers);
+		prenatalStates.add(concept(TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM));
+		program(2, TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID, prenatalStates);
+	}
+	
+	private Concept concept(String uuid) {
+		Concept concept = new Concept(nextConceptId++);
+		concept.setUuid(uuid);
+		conceptsByUuid.put(uuid, concept);
+		return concept;
+	}
+	
+	private void program(int programId, String programUuid, String workflowUuid, List<Concept> stateConcepts) {
+		Program program = new Program(programId);
+		program.setUuid(programUuid);
+		program.setName(programUuid);
+		ProgramWorkflow workflow = new ProgramWorkflow();
+		workflow.setUuid(workflowUuid);
+		for (Concept stateConcept : stateConcepts) {
+			ProgramWorkflowState state = new ProgramWorkflowState();
+			state.setConcept(stateConcept);
+			state.setInitial(false);
+			state.setTerminal(false);
+			workflow.addState(state);
+		}
+		program.addWorkflow(workflow);
+		programsByUuid.put(programUuid, program);
+	}
+	
+	public Concept getConcept(String uuid) {
+		return conceptsByUuid.get(uuid);
+	}
+	
+	public Program getProgram(String uuid) {
+		return programsByUuid.get(uuid);
+	}
+	
+	public ProgramWorkflow getWorkflow(String programUuid) {
+		return programsByUuid.get(programUuid).getWorkflows().iterator().next();
+	}
+	
+	public List<Concept> getMalnutritionStatusAnswers() {
+		return malnutritionStatusAnswers;
+	}
+	
+	public List<Concept> getPregnancyStatusAnswers() {
+		return pregnancyStatusAnswers;
+	}
+	
+	/**
+	 * @return the program rules shipped as the default values of the {@code lamp.programRules.*} global properties
+	 */
+	public List<ProgramRule> getProgramRules() {
+		return Arrays.asList(new ProgramRule("childNutrition", TestMetadata.PROGRAM_CHILD_NUTRITION_UUID,
+		        TestMetadata.WORKFLOW_CHILD_NUTRITION_UUID,
+		        Collections.singleton(TestMetadata.CHILD_NUTRITION_ENCOUNTER_TYPE_UUID),
+		        Arrays.asList(TestMetadata.CONCEPT_CHILD_NUTRITION_MALNUTRITION_STATUS_UUID,
+		            TestMetadata.CONCEPT_CHILD_NUTRITION_REASON_FOR_DISCHARGE_UUID), 18,
+		        TestMetadata.CONCEPT_18_WEEKS_IN_CHILD_NUTRITION_PROGRAM), new ProgramRule("prenatal",
+		        TestMetadata.PROGRAM_PRENATAL_UUID, TestMetadata.WORKFLOW_PRENATAL_UUID,
+		        Collections.singleton(TestMetadata.PRENATAL_ENCOUNTER_TYPE_UUID),
+		        Collections.singletonList(TestMetadata.CONCEPT_PRENATAL_PREGNANCY_STATUS_UUID), 44,
+		        TestMetadata.CONCEPT_10_MONTHS_IN_PRENATAL_PROGRAM));
+	}
+	
+	/**
+	 * Builds an encounter holding the given coded answer among {@code obsCount} obs, a tenth of them grouped, the others
+	 * being numeric vitals.
+	 */
+	public Encounter buildEncounter(String encounterTypeUuid, Concept question, Concept answer, int obsCount) {
+		Date encounterDatetime = new Date();
+		EncounterType encounterType = new EncounterType();
+		encounterType.setUuid(encounterTypeUuid);
+		Encounter encounter = new Encounter();
+		encounter.setEncounterType(encounterType);
+		encounter.setEncounterDatetime(encounterDatetime);
+		encounter.setPatient(new Patient(1));
+		encounter.setLocation(new Location(1));
+		
+		int added = 1;
+		while (added < obsCount) {
+			if (added % 10 == 0 && added + 3 <= obsCount) {
+				Obs group = numericObs(0, encounterDatetime);
+				group.setValueNumeric(null);
+				group.addGroupMember(numericObs(added, encounterDatetime));
+				group.addGroupMember(numericObs(added + 1, encounterDatetime));
+				encounter.addObs(group);
+				added += 3;
+			} else {
+				encounter.addObs(numericObs(added, encounterDatetime));
+				added++;
+			}
+		}
+		
+		Obs coded = new Obs();
+		coded.setConcept(question);
+		coded.setValueCoded(answer);
+		coded.setObsDatetime(encounterDatetime);
+		encounter.addObs(coded);
+		return encounter;
+	}
+	
+	private Obs numericObs(int value, Date obsDatetime) {
+		Obs obs = new Obs();
+		obs.setConcept(numericQuestion);
+		obs.setValueNumeric((double) value);
+		obs.setObsDatetime(obsDatetime);
+		return obs;
+	}
+	
+	/**
+	 * Builds an enrollment started the given number of weeks ago, currently in the given state of the workflow.
+	 */
+	public PatientProgram buildEnrollment(int patientProgramId, String programUuid, Concept currentState, int weeksAgo) {
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.WEEK_OF_YEAR, -weeksAgo);
+		Date dateEnrolled = cal.getTime();
+		
+		PatientProgram patientProgram = new PatientProgram(patientProgramId);
+		patientProgram.setPatient(new Patient(patientProgramId));
+		patientProgram.setProgram(programsByUuid.get(programUuid));
+		patientProgram.setDateEnrolled(dateEnrolled);
+		
+		PatientState patientState = new PatientState();
+		patientState.setState(Utils.getStateByConcept(getWorkflow(programUuid), currentState));
+		patientState.setStartDate(dateEnrolled);
+		patientProgram.getStates().add(patientState);
+		patientState.setPatientProgram(patientProgram);
+		return patientProgram;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.lamp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.module.lamp.db.LampDao;
+
+/**
+ * Serves the module queries from synthetic rows. Enrollments are built when they are read, as Hibernate would hydrate
+ * them, so that their allocation is part of the measurement.
+ */
+public class SyntheticLampDao extends LampDao {
+	
+	private final IntFunction<PatientProgram> enrollmentFactory;
+	
+	private int dueCount;
+	
+	private int nextDueId;
+	
+	private final Map<Integer, String> encounterFingerprints = new HashMap<Integer, String>();
+	
+	/**
+	 * The enrollments of the last chunk read, whose states are served as a Hibernate session would from its first level
+	 * cache
+	 */
+	private final Map<Integer, PatientProgram> chunk = new HashMap<Integer, PatientProgram>();
+	
+	public SyntheticLampDao(IntFunction<PatientProgram> enrollmentFactory) {
+		this.enrollmentFactory = enrollmentFactory;
+	}
+	
+	/**
+	 * Makes the given number of enrollments due for completion again.
+	 */
+	public void resetDue(int count) {
+		dueCount = count;
+		nextDueId = 1;
+	}
+	
+	@Override
+	public PatientProgram getActivePatientProgram(Patient patient, Program program) {
+		return enrollmentFactory.apply(patient.getPatientId());
+	}
+	
+	@Override
+	public List<Integer> getDuePatientProgramIds(Program program, Date dueBefore, int partition, int partitions,
+	        int maxResults) {
+		int end = Math.min(nextDueId + maxResults, dueCount + 1);
+		List<Integer> ids = new ArrayList<Integer>(Math.max(end - nextDueId, 0));
+		for (int id = nextDueId; id < end; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+	
+	@Override
+	public Date getEarliestCompletionDueDate(Program program) {
+		return null;
+	}
+	
+	@Override
+	public void deleteCompletionDue(Collection<Integer> patientProgramIds) {
+		nextDueId += patientProgramIds.size();
+	}
+	
+	@Override
+	public List<PatientProgram> getPatientPrograms(Collection<Integer> patientProgramIds) {
+		List<PatientProgram> patientPrograms = new ArrayList<PatientProgram>(patientProgramIds.size());
+		chunk.clear();
+		for (Integer id : patientProgramIds) {
+			PatientProgram patientProgram = enrollmentFactory.apply(id);
+			patientPrograms.add(patientProgram);
+			chunk.put(id, patientProgram);
+		}
+		return patientPrograms;
+	}
+	
+	@Override
+	public List<PatientState> getActivePatientStates(Collection<Integer> patientProgramIds, ProgramWorkflow programWorkflow,
+	        Date date) {
+		List<PatientState> activeStates = new ArrayList<PatientState>();
+		for (Integer id : patientProgramIds) {
+			PatientProgram patientProgram = chunk.get(id);
+			if (patientProgram == null) {
+				continue;
+			}
+			for (PatientState patientState : patientProgram.getStates()) {
+				if (patientState.getActive(date) && programWorkflow.equals(patientState.getState().getProgramWorkflow())) {
+					activeStates.add(patientState);
+				}
+			}
+		}
+		return activeStates;
+	}
+	
+	@Override
+	public Map<Integer, Date> getIncompletePatientProgramEnrollmentDates(Program program, Integer afterId, int maxResults) {
+		return Collections.emptyMap();
+	}
+	
+	@Override
+	public void saveCompletionDue(Integer patientProgramId, Integer programId, Date dueDate) {
+	}
+	
+	@Override
+	public String getEncounterFingerprint(Integer encounterId) {
+		return encounterFingerprints.get(encounterId);
+	}
+	
+	@Override
+	public void saveEncounterFingerprint(Integer encounterId, String fingerprint) {
+		encounterFingerprints.put(encounterId, fingerprint);
+	}
+	
+	@Override
+	public void setJdbcBatchSize(int batchSize) {
+	}
+	
+	@Override
+	public boolean acquireLease(String name, String owner, int seconds) {
+		return true;
+	}
+	
+	@Override
+	public boolean renewLease(String name, String owner, int seconds) {
+		return true;
+	}
+	
+	@Override
+	public void releaseLease(String name, String owner) {
+	}
+}